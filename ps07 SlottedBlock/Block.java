@@ -6,7 +6,7 @@
 public class Block
 {
     /**
-     * Size of a block in bytes.
+     * Default size of a block in bytes.
      */
     public static final int BLOCKSIZE = 1024;
 
@@ -17,6 +17,16 @@ public class Block
 
     public Block()
     {
-        data = new byte[BLOCKSIZE];
+        this(BLOCKSIZE);
+    }
+
+    /**
+     * Creates a block of the given size, which should match the page
+     * size of the database the block is stored in.
+     * @param size size of the block in bytes.
+     */
+    public Block(int size)
+    {
+        data = new byte[size];
     }
 }
@@ -40,7 +40,6 @@ public class SlottedBlock
         intBuffer = (ByteBuffer.wrap(data)).asIntBuffer();
         intBufferLength = data.length / SIZE_OF_INT;
         lenHeader = 5; //reserve place for #entries, bId, nextbId, prevbId and 
-        intBuffer.put (4, data.length - 1); //index of the end of free space in byte (1023)
     }
 
     /**
@@ -51,6 +50,7 @@ public class SlottedBlock
     public void init()
     {
     	intBuffer.put(0, 0); //initialize the number of entries to 0
+    	intBuffer.put(4, data.length - 1); //index of the end of free space in byte (block size - 1)
     }
 
     /**
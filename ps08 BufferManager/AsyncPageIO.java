@@ -0,0 +1,156 @@
+import java.io.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Asynchronous page I/O engine. Reads and writes are handed to a
+ * dedicated pool of I/O threads and completed through
+ * CompletableFutures, so a caller can have several page transfers in
+ * flight at once. The queue depth is the number of transfers the
+ * engine runs concurrently; further requests wait in its queue.
+ *
+ * A thread pool is used rather than AsynchronousFileChannel so that
+ * the same engine drives every DBFile implementation, including
+ * memory-mapped files, through the ordinary readPage and writePage.
+ */
+public class AsyncPageIO
+{
+    /**
+     * Queue depth of the shared engine.
+     */
+    public static final int DEFAULT_QUEUE_DEPTH = 16;
+
+    private static AsyncPageIO shared;
+
+    private ExecutorService pool;
+    private int queueDepth;
+
+    /**
+     * Creates an engine with the given queue depth.
+     * @param queueDepth maximum number of transfers in flight.
+     */
+    public AsyncPageIO(int queueDepth)
+    {
+        this.queueDepth = queueDepth;
+        pool = Executors.newFixedThreadPool(queueDepth, new ThreadFactory() {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "page-io");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    }
+
+    /**
+     * Returns the engine shared by all database files.
+     * @return the process-wide engine.
+     */
+    public static synchronized AsyncPageIO shared()
+    {
+        if (shared == null)
+            shared = new AsyncPageIO(DEFAULT_QUEUE_DEPTH);
+        return shared;
+    }
+
+    /**
+     * Returns the number of transfers this engine runs at once.
+     * @return the queue depth.
+     */
+    public int getQueueDepth()
+    {
+        return queueDepth;
+    }
+
+    /**
+     * Starts reading a page.
+     * @param file the database to read from.
+     * @param pageNum the page number to be read.
+     * @param page the page object to read into.
+     * @return a future completed with the page once it has been read,
+     * or completed exceptionally with the exception DBFile threw.
+     */
+    public CompletableFuture<Page> read(final DBFile file, final int pageNum,
+                                        final Page page)
+    {
+        final CompletableFuture<Page> result = new CompletableFuture<Page>();
+        pool.execute(new Runnable() {
+                public void run()
+                {
+                    try {
+                        file.readPage(pageNum, page);
+                        result.complete(page);
+                    }
+                    catch (Throwable e) {
+                        result.completeExceptionally(e);
+                    }
+                }
+            });
+        return result;
+    }
+
+    /**
+     * Starts writing a page.
+     * @param file the database to write to.
+     * @param pageNum the page number to be written.
+     * @param page the page object with the data to write. It must not
+     * be modified until the future completes.
+     * @return a future completed with the page once it has been
+     * written, or completed exceptionally with the exception DBFile
+     * threw.
+     */
+    public CompletableFuture<Page> write(final DBFile file, final int pageNum,
+                                         final Page page)
+    {
+        final CompletableFuture<Page> result = new CompletableFuture<Page>();
+        pool.execute(new Runnable() {
+                public void run()
+                {
+                    try {
+                        file.writePage(pageNum, page);
+                        result.complete(page);
+                    }
+                    catch (Throwable e) {
+                        result.completeExceptionally(e);
+                    }
+                }
+            });
+        return result;
+    }
+
+    /**
+     * Waits for a transfer to finish, rethrowing its failure as the
+     * exception the synchronous DBFile call would have thrown.
+     * @param future a future returned by read or write.
+     * @return the page transferred.
+     * @throws IOException passed through from underlying file system.
+     */
+    public static Page await(CompletableFuture<Page> future)
+        throws IOException
+    {
+        try {
+            return future.join();
+        }
+        catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException)cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            if (cause instanceof Error)
+                throw (Error)cause;
+            throw e;
+        }
+    }
+
+    /**
+     * Stops the I/O threads once queued transfers have finished.
+     */
+    public void shutdown()
+    {
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,1870 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Rough timing harness for the storage layer and buffer manager.
+ * Each benchmark prints its own results; numbers are wall-clock
+ * averages and are only meant for before/after comparisons on the
+ * same machine.
+ */
+public class BMBench
+{
+
+    public static interface Benchmark
+    {
+        void run(String filename) throws Exception;
+    }
+
+
+    //----------------------------------------------------
+    // File handles
+    //      Open-per-call access (what BufferManager used to do
+    //      on every miss) against a handle kept open in the cache
+    //----------------------------------------------------
+    public static class FileHandleBench implements Benchmark
+    {
+        public void run(String filename) throws Exception
+        {
+            System.out.println("------- File handles -------");
+            int numPages = 4096;
+            int ops = 20000;
+            DBFile file = new DBFile(filename,numPages);
+            file.allocatePages(numPages);
+            file.close();
+
+            // Only reads and writes are counted. Opening per call also
+            // costs an open and a close of each file and an fstat of
+            // the map, none of which a cached handle repeats.
+            Page page = new Page();
+            Random random = new Random(42);
+            long calls = ioCalls();
+            long start = System.nanoTime();
+            for (int i=0; i < ops; i++)
+            {
+                DBFile db = new DBFile(filename);
+                db.readPage(random.nextInt(numPages),page);
+                db.close();
+            }
+            long perCall = System.nanoTime() - start;
+            long perCallCalls = ioCalls() - calls;
+
+            DBFileCache cache = new DBFileCache(1);
+            random = new Random(42);
+            calls = ioCalls();
+            start = System.nanoTime();
+            for (int i=0; i < ops; i++)
+            {
+                DBFile db = cache.acquire(filename);
+                db.readPage(random.nextInt(numPages),page);
+                cache.release(db);
+            }
+            long cached = System.nanoTime() - start;
+            long cachedCalls = ioCalls() - calls;
+            cache.invalidate(filename);
+
+            report("open per call", perCall, ops, perCallCalls);
+            report("cached handle", cached, ops, cachedCalls);
+        }
+    }
+
+
+    //----------------------------------------------------
+    // Mapped files
+    //      Random page reads through a FileChannel against reads
+    //      from a mapping, with the file warm in the page cache
+    //----------------------------------------------------
+    public static class MappedBench implements Benchmark
+    {
+        public void run(String filename) throws Exception
+        {
+            System.out.println("------- Mapped files -------");
+            int numPages = 4096;
+            int ops = 200000;
+            DBFile file = new DBFile(filename,numPages);
+            file.allocatePages(numPages);
+            file.close();
+
+            DBFile channel = new DBFile(filename);
+            timeReads("FileChannel", channel, numPages, ops);
+            channel.close();
+
+            DBFile mapped = new MappedDBFile(filename);
+            timeReads("MappedByteBuffer", mapped, numPages, ops);
+            mapped.close();
+        }
+
+        private void timeReads(String label, DBFile file, int numPages,
+                               int ops)
+            throws IOException
+        {
+            Page page = new Page();
+            Random random = new Random(42);
+            // One pass to warm up the JIT and the page cache.
+            for (int i=0; i < numPages; i++)
+                file.readPage(i,page);
+            long calls = ioCalls();
+            long start = System.nanoTime();
+            for (int i=0; i < ops; i++)
+                file.readPage(random.nextInt(numPages),page);
+            report(label, System.nanoTime() - start, ops, ioCalls() - calls);
+        }
+    }
+
+
+    //----------------------------------------------------
+    // Page allocation
+    //      Fill files of increasing size one page at a time, then
+    //      free every other page and allocate two-page runs that
+    //      must skip over the holes. Cost per call should stay flat
+    //      as the file grows.
+    //----------------------------------------------------
+    public static class AllocationBench implements Benchmark
+    {
+        public void run(String filename) throws Exception
+        {
+            System.out.println("------- Page allocation -------");
+            for (int numPages = 1 << 14; numPages <= 1 << 20; numPages <<= 2)
+            {
+                long start = System.nanoTime();
+                DBFile file = new DBFile(filename,numPages);
+                long create = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i=0; i < numPages; i++)
+                    file.allocatePages(1);
+                long fill = System.nanoTime() - start;
+
+                for (int i=0; i < numPages; i += 2)
+                    file.deallocatePages(i,1);
+                file.deallocatePages(numPages - numPages/4, numPages/4);
+                int runs = numPages / 16;
+                start = System.nanoTime();
+                for (int i=0; i < runs; i++)
+                    file.allocatePages(2);
+                long fragmented = System.nanoTime() - start;
+                file.close();
+                DBFile.erase(filename);
+
+                System.out.printf("%8d pages  %8.3f ms create  " +
+                                  "%8.3f us/alloc  " +
+                                  "%8.3f us/run alloc with holes%n",
+                                  numPages, create / 1e6,
+                                  fill / 1000.0 / numPages,
+                                  fragmented / 1000.0 / runs);
+            }
+        }
+    }
+
+
+    //----------------------------------------------------
+    // File growth
+    //      Start from a two-page file and allocate until it has
+    //      grown through many extents, with and without mapping
+    //----------------------------------------------------
+    public static class GrowthBench implements Benchmark
+    {
+        public void run(String filename) throws Exception
+        {
+            System.out.println("------- File growth -------");
+            int numPages = 1 << 16;
+            for (int extent = 64; extent <= 4096; extent *= 8)
+            {
+                DBFile file = new DBFile(filename,2);
+                file.setExtentPages(extent);
+                long start = System.nanoTime();
+                for (int i=0; i < numPages; i++)
+                    file.allocatePages(1);
+                long elapsed = System.nanoTime() - start;
+                System.out.printf("extent %5d  %8.3f us/alloc  %d pages%n",
+                                  extent, elapsed / 1000.0 / numPages,
+                                  file.getNumPages());
+                file.close();
+                DBFile.erase(filename);
+            }
+        }
+    }
+
+
+    //----------------------------------------------------
+    // Vectored I/O
+    //      Sequential scan of a file one page per call against
+    //      runs moved with one scattering read or gathering write
+    //----------------------------------------------------
+    public static class VectoredBench implements Benchmark
+    {
+        public void run(String filename) throws Exception
+        {
+            System.out.println("------- Vectored I/O -------");
+            int numPages = 1 << 14;
+            DBFile file = new DBFile(filename,numPages);
+            file.allocatePages(numPages);
+
+            Page page = new Page();
+            long calls = ioCalls();
+            long start = System.nanoTime();
+            for (int i=0; i < numPages; i++)
+                file.writePage(i,page);
+            report("write, 1 page/call", System.nanoTime() - start,
+                   numPages, ioCalls() - calls);
+            calls = ioCalls();
+            start = System.nanoTime();
+            for (int i=0; i < numPages; i++)
+                file.readPage(i,page);
+            report("read, 1 page/call", System.nanoTime() - start,
+                   numPages, ioCalls() - calls);
+
+            for (int run = 8; run <= 64; run *= 8)
+            {
+                Page[] pages = new Page[run];
+                for (int i=0; i < run; i++)
+                    pages[i] = new Page();
+                // One writev or readv per run, plus an lseek that is
+                // not counted.
+                calls = ioCalls();
+                start = System.nanoTime();
+                for (int i=0; i < numPages; i += run)
+                    file.writePages(i,pages);
+                report("write, " + run + " pages/call",
+                       System.nanoTime() - start, numPages,
+                       ioCalls() - calls);
+                calls = ioCalls();
+                start = System.nanoTime();
+                for (int i=0; i < numPages; i += run)
+                    file.readPages(i,pages);
+                report("read, " + run + " pages/call",
+                       System.nanoTime() - start, numPages,
+                       ioCalls() - calls);
+            }
+            file.close();
+        }
+    }
+
+
+    //----------------------------------------------------
+    // Asynchronous I/O
+    //      Random page reads issued through the I/O engine at
+    //      increasing queue depths, waiting for all of them
+    //----------------------------------------------------
+    public static class AsyncBench implements Benchmark
+    {
+        public void run(String filename) throws Exception
+        {
+            System.out.println("------- Asynchronous I/O -------");
+            int numPages = 1 << 15;
+            int ops = 100000;
+            DBFile file = new DBFile(filename,numPages);
+            file.allocatePages(numPages);
+
+            for (int depth = 1; depth <= 64; depth *= 4)
+            {
+                AsyncPageIO io = new AsyncPageIO(depth);
+                Page[] pages = new Page[depth];
+                for (int i=0; i < depth; i++)
+                    pages[i] = new Page();
+                Random random = new Random(42);
+                long start = System.nanoTime();
+                // Keep depth reads outstanding, one page object each.
+                List<CompletableFuture<Page>> pending =
+                    new ArrayList<CompletableFuture<Page>>(
+                        Collections.nCopies(depth, (CompletableFuture<Page>)null));
+                for (int i=0; i < ops; i++)
+                {
+                    int slot = i % depth;
+                    if (pending.get(slot) != null)
+                        AsyncPageIO.await(pending.get(slot));
+                    int pageNum = random.nextInt(numPages);
+                    pending.set(slot,
+                                file.readPageAsync(pageNum, pages[slot], io));
+                }
+                for (CompletableFuture<Page> read : pending)
+                    if (read != null)
+                        AsyncPageIO.await(read);
+                long elapsed = System.nanoTime() - start;
+                io.shutdown();
+                System.out.printf("queue depth %2d  %8.2f us/page  " +
+                                  "%10.0f pages/s%n",
+                                  depth, elapsed / 1000.0 / ops,
+                                  ops * 1e9 / elapsed);
+            }
+            file.close();
+        }
+    }
+
+
+    //----------------------------------------------------
+    // Direct I/O
+    //      Random page reads and writes through the page cache
+    //      against O_DIRECT, both from ordinary heap pages (which
+    //      go through a bounce buffer) and from aligned buffers
+    //----------------------------------------------------
+    public static class DirectBench implements Benchmark
+    {
+        public void run(String filename) throws Exception
+        {
+            System.out.println("------- Direct I/O -------");
+            int numPages = 1 << 15;
+            int ops = 20000;
+            DBFile file = new DBFile(filename,numPages);
+            file.allocatePages(numPages);
+            file.close();
+
+            DBFile buffered = new DBFile(filename);
+            time("buffered", buffered, numPages, ops);
+            buffered.close();
+
+            DirectDBFile direct = new DirectDBFile(filename);
+            if (!direct.isDirect())
+                System.out.println("(O_DIRECT not supported here, " +
+                                   "numbers are buffered)");
+            // Pages smaller than a block are written read-modify-write.
+            time("direct", direct, numPages, ops);
+
+            // Whole aligned blocks, no bounce buffer.
+            int block = direct.getBlockSize();
+            ByteBuffer aligned = DirectDBFile.allocateAligned(block, block);
+            int blocks = numPages / (block / Page.PAGESIZE);
+            Random random = new Random(42);
+            long calls = ioCalls();
+            long start = System.nanoTime();
+            for (int i=0; i < ops; i++)
+            {
+                aligned.clear();
+                direct.readData(aligned, (long)random.nextInt(blocks) * block);
+            }
+            report("direct, aligned block", System.nanoTime() - start,
+                   ops, ioCalls() - calls);
+            direct.close();
+        }
+
+        private void time(String label, DBFile file, int numPages, int ops)
+            throws IOException
+        {
+            Page page = new Page();
+            Random random = new Random(42);
+            long calls = ioCalls();
+            long start = System.nanoTime();
+            for (int i=0; i < ops; i++)
+                file.readPage(random.nextInt(numPages),page);
+            report(label + " read", System.nanoTime() - start, ops,
+                   ioCalls() - calls);
+            calls = ioCalls();
+            start = System.nanoTime();
+            for (int i=0; i < ops; i++)
+                file.writePage(random.nextInt(numPages),page);
+            report(label + " write", System.nanoTime() - start, ops,
+                   ioCalls() - calls);
+        }
+    }
+
+
+    //----------------------------------------------------
+    // Page size
+    //      The same 64 MB database laid out with each supported
+    //      page size: sequential scan bandwidth and random
+    //      single-page lookups
+    //----------------------------------------------------
+    public static class PageSizeBench implements Benchmark
+    {
+        public void run(String filename) throws Exception
+        {
+            System.out.println("------- Page size -------");
+            long volume = 64L << 20;
+            int lookups = 50000;
+            for (int size = Page.PAGESIZE; size <= Page.MAX_PAGESIZE; size *= 2)
+            {
+                int numPages = (int)(volume / size);
+                DBFile file = new DBFile(filename,numPages,size);
+                file.allocatePages(numPages);
+                Page page = new Page(size);
+                for (int i=0; i < numPages; i++)
+                    file.writePage(i,page);
+
+                long start = System.nanoTime();
+                for (int i=0; i < numPages; i++)
+                    file.readPage(i,page);
+                long scan = System.nanoTime() - start;
+
+                Random random = new Random(42);
+                start = System.nanoTime();
+                for (int i=0; i < lookups; i++)
+                    file.readPage(random.nextInt(numPages),page);
+                long lookup = System.nanoTime() - start;
+                file.close();
+                DBFile.erase(filename);
+
+                System.out.printf("%5d KB pages  scan %8.1f MB/s  " +
+                                  "%7d reads  lookup %10.0f pages/s%n",
+                                  size / 1024, volume * 1e9 / scan / (1 << 20),
+                                  numPages, lookups * 1e9 / lookup);
+            }
+        }
+    }
+
+
+    //----------------------------------------------------
+    // Write-ahead log
+    //      Committing threads, each change made durable either
+    //      by writing and syncing the page in place or by
+    //      appending its image to the log with group commit
+    //----------------------------------------------------
+    public static class LogBench implements Benchmark
+    {
+        public void run(String filename) throws Exception
+        {
+            System.out.println("------- Write-ahead log -------");
+            final int numPages = 1 << 14;
+            final int commits = 2000;
+            final DBFile file = new DBFile(filename,numPages);
+            file.allocatePages(numPages);
+            final String logName = filename + ".log";
+
+            for (int threads = 1; threads <= 16; threads *= 4)
+            {
+                final int perThread = commits / threads;
+                long inPlace = runThreads(threads, new Worker() {
+                        public void work(int id) throws IOException
+                        {
+                            Page page = new Page();
+                            Random random = new Random(id);
+                            for (int i=0; i < perThread; i++)
+                            {
+                                file.writePage(random.nextInt(numPages),page);
+                                file.force();
+                            }
+                        }
+                    });
+
+                (new File(logName)).delete();
+                final LogManager log = new LogManager(logName);
+                long logged = runThreads(threads, new Worker() {
+                        public void work(int id) throws IOException
+                        {
+                            Page page = new Page();
+                            Random random = new Random(id);
+                            for (int i=0; i < perThread; i++)
+                            {
+                                long lsn = log.append(filename,
+                                                      random.nextInt(numPages),
+                                                      page);
+                                log.flush(lsn);
+                            }
+                        }
+                    });
+                int total = perThread * threads;
+                System.out.printf("%2d threads  in place %8.1f us/commit  " +
+                                  "logged %8.1f us/commit  " +
+                                  "%.1f commits/sync%n",
+                                  threads, inPlace / 1000.0 / total,
+                                  logged / 1000.0 / total,
+                                  (double)total / log.syncCount());
+                log.close();
+            }
+            (new File(logName)).delete();
+            file.close();
+        }
+    }
+
+
+    //----------------------------------------------------
+    // Compression
+    //      Pages holding text records, filled to different
+    //      degrees, stored plain and with each codec: space
+    //      saved and the cost in write and read bandwidth
+    //----------------------------------------------------
+    public static class CompressionBench implements Benchmark
+    {
+        public void run(String filename) throws Exception
+        {
+            System.out.println("------- Compression -------");
+            int numPages = 1 << 14;
+            PageCodec[] codecs = { null, new PageCodec.LZ(),
+                                   new PageCodec.Deflate() };
+            for (int fill = 25; fill <= 100; fill *= 2)
+            {
+                Page[] images = recordPages(256, fill);
+                for (PageCodec codec : codecs)
+                {
+                    DBFile file = codec == null
+                        ? new DBFile(filename,numPages)
+                        : new CompressedDBFile(filename,numPages,
+                                               Page.PAGESIZE,codec);
+                    file.allocatePages(numPages);
+                    long start = System.nanoTime();
+                    for (int i=0; i < numPages; i++)
+                        file.writePage(i,images[i % images.length]);
+                    long write = System.nanoTime() - start;
+
+                    Page page = new Page();
+                    start = System.nanoTime();
+                    for (int i=0; i < numPages; i++)
+                        file.readPage(i,page);
+                    long read = System.nanoTime() - start;
+
+                    long logical = (long)numPages * Page.PAGESIZE;
+                    long stored = codec == null ? logical
+                        : ((CompressedDBFile)file).getDataBytes();
+                    file.close();
+                    DBFile.erase(filename);
+
+                    System.out.printf("%3d%% full  %-8s ratio %5.2f  " +
+                                      "write %7.1f MB/s  read %7.1f MB/s%n",
+                                      fill,
+                                      codec == null ? "none" : codec.name(),
+                                      (double)logical / stored,
+                                      logical * 1e9 / write / (1 << 20),
+                                      logical * 1e9 / read / (1 << 20));
+                }
+            }
+        }
+
+        /**
+         * Builds pages that look like slotted pages of short records,
+         * with the given percentage of each page in use.
+         */
+        private static Page[] recordPages(int count, int fill)
+        {
+            String[] words = { "alpha", "bravo", "charlie", "delta",
+                               "echo", "foxtrot", "golf", "hotel" };
+            Random random = new Random(42);
+            Page[] pages = new Page[count];
+            for (int p=0; p < count; p++)
+            {
+                pages[p] = new Page();
+                int end = Page.PAGESIZE * fill / 100;
+                int pos = 0;
+                while (pos < end)
+                {
+                    byte[] record = (random.nextInt(100000) + "|" +
+                                     words[random.nextInt(words.length)] +
+                                     "|" + random.nextInt(1000) + ";")
+                        .getBytes();
+                    int len = Math.min(record.length, end - pos);
+                    System.arraycopy(record,0,pages[p].data,pos,len);
+                    pos += len;
+                }
+            }
+            return pages;
+        }
+    }
+
+
+    //----------------------------------------------------
+    // Page lookup
+    //      Buffer hits: pin and unpin of resident pages, and
+    //      bare lookups in the page table against a boxed
+    //      HashMap, in time and heap bytes allocated per call
+    //----------------------------------------------------
+    public static class PageLookupBench implements Benchmark
+    {
+        public void run(String filename) throws Exception
+        {
+            System.out.println("------- Page lookup -------");
+            int poolSize = 64;
+            int ops = 2000000;
+            DBFile file = new DBFile(filename,poolSize * 2);
+            file.allocatePages(poolSize);
+            file.close();
+            // With a log, a clean unpin touches no file, so the loop
+            // measures the hit path alone.
+            String logName = filename + ".log";
+            (new File(logName)).delete();
+            LogManager log = new LogManager(logName);
+            BufferManager bufMgr =
+                new BufferManager(poolSize,DBFileCache.Mode.CHANNEL,log);
+            for (int i=0; i < poolSize; i++)
+            {
+                bufMgr.pinPage(i,filename,false);
+                bufMgr.unpinPage(i,filename,false);
+            }
+
+            runWithWarmUp(1, (round, report) -> {
+                    Random random = new Random(42);
+                    long bytes = allocatedBytes();
+                    long start = System.nanoTime();
+                    for (int i=0; i < ops; i++)
+                    {
+                        int pageNum = random.nextInt(poolSize);
+                        bufMgr.pinPage(pageNum,filename,false);
+                        bufMgr.unpinPage(pageNum,filename,false);
+                    }
+                    long elapsed = System.nanoTime() - start;
+                    bytes = allocatedBytes() - bytes;
+                    if (report)
+                        System.out.printf("pin+unpin hit     %8.1f ns/op  " +
+                                          "%6.2f bytes/op%n",
+                                          (double)elapsed / ops,
+                                          (double)bytes / ops);
+                });
+            log.close();
+            (new File(logName)).delete();
+
+            int entries = 1 << 16;
+            PageTable table = new PageTable(entries);
+            java.util.HashMap<Long,Integer> boxed =
+                new java.util.HashMap<Long,Integer>();
+            for (int i=0; i < entries; i++)
+            {
+                table.put(PageTable.key(i & 3, i),i);
+                boxed.put(PageTable.key(i & 3, i),i);
+            }
+            runWithWarmUp(1, (round, report) -> {
+                    Random random = new Random(42);
+                    long sum = 0;
+                    long bytes = allocatedBytes();
+                    long start = System.nanoTime();
+                    for (int i=0; i < ops; i++)
+                    {
+                        int page = random.nextInt(entries);
+                        sum += table.get(PageTable.key(page & 3, page));
+                    }
+                    long tableTime = System.nanoTime() - start;
+                    long tableBytes = allocatedBytes() - bytes;
+
+                    random = new Random(42);
+                    bytes = allocatedBytes();
+                    start = System.nanoTime();
+                    for (int i=0; i < ops; i++)
+                    {
+                        int page = random.nextInt(entries);
+                        sum -= boxed.get(PageTable.key(page & 3, page));
+                    }
+                    long boxedTime = System.nanoTime() - start;
+                    long boxedBytes = allocatedBytes() - bytes;
+                    if (sum != 0)
+                        throw new IllegalStateException("lookups disagree");
+                    if (report)
+                    {
+                        System.out.printf("PageTable get     %8.1f ns/op  " +
+                                          "%6.2f bytes/op%n",
+                                          (double)tableTime / ops,
+                                          (double)tableBytes / ops);
+                        System.out.printf("HashMap<Long> get %8.1f ns/op  " +
+                                          "%6.2f bytes/op%n",
+                                          (double)boxedTime / ops,
+                                          (double)boxedBytes / ops);
+                    }
+                });
+        }
+    }
+
+
+    //----------------------------------------------------
+    // Pool size
+    //      Misses into empty frames and hits on resident pages
+    //      in pools of increasing size; per-call cost should not
+    //      depend on the number of frames
+    //----------------------------------------------------
+    public static class PoolSizeBench implements Benchmark
+    {
+        public void run(String filename) throws Exception
+        {
+            System.out.println("------- Pool size -------");
+            int resident = 1 << 13;
+            int ops = 1000000;
+            DBFile file = new DBFile(filename,resident);
+            file.allocatePages(resident);
+            file.close();
+            String logName = filename + ".log";
+
+            int[] sizes = { 1 << 10, 1 << 16, 1 << 20 };
+            runWithWarmUp(sizes.length, (round, report) -> {
+                    int frames = sizes[round];
+                    (new File(logName)).delete();
+                    LogManager log = new LogManager(logName);
+                    BufferManager bufMgr =
+                        new BufferManager(frames,DBFileCache.Mode.CHANNEL,log);
+                    int loaded = Math.min(frames, resident);
+                    long start = System.nanoTime();
+                    for (int i=0; i < loaded; i++)
+                    {
+                        bufMgr.pinPage(i,filename,false);
+                        bufMgr.unpinPage(i,filename,false);
+                    }
+                    long miss = System.nanoTime() - start;
+
+                    Random random = new Random(42);
+                    start = System.nanoTime();
+                    for (int i=0; i < ops; i++)
+                    {
+                        int pageNum = random.nextInt(loaded);
+                        bufMgr.pinPage(pageNum,filename,false);
+                        bufMgr.unpinPage(pageNum,filename,false);
+                    }
+                    long hit = System.nanoTime() - start;
+                    log.close();
+                    if (!report)
+                        return;
+
+                    System.out.printf("%8d frames  miss %8.2f us/op  " +
+                                      "hit %8.1f ns/op%n",
+                                      frames, miss / 1000.0 / loaded,
+                                      (double)hit / ops);
+                });
+            (new File(logName)).delete();
+        }
+    }
+
+
+    //----------------------------------------------------
+    // Concurrency
+    //      Threads pinning and unpinning random pages of a working
+    //      set twice the pool size, so that about half the pins
+    //      miss; total throughput as the thread count grows
+    //----------------------------------------------------
+    public static class ConcurrencyBench implements Benchmark
+    {
+        public void run(final String filename) throws Exception
+        {
+            System.out.println("------- Concurrency -------");
+            System.out.println(Runtime.getRuntime().availableProcessors() +
+                               " processors");
+            final int poolSize = 1024;
+            final int numPages = 2 * poolSize;
+            final int ops = 400000;
+            DBFile file = new DBFile(filename,numPages);
+            file.allocatePages(numPages);
+            file.close();
+            String logName = filename + ".log";
+
+            for (int threads = 1; threads <= 64; threads *= 2)
+            {
+                (new File(logName)).delete();
+                LogManager log = new LogManager(logName);
+                final BufferManager bufMgr =
+                    new BufferManager(poolSize,DBFileCache.Mode.CHANNEL,log);
+                final int perThread = ops / threads;
+                long elapsed = runThreads(threads, new Worker() {
+                        public void work(int id) throws IOException
+                        {
+                            Random random = new Random(id);
+                            for (int i=0; i < perThread; i++)
+                            {
+                                int pageNum = random.nextInt(numPages);
+                                while (bufMgr.pinPage(pageNum,filename,false) == null)
+                                    Thread.yield();
+                                bufMgr.unpinPage(pageNum,filename,false);
+                            }
+                        }
+                    });
+                log.close();
+                System.out.printf("%2d threads  %10.0f pins/s%n",
+                                  threads, perThread * threads * 1e9 / elapsed);
+            }
+            (new File(logName)).delete();
+        }
+    }
+
+
+    //----------------------------------------------------
+    // Replacement policies
+    //      Hit ratio and time per access of each policy on the same
+    //      traces: skewed point lookups alone, then the same lookups
+    //      broken up by long sequential scans of cold pages. Scans
+    //      always miss, so hits are counted among the lookups only;
+    //      a scan-resistant policy keeps about the same ratio with
+    //      scans as without
+    //----------------------------------------------------
+    public static class PolicyBench implements Benchmark
+    {
+        public void run(String filename) throws Exception
+        {
+            System.out.println("------- Replacement policies -------");
+            int poolSize = 256;
+            int hotPages = 1024;
+            int numPages = 8192;
+            int ops = 200000;
+            DBFile file = new DBFile(filename,numPages);
+            file.allocatePages(numPages);
+            file.close();
+
+            int[] lookups = trace(ops, hotPages, numPages, 0);
+            int[] mixed = trace(ops, hotPages, numPages, 4 * poolSize);
+            String logName = filename + ".log";
+            ReplacementPolicy[] policies = {
+                new ReplacementPolicy.Clock(), new ReplacementPolicy.LRU(),
+                new ReplacementPolicy.LRUK(), new ReplacementPolicy.TwoQ(),
+                new ReplacementPolicy.ARC()
+            };
+            for (ReplacementPolicy policy : policies)
+            {
+                double[] results = new double[4];
+                int[][] traces = { lookups, mixed };
+                for (int t=0; t < traces.length; t++)
+                {
+                    (new File(logName)).delete();
+                    LogManager log = new LogManager(logName);
+                    BufferManager bufMgr =
+                        new BufferManager(poolSize,DBFileCache.Mode.CHANNEL,
+                                          log,policy);
+                    // Read-ahead would load the scans ahead of use,
+                    // through the policy, and make them hits.
+                    bufMgr.setReadAhead(0);
+                    int hits = 0;
+                    int hotPins = 0;
+                    long start = System.nanoTime();
+                    for (int pageNum : traces[t])
+                    {
+                        if (pageNum < hotPages)
+                        {
+                            hotPins++;
+                            if (bufMgr.findFrame(pageNum,filename) >= 0)
+                                hits++;
+                        }
+                        bufMgr.pinPage(pageNum,filename,false);
+                        bufMgr.unpinPage(pageNum,filename,false);
+                    }
+                    long elapsed = System.nanoTime() - start;
+                    bufMgr.close();
+                    log.close();
+                    results[2*t] = 100.0 * hits / hotPins;
+                    results[2*t+1] = elapsed / 1000.0 / traces[t].length;
+                }
+                System.out.printf("%-6s  lookups %5.1f%% hits %6.2f us/op  " +
+                                  "with scans %5.1f%% hits %6.2f us/op%n",
+                                  policy.name(), results[0], results[1],
+                                  results[2], results[3]);
+            }
+            (new File(logName)).delete();
+        }
+
+        /**
+         * Makes a trace of page numbers: lookups skewed towards the
+         * low pages of the hot range, and, if scanLength is not zero,
+         * a scan of that many cold pages after every 2000 lookups.
+         */
+        private static int[] trace(int ops, int hotPages, int numPages,
+                                   int scanLength)
+        {
+            int[] trace = new int[ops];
+            Random random = new Random(42);
+            int i = 0;
+            while (i < ops)
+            {
+                for (int j=0; j < 2000 && i < ops; j++)
+                {
+                    double r = random.nextDouble();
+                    trace[i++] = (int)(hotPages * r * r * r);
+                }
+                int start = hotPages +
+                    random.nextInt(numPages - hotPages - scanLength + 1);
+                for (int j=0; j < scanLength && i < ops; j++)
+                    trace[i++] = start + j;
+            }
+            return trace;
+        }
+    }
+
+
+    //----------------------------------------------------
+    // Page cleaner
+    //      Random updates to a working set four times the pool size,
+    //      with a little work between them. Without the cleaner most
+    //      misses write back a dirty victim first; with it, the
+    //      victims have mostly been written during the idle time.
+    //----------------------------------------------------
+    public static class CleanerBench implements Benchmark
+    {
+        public void run(String filename) throws Exception
+        {
+            System.out.println("------- Page cleaner -------");
+            int poolSize = 1024;
+            int numPages = 4 * poolSize;
+            int ops = 20000;
+            DBFile file = new DBFile(filename,numPages);
+            file.allocatePages(numPages);
+            file.close();
+
+            int[] rates = { 0, BufferManager.CLEANER_RATE, 20000, 100000 };
+            runWithWarmUp(rates.length, (round, report) -> {
+                    BufferManager bufMgr = new BufferManager(poolSize);
+                    bufMgr.setCleanerRate(rates[round]);
+                    for (int i=0; i < poolSize; i++)
+                    {
+                        bufMgr.pinPage(i,filename,false);
+                        bufMgr.unpinPage(i,filename,true);
+                    }
+                    Random random = new Random(42);
+                    long[] pins = new long[ops];
+                    for (int i=0; i < ops; i++)
+                    {
+                        int pageNum = random.nextInt(numPages);
+                        long start = System.nanoTime();
+                        Page page = bufMgr.pinPage(pageNum,filename,false);
+                        pins[i] = System.nanoTime() - start;
+                        page.data[0]++;
+                        bufMgr.unpinPage(pageNum,filename,true);
+                        spin(20000);
+                    }
+                    int dirty = bufMgr.dirtyFrames();
+                    bufMgr.close();
+                    if (!report)
+                        return;
+
+                    java.util.Arrays.sort(pins);
+                    long total = 0;
+                    for (long t : pins)
+                        total += t;
+                    System.out.printf("cleaner %6d pages/s  pin %7.2f us avg  " +
+                                      "%7.2f us p99  %4d frames dirty%n",
+                                      rates[round], total / 1000.0 / ops,
+                                      pins[ops * 99 / 100] / 1000.0, dirty);
+                });
+        }
+
+        /**
+         * Stands for the work done with a page between accesses.
+         */
+        private static void spin(long nanos)
+        {
+            long end = System.nanoTime() + nanos;
+            while (System.nanoTime() < end)
+                ;
+        }
+    }
+
+
+    //----------------------------------------------------
+    // Pool memory
+    //      A large pool with its pages on the heap against the same
+    //      pool in an off-heap arena: heap held by the pool, and
+    //      garbage collection during random pins, half of them misses
+    //----------------------------------------------------
+    public static class ArenaBench implements Benchmark
+    {
+        public void run(String filename) throws Exception
+        {
+            System.out.println("------- Pool memory -------");
+            int frames = 1 << 18;
+            int numPages = 2 * frames;
+            int ops = 1000000;
+            DBFile file = new DBFile(filename,numPages);
+            file.allocatePages(numPages);
+            file.close();
+
+            int[] frameSizes = { 0, Page.PAGESIZE };
+            runWithWarmUp(frameSizes.length, (round, report) -> {
+                    long before = heapUsed();
+                    BufferManager bufMgr =
+                        new BufferManager(frames,DBFileCache.Mode.CHANNEL,null,
+                                          new ReplacementPolicy.Clock(),
+                                          frameSizes[round]);
+                    for (int i=0; i < frames; i++)
+                    {
+                        bufMgr.pinPage(i,filename,false);
+                        bufMgr.unpinPage(i,filename,false);
+                    }
+                    long held = heapUsed() - before;
+
+                    Random random = new Random(42);
+                    long[] gc = gcTotals();
+                    long allocated = allocatedBytes();
+                    long start = System.nanoTime();
+                    for (int i=0; i < ops; i++)
+                    {
+                        int pageNum = random.nextInt(numPages);
+                        bufMgr.pinPage(pageNum,filename,false);
+                        bufMgr.unpinPage(pageNum,filename,false);
+                    }
+                    long elapsed = System.nanoTime() - start;
+                    allocated = allocatedBytes() - allocated;
+                    long[] after = gcTotals();
+                    bufMgr.close();
+                    bufMgr = null;
+                    if (!report)
+                        return;
+
+                    System.out.printf("%-8s  heap %6.1f MB  %8.2f us/pin  " +
+                                      "%6.1f bytes/pin  %3d GCs %5d ms%n",
+                                      frameSizes[round] == 0 ? "on heap" : "arena",
+                                      held / 1e6, elapsed / 1000.0 / ops,
+                                      (double)allocated / ops,
+                                      after[0] - gc[0], after[1] - gc[1]);
+                });
+        }
+
+        private static long heapUsed()
+        {
+            System.gc();
+            Runtime runtime = Runtime.getRuntime();
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+
+        /**
+         * Returns the number of collections so far and the time they
+         * took in milliseconds, over all collectors.
+         */
+        private static long[] gcTotals()
+        {
+            long[] totals = new long[2];
+            for (java.lang.management.GarbageCollectorMXBean gc :
+                     java.lang.management.ManagementFactory.getGarbageCollectorMXBeans())
+            {
+                totals[0] += gc.getCollectionCount();
+                totals[1] += gc.getCollectionTime();
+            }
+            return totals;
+        }
+    }
+
+
+    //----------------------------------------------------
+    // Prefetch
+    //      Scans with a little work per page through a pool a
+    //      quarter the size of the database: in page order with and
+    //      without read-ahead, and along a chain of blocks in random
+    //      order with and without a hint for the next block
+    //----------------------------------------------------
+    public static class PrefetchBench implements Benchmark
+    {
+        public void run(String filename) throws Exception
+        {
+            System.out.println("------- Prefetch -------");
+            int poolSize = 1024;
+            int numPages = 4 * poolSize;
+            DBFile file = new DBFile(filename,numPages);
+            file.allocatePages(numPages);
+            file.close();
+
+            // The chain visits every page once, in random order.
+            int[] order = new int[numPages];
+            for (int i=0; i < numPages; i++)
+                order[i] = i;
+            Random random = new Random(42);
+            for (int i=numPages - 1; i > 0; i--)
+            {
+                int j = random.nextInt(i + 1);
+                int t = order[i];
+                order[i] = order[j];
+                order[j] = t;
+            }
+
+            // Time spent by the scanning thread itself, leaving out the
+            // prefetcher's.
+            java.lang.management.ThreadMXBean threads =
+                java.lang.management.ManagementFactory.getThreadMXBean();
+            DBFileCache.Mode[] modes = {
+                DBFileCache.Mode.CHANNEL, DBFileCache.Mode.DIRECT
+            };
+            for (DBFileCache.Mode mode : modes)
+            {
+                String[] labels = { "in order", "in order, read-ahead",
+                                    "chain", "chain, hinted" };
+                runWithWarmUp(labels.length, (round, report) -> {
+                        boolean chain = round >= 2;
+                        BufferManager bufMgr = new BufferManager(poolSize,mode);
+                        bufMgr.setReadAhead(round == 1 ?
+                                            BufferManager.READ_AHEAD : 0);
+                        long cpu = threads.getCurrentThreadCpuTime();
+                        long start = System.nanoTime();
+                        for (int i=0; i < numPages; i++)
+                        {
+                            int pageNum = chain ? order[i] : i;
+                            if (round == 3 && i + 1 < numPages)
+                                bufMgr.prefetch(filename,order[i + 1],1);
+                            bufMgr.pinPage(pageNum,filename,false);
+                            CleanerBench.spin(20000);
+                            bufMgr.unpinPage(pageNum,filename,false);
+                        }
+                        long elapsed = System.nanoTime() - start;
+                        cpu = threads.getCurrentThreadCpuTime() - cpu;
+                        bufMgr.close();
+                        if (!report)
+                            return;
+
+                        BufferPoolMetrics.Snapshot metrics = bufMgr.metrics();
+                        long used = metrics.getPrefetchHits();
+                        long wasted = metrics.getPrefetchWasted();
+                        System.out.printf("%-7s %-20s %7.2f us/page  " +
+                                          "%6.2f us CPU/page  " +
+                                          "%5.1f%% prefetched  %5.1f%% accurate%n",
+                                          mode, labels[round],
+                                          elapsed / 1000.0 / numPages,
+                                          cpu / 1000.0 / numPages,
+                                          100.0 * used / numPages,
+                                          used + wasted == 0 ? 0.0 :
+                                          100.0 * used / (used + wasted));
+                    });
+            }
+        }
+    }
+
+
+    //----------------------------------------------------
+    // Access strategies
+    //      One thread looking up pages of a hot set that fits in
+    //      the pool while another scans the rest of the database
+    //      over and over: hit ratio of the lookups with no scan,
+    //      with a plain scan, and with a scan under BULK_READ
+    //----------------------------------------------------
+    public static class StrategyBench implements Benchmark
+    {
+        public void run(final String filename) throws Exception
+        {
+            System.out.println("------- Access strategies -------");
+            final int poolSize = 1024;
+            final int numPages = 8 * poolSize;
+            final int hotPages = poolSize * 3 / 4;
+            final int ops = 200000;
+            DBFile file = new DBFile(filename,numPages);
+            file.allocatePages(numPages);
+            file.close();
+
+            String[] labels = { "no scan", "plain scan", "BULK_READ scan" };
+            runWithWarmUp(labels.length, (round, report) -> {
+                    final boolean scanning = round >= 1;
+                    final boolean bulk = round == 2;
+                    final BufferManager bufMgr = new BufferManager(poolSize);
+                    for (int i=0; i < hotPages; i++)
+                    {
+                        bufMgr.pinPage(i,filename,false);
+                        bufMgr.unpinPage(i,filename,false);
+                    }
+                    final long[] counts = new long[2]; // lookup hits, pages scanned
+                    final boolean[] done = new boolean[1];
+                    long elapsed = runThreads(2, new Worker() {
+                            public void work(int id) throws IOException
+                            {
+                                if (id == 0)
+                                    lookUp();
+                                else if (scanning)
+                                    scan();
+                            }
+
+                            private void lookUp() throws IOException
+                            {
+                                Random random = new Random(42);
+                                for (int i=0; i < ops; i++)
+                                {
+                                    int pageNum = random.nextInt(hotPages);
+                                    if (bufMgr.findFrame(pageNum,filename) >= 0)
+                                        counts[0]++;
+                                    while (bufMgr.pinPage(pageNum,filename,false) == null)
+                                        Thread.yield();
+                                    bufMgr.unpinPage(pageNum,filename,false);
+                                }
+                                synchronized (done) {
+                                    done[0] = true;
+                                }
+                            }
+
+                            private void scan() throws IOException
+                            {
+                                BufferAccessStrategy strategy = bulk ?
+                                    new BufferAccessStrategy(
+                                        BufferAccessStrategy.Type.BULK_READ) :
+                                    null;
+                                for (int pageNum = hotPages; ; pageNum++)
+                                {
+                                    synchronized (done) {
+                                        if (done[0])
+                                            return;
+                                    }
+                                    if (pageNum == numPages)
+                                        pageNum = hotPages;
+                                    while (bufMgr.pinPage(pageNum,filename,false,
+                                                          strategy) == null)
+                                        Thread.yield();
+                                    bufMgr.unpinPage(pageNum,filename,false);
+                                    counts[1]++;
+                                }
+                            }
+                        });
+                    bufMgr.close();
+                    if (!report)
+                        return;
+
+                    System.out.printf("%-15s  lookups %5.1f%% hits %8.0f/s  " +
+                                      "scan %8.0f pages/s%n",
+                                      labels[round], 100.0 * counts[0] / ops,
+                                      ops * 1e9 / elapsed,
+                                      counts[1] * 1e9 / elapsed);
+                });
+        }
+    }
+
+
+    /**
+     * Returns the heap bytes allocated so far by the calling thread,
+     * or zero if the JVM cannot tell.
+     */
+    public static long allocatedBytes()
+    {
+        java.lang.management.ThreadMXBean threads =
+            java.lang.management.ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean)threads)
+                .getCurrentThreadAllocatedBytes();
+        return 0;
+    }
+
+
+    public static class SingleFlightBench implements Benchmark
+    {
+        public void run(final String filename) throws Exception
+        {
+            System.out.println("------- Concurrent misses on one page -------");
+            final int poolSize = 4;
+            final int numPages = 512;
+            DBFile file = new DBFile(filename,numPages);
+            file.allocatePages(numPages);
+            file.close();
+            String logName = filename + ".log";
+            final java.lang.management.ThreadMXBean cpu =
+                java.lang.management.ManagementFactory.getThreadMXBean();
+
+            // Each round, every thread pins the same page, which is
+            // not in the pool, and holds it until all have it. One of
+            // them changes it, so the miss a few rounds later has to
+            // sync the log and write the page back before reading its
+            // own, and the others wait that long.
+            for (int threads = 4; threads <= 64; threads *= 4)
+            {
+                (new File(logName)).delete();
+                LogManager log = new LogManager(logName);
+                final BufferManager bufMgr =
+                    new BufferManager(poolSize,DBFileCache.Mode.CHANNEL,log);
+                bufMgr.setReadAhead(0);
+                bufMgr.setCleanerRate(0);
+                final java.util.concurrent.CyclicBarrier barrier =
+                    new java.util.concurrent.CyclicBarrier(threads);
+                final long[] cpuTime = new long[threads];
+                long elapsed = runThreads(threads, new Worker() {
+                        public void work(int id) throws Exception
+                        {
+                            for (int pageNum=0; pageNum < numPages; pageNum++)
+                            {
+                                barrier.await();
+                                while (bufMgr.pinPage(pageNum,filename,false) == null)
+                                    Thread.yield();
+                                barrier.await();
+                                bufMgr.unpinPage(pageNum,filename,id == 0);
+                            }
+                            cpuTime[id] = cpu.getCurrentThreadCpuTime();
+                        }
+                    });
+                bufMgr.close();
+                log.close();
+                long total = 0;
+                for (long t : cpuTime)
+                    total += t;
+                BufferPoolMetrics.Snapshot metrics = bufMgr.metrics();
+                System.out.printf("%2d threads  %5.2f reads/page  " +
+                                  "%5.2f waits/page  %7.1f us/page  " +
+                                  "%7.1f us CPU/page%n",
+                                  threads,
+                                  (double)bufMgr.getMetrics().getReadLatency().getCount()
+                                  / numPages,
+                                  (double)metrics.getPinWaits() / numPages,
+                                  elapsed / 1000.0 / numPages,
+                                  total / 1000.0 / numPages);
+            }
+            (new File(logName)).delete();
+        }
+    }
+
+
+    public static class ResizeBench implements Benchmark
+    {
+        public void run(final String filename) throws Exception
+        {
+            System.out.println("------- Online resize -------");
+            final int poolSize = 4096;
+            final int small = poolSize / 4;
+            final int hotPages = small / 2;
+            final int ops = 400000;
+            DBFile file = new DBFile(filename,poolSize);
+            file.allocatePages(poolSize);
+            file.close();
+
+            String[] labels = { "fixed pool", "resizing pool" };
+            runWithWarmUp(labels.length, (round, report) -> {
+                    final boolean resizing = round == 1;
+                    final BufferManager bufMgr = new BufferManager(poolSize);
+                    bufMgr.setReadAhead(0);
+                    for (int i=0; i < poolSize; i++)
+                    {
+                        bufMgr.pinPage(i,filename,false);
+                        bufMgr.unpinPage(i,filename,i % 4 == 0);
+                    }
+                    final long[] times = new long[3]; // shrink, grow, resizes
+                    final boolean[] done = new boolean[1];
+                    long elapsed = runThreads(2, new Worker() {
+                            public void work(int id) throws IOException
+                            {
+                                if (id == 0)
+                                    lookUp();
+                                else if (resizing)
+                                    resize();
+                            }
+
+                            private void lookUp() throws IOException
+                            {
+                                Random random = new Random(42);
+                                for (int i=0; i < ops; i++)
+                                {
+                                    int pageNum = random.nextInt(hotPages);
+                                    while (bufMgr.pinPage(pageNum,filename,false) == null)
+                                        Thread.yield();
+                                    bufMgr.unpinPage(pageNum,filename,false);
+                                }
+                                synchronized (done) {
+                                    done[0] = true;
+                                }
+                            }
+
+                            private void resize() throws IOException
+                            {
+                                while (true)
+                                {
+                                    synchronized (done) {
+                                        if (done[0])
+                                            return;
+                                    }
+                                    long start = System.nanoTime();
+                                    bufMgr.resize(small);
+                                    long shrunk = System.nanoTime();
+                                    bufMgr.resize(poolSize);
+                                    times[0] += shrunk - start;
+                                    times[1] += System.nanoTime() - shrunk;
+                                    times[2]++;
+                                }
+                            }
+                        });
+                    bufMgr.checkpoint();
+                    bufMgr.close();
+                    if (!report)
+                        return;
+
+                    System.out.printf("%-14s  pin+unpin %8.0f/s", labels[round],
+                                      ops * 1e9 / elapsed);
+                    if (resizing)
+                        System.out.printf("  %d shrinks to %d frames %6.2f ms, " +
+                                          "grows back %6.2f ms",
+                                          times[2], small,
+                                          times[0] / 1e6 / times[2],
+                                          times[1] / 1e6 / times[2]);
+                    System.out.println();
+                });
+        }
+    }
+
+
+    public static class CheckpointBench implements Benchmark
+    {
+        public void run(final String filename) throws Exception
+        {
+            System.out.println("------- Checkpoint flush -------");
+            final int poolSize = 4096;
+            final int numPages = 2 * poolSize;
+            DBFile file = new DBFile(filename,numPages);
+            file.allocatePages(numPages);
+            file.close();
+
+            // Pages are loaded in random order, so frame order is not
+            // page order.
+            List<Integer> order = new ArrayList<Integer>();
+            for (int i=0; i < poolSize; i++)
+                order.add(i);
+            Collections.shuffle(order, new Random(42));
+            String[] labels = { "page by page", "sorted runs",
+                                "sorted, every other page" };
+            runWithWarmUp(labels.length, (round, report) -> {
+                    int stride = round == 2 ? 2 : 1;
+                    BufferManager bufMgr = new BufferManager(poolSize);
+                    bufMgr.setReadAhead(0);
+                    bufMgr.setCleanerRate(0);
+                    dirty(bufMgr,filename,order,stride);
+                    BufferPoolMetrics live = bufMgr.getMetrics();
+                    long start = System.nanoTime();
+                    if (round == 0)
+                        for (int pageNum : order)
+                            bufMgr.flushPage(pageNum,filename);
+                    bufMgr.checkpoint();
+                    long elapsed = System.nanoTime() - start;
+                    long writes = live.getWriteLatency().getCount();
+                    bufMgr.close();
+                    if (!report)
+                        return;
+
+                    System.out.printf("%-26s %5d pages %5d writes %8.2f ms%n",
+                                      labels[round], poolSize / stride, writes,
+                                      elapsed / 1e6);
+                });
+
+            // Misses in the other half of the file while a checkpoint
+            // runs, flat out and limited.
+            int[] rates = { 0, 20000 };
+            runWithWarmUp(rates.length, (round, report) -> {
+                    final BufferManager bufMgr = new BufferManager(poolSize);
+                    bufMgr.setReadAhead(0);
+                    bufMgr.setCleanerRate(0);
+                    bufMgr.setCheckpointRate(rates[round]);
+                    dirty(bufMgr,filename,order,1);
+                    final long[] times = new long[2]; // checkpoint, misses
+                    final int[] misses = new int[1];
+                    final boolean[] done = new boolean[1];
+                    runThreads(2, new Worker() {
+                            public void work(int id) throws IOException
+                            {
+                                if (id == 0)
+                                    checkpoint();
+                                else
+                                    miss();
+                            }
+
+                            private void checkpoint() throws IOException
+                            {
+                                long start = System.nanoTime();
+                                bufMgr.checkpoint();
+                                times[0] = System.nanoTime() - start;
+                                synchronized (done) {
+                                    done[0] = true;
+                                }
+                            }
+
+                            private void miss() throws IOException
+                            {
+                                Random random = new Random(42);
+                                long start = System.nanoTime();
+                                while (true)
+                                {
+                                    synchronized (done) {
+                                        if (done[0])
+                                            break;
+                                    }
+                                    int pageNum = poolSize + random.nextInt(poolSize);
+                                    while (bufMgr.pinPage(pageNum,filename,false) == null)
+                                        Thread.yield();
+                                    bufMgr.unpinPage(pageNum,filename,false);
+                                    misses[0]++;
+                                }
+                                times[1] = System.nanoTime() - start;
+                            }
+                        });
+                    bufMgr.close();
+                    if (!report)
+                        return;
+
+                    System.out.printf("checkpoint rate %-10s %8.2f ms, " +
+                                      "alongside %8.0f pins/s%n",
+                                      rates[round] == 0 ? "unlimited" :
+                                      rates[round] + "/s",
+                                      times[0] / 1e6, misses[0] * 1e9 / times[1]);
+                });
+        }
+
+        private static void dirty(BufferManager bufMgr, String filename,
+                                  List<Integer> order, int stride)
+            throws IOException
+        {
+            for (int pageNum : order)
+            {
+                Page page = bufMgr.pinPage(pageNum,filename,false);
+                page.data[0]++;
+                bufMgr.unpinPage(pageNum,filename,pageNum % stride == 0);
+            }
+        }
+    }
+
+
+    public static class LatchBench implements Benchmark
+    {
+        public void run(final String filename) throws Exception
+        {
+            System.out.println("------- Page latches -------");
+            final int ops = 1000000;
+            DBFile file = new DBFile(filename,16);
+            file.allocatePages(16);
+            file.close();
+
+            // Threads reading a record of one hot page, each read
+            // under its own pin, its own shared latch, or a single pin
+            // and an optimistic read.
+            final String[] labels = { "pin per read", "shared latch per read",
+                                      "optimistic read" };
+            for (final int threads : new int[] { 1, 4 })
+            {
+                runWithWarmUp(labels.length, (round, report) -> {
+                        final int mode = round;
+                        final BufferManager bufMgr = new BufferManager(16);
+                        bufMgr.setReadAhead(0);
+                        final int[] sums = new int[threads];
+                        long elapsed = runThreads(threads, new Worker() {
+                                public void work(int id) throws IOException
+                                {
+                                    int sum = 0;
+                                    if (mode == 2) {
+                                        Page page = bufMgr.pinPage(0,filename,false);
+                                        long stamp = bufMgr.tryOptimisticRead(0,filename);
+                                        for (int i=0; i < ops; i++)
+                                        {
+                                            int value;
+                                            do {
+                                                stamp = bufMgr.tryOptimisticRead(stamp);
+                                                value = page.data[i & 1023];
+                                            } while (!bufMgr.validate(stamp));
+                                            sum += value;
+                                        }
+                                        bufMgr.unpinPage(0,filename,false);
+                                    }
+                                    else {
+                                        for (int i=0; i < ops; i++)
+                                        {
+                                            Page page = mode == 0 ?
+                                                bufMgr.pinPage(0,filename,false) :
+                                                bufMgr.pinShared(0,filename);
+                                            sum += page.data[i & 1023];
+                                            if (mode == 0)
+                                                bufMgr.unpinPage(0,filename,false);
+                                            else
+                                                bufMgr.unpinShared(0,filename);
+                                        }
+                                    }
+                                    sums[id] = sum;
+                                }
+                            });
+                        bufMgr.close();
+                        if (!report)
+                            return;
+
+                        System.out.printf("%d thread%s  %-22s %8.1f ns/read%n",
+                                          threads, threads == 1 ? " " : "s",
+                                          labels[round],
+                                          (double)elapsed / ops / threads);
+                    });
+            }
+        }
+    }
+
+
+    public static class HandleBench implements Benchmark
+    {
+        public void run(final String filename) throws Exception
+        {
+            System.out.println("------- Page handles -------");
+            final int poolSize = 1024;
+            final int ops = 2000000;
+            DBFile file = new DBFile(filename,poolSize);
+            file.allocatePages(poolSize);
+            file.close();
+
+            // Pin, change and unpin resident pages, by page id or
+            // through handles. The two alternate three times and only
+            // the last pair is reported, so that both paths are
+            // measured once the JIT has settled on them. Each path has
+            // a method of its own, so neither is compiled with the
+            // other's profile.
+            String[] labels = { "pinPage/unpinPage", "PageHandle",
+                                "pinPage/unpinPage", "PageHandle",
+                                "pinPage/unpinPage", "PageHandle" };
+            for (int round=0; round < labels.length; round++)
+            {
+                BufferManager bufMgr = new BufferManager(poolSize);
+                bufMgr.setReadAhead(0);
+                bufMgr.setCleanerRate(0);
+                for (int i=0; i < poolSize; i++)
+                {
+                    bufMgr.pinPage(i,filename,false);
+                    bufMgr.unpinPage(i,filename,false);
+                }
+                long bytes = allocatedBytes();
+                long elapsed = round % 2 == 0
+                    ? byPageId(bufMgr, filename, poolSize, ops)
+                    : byHandle(bufMgr, filename, poolSize, ops);
+                bytes = allocatedBytes() - bytes;
+                bufMgr.close();
+                if (round < labels.length - 2)
+                    continue;
+
+                System.out.printf("%-18s %8.1f ns/op %8.2f bytes/op%n",
+                                  labels[round], (double)elapsed / ops,
+                                  (double)bytes / ops);
+            }
+        }
+
+        private long byPageId(BufferManager bufMgr, String filename,
+                              int poolSize, int ops)
+            throws IOException
+        {
+            Random random = new Random(42);
+            long start = System.nanoTime();
+            for (int i=0; i < ops; i++)
+            {
+                int pageNum = random.nextInt(poolSize);
+                Page page = bufMgr.pinPage(pageNum,filename,false);
+                page.data[0]++;
+                bufMgr.unpinPage(pageNum,filename,true);
+            }
+            return System.nanoTime() - start;
+        }
+
+        private long byHandle(BufferManager bufMgr, String filename,
+                              int poolSize, int ops)
+            throws IOException
+        {
+            Random random = new Random(42);
+            long start = System.nanoTime();
+            for (int i=0; i < ops; i++)
+            {
+                int pageNum = random.nextInt(poolSize);
+                try (PageHandle handle = bufMgr.pinPage(pageNum,filename))
+                {
+                    handle.page().data[0]++;
+                    handle.markDirty();
+                }
+            }
+            return System.nanoTime() - start;
+        }
+    }
+
+
+    public static class WarmRestartBench implements Benchmark
+    {
+        public void run(final String filename) throws Exception
+        {
+            System.out.println("------- Warm restart -------");
+            final int poolSize = 4096;
+            final int numPages = 4 * poolSize;
+            final int extent = 64;
+            final int ops = 50000;
+            String list = filename + ".hot";
+            DBFile file = new DBFile(filename,numPages);
+            file.allocatePages(numPages);
+            file.close();
+
+            // A working set of a pool's worth of pages, in extents
+            // scattered over the file, used before a restart and after
+            // it.
+            List<Integer> extents = new ArrayList<Integer>();
+            for (int i=0; i < numPages / extent; i++)
+                extents.add(i);
+            Collections.shuffle(extents, new Random(42));
+            int[] hot = new int[poolSize];
+            for (int i=0; i < poolSize; i++)
+                hot[i] = extents.get(i / extent) * extent + i % extent;
+            BufferManager before = new BufferManager(poolSize);
+            before.setReadAhead(0);
+            before.setHotPageFile(list,0);
+            for (int pageNum : hot)
+            {
+                before.pinPage(pageNum,filename,false);
+                before.unpinPage(pageNum,filename,false);
+            }
+            before.close();
+
+            // Reload the list, then serve pins of the working set; or
+            // serve them while the list is reloaded.
+            String[] labels = { "cold start", "warm start",
+                                "warm start, 20000/s",
+                                "serving during reload" };
+            try {
+                runWithWarmUp(labels.length, (round, report) -> {
+                        BufferManager bufMgr = new BufferManager(poolSize);
+                        bufMgr.setReadAhead(0);
+                        BufferPoolMetrics live = bufMgr.getMetrics();
+                        long start = System.nanoTime();
+                        if (round >= 1)
+                        {
+                            bufMgr.setWarmUpRate(round == 2 ? 20000 : 0);
+                            bufMgr.loadHotPages(list);
+                            while (round < 3 && bufMgr.isWarmingUp())
+                                Thread.sleep(1);
+                        }
+                        long warmUp = System.nanoTime() - start;
+                        long warmReads = live.getReadLatency().getCount();
+                        Random random = new Random(7);
+                        start = System.nanoTime();
+                        for (int i=0; i < ops; i++)
+                        {
+                            int pageNum = hot[random.nextInt(hot.length)];
+                            while (bufMgr.pinPage(pageNum,filename,false) == null)
+                                Thread.yield();
+                            bufMgr.unpinPage(pageNum,filename,false);
+                        }
+                        long elapsed = System.nanoTime() - start;
+                        BufferPoolMetrics.Snapshot metrics = bufMgr.metrics();
+                        long reads = live.getReadLatency().getCount();
+                        bufMgr.close();
+                        if (!report)
+                            return;
+
+                        System.out.printf("%-22s reload %8.2f ms, %4d reads; " +
+                                          "then %8.2f ms for %d pins, " +
+                                          "%5.1f%% hits, %4d reads%n",
+                                          labels[round], warmUp / 1e6, warmReads,
+                                          elapsed / 1e6, ops,
+                                          100 * metrics.getHitRatio(),
+                                          reads - warmReads);
+                    });
+            }
+            finally {
+                new File(list).delete();
+            }
+        }
+    }
+
+
+    public static interface Round
+    {
+        void run(int round, boolean report) throws Exception;
+    }
+
+    /**
+     * Runs a benchmark's rounds in order, after running the first of
+     * them once more without reporting it. The extra run lets the JIT
+     * compile the code the rounds share, so that the first round
+     * reported is not charged for the compilation.
+     * @param rounds number of rounds.
+     * @param round the code of one round; told the round's number and
+     * whether to report its results.
+     */
+    public static void runWithWarmUp(int rounds, Round round)
+        throws Exception
+    {
+        round.run(0, false);
+        for (int i=0; i < rounds; i++)
+            round.run(i, true);
+    }
+
+
+    public static interface Worker
+    {
+        void work(int id) throws Exception;
+    }
+
+    /**
+     * Runs a worker on several threads at once.
+     * @param threads number of threads.
+     * @param worker the work each thread does; told its thread number.
+     * @return elapsed time in nanoseconds.
+     */
+    public static long runThreads(int threads, final Worker worker)
+        throws Exception
+    {
+        Thread[] running = new Thread[threads];
+        final Exception[] failure = new Exception[1];
+        long start = System.nanoTime();
+        for (int i=0; i < threads; i++)
+        {
+            final int id = i;
+            running[i] = new Thread() {
+                    public void run()
+                    {
+                        try {
+                            worker.work(id);
+                        }
+                        catch (Exception e) {
+                            failure[0] = e;
+                        }
+                    }
+                };
+            running[i].start();
+        }
+        for (int i=0; i < threads; i++)
+            running[i].join();
+        if (failure[0] != null)
+            throw failure[0];
+        return System.nanoTime() - start;
+    }
+
+
+    /**
+     * Prints one result line.
+     * @param label name of the configuration measured.
+     * @param nanos total elapsed time.
+     * @param ops number of page operations performed.
+     * @param calls read and write system calls made meanwhile, as
+     * measured by ioCalls, or a negative number if unknown.
+     */
+    public static void report(String label, long nanos, int ops, long calls)
+    {
+        if (calls < 0 || ioCalls() < 0)
+            System.out.printf("%-24s %10.2f us/page%n",
+                              label, nanos / 1000.0 / ops);
+        else
+            System.out.printf("%-24s %10.2f us/page  %6.2f reads+writes/page%n",
+                              label, nanos / 1000.0 / ops,
+                              (double)calls / ops);
+    }
+
+    /**
+     * Returns the number of read and write system calls the process
+     * has made, of any kind (read, pread, readv, write, ...), from
+     * /proc/self/io. The count covers every thread, so it is only
+     * meaningful around a loop that runs alone.
+     * @return the number of calls, or -1 where /proc/self/io is not
+     * available.
+     */
+    public static long ioCalls()
+    {
+        long calls = 0;
+        try (BufferedReader in =
+                 new BufferedReader(new FileReader("/proc/self/io"))) {
+            String line;
+            while ((line = in.readLine()) != null)
+                if (line.startsWith("syscr:") || line.startsWith("syscw:"))
+                    calls += Long.parseLong(line.substring(6).trim());
+        }
+        catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+        return calls;
+    }
+
+
+    public static final String FILENAME = "__bench";
+
+
+    public static void runBench(Benchmark bench)
+    {
+        try
+        {
+            bench.run(FILENAME);
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+
+        DBFile.erase(FILENAME);
+    }
+
+
+    public static void main(String[] args)
+    {
+        System.out.println("Running buffer manager benchmarks.");
+
+        DBFile.erase(FILENAME);
+
+        runBench(new FileHandleBench());
+        runBench(new MappedBench());
+        runBench(new AllocationBench());
+        runBench(new GrowthBench());
+        runBench(new VectoredBench());
+        runBench(new AsyncBench());
+        runBench(new DirectBench());
+        runBench(new PageSizeBench());
+        runBench(new LogBench());
+        runBench(new CompressionBench());
+        runBench(new PageLookupBench());
+        runBench(new PoolSizeBench());
+        runBench(new ConcurrencyBench());
+        runBench(new PolicyBench());
+        runBench(new CleanerBench());
+        runBench(new ArenaBench());
+        runBench(new PrefetchBench());
+        runBench(new StrategyBench());
+        runBench(new SingleFlightBench());
+        runBench(new ResizeBench());
+        runBench(new CheckpointBench());
+        runBench(new LatchBench());
+        runBench(new HandleBench());
+        runBench(new WarmRestartBench());
+
+        DBFile.erase(FILENAME);
+    }
+}
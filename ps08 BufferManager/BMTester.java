@@ -1,4 +1,11 @@
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.locks.LockSupport;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 
 public class BMTester
@@ -17,6 +24,60 @@ public class BMTester
         }
     }
 
+    /**
+     * Pins and unpins a page, checking the number stamped in it.
+     */
+    static void touch(BufferManager bufMgr, String filename, int pageNum)
+        throws IOException
+    {
+        touch(bufMgr,filename,pageNum,null);
+    }
+
+    /**
+     * Pins and unpins a page under an access strategy, checking the
+     * number stamped in it.
+     * @param strategy the strategy, or null to pin as usual.
+     */
+    static void touch(BufferManager bufMgr, String filename, int pageNum,
+                      BufferAccessStrategy strategy)
+        throws IOException
+    {
+        Page page = bufMgr.pinPage(pageNum,filename,false,strategy);
+        if (page == null)
+            throw new TestFailedException("Unable to pin page");
+        if (page.buffer().getInt(0) != pageNum)
+            throw new TestFailedException("Page content incorrect");
+        bufMgr.unpinPage(pageNum,filename,false);
+    }
+
+    /**
+     * Pins a page, writes its number into it and unpins it dirty.
+     */
+    static void stamp(BufferManager bufMgr, String filename, int pageNum)
+        throws IOException
+    {
+        Page page = bufMgr.pinPage(pageNum,filename,false);
+        if (page == null)
+            throw new TestFailedException("Unable to pin page");
+        page.buffer().putInt(0,pageNum);
+        bufMgr.unpinPage(pageNum,filename,true);
+    }
+
+    /**
+     * Reads a page straight from the database, bypassing any pool,
+     * and checks that its number has been written into it.
+     */
+    static void checkOnDisk(String filename, int pageNum) throws IOException
+    {
+        DBFile db = new DBFile(filename);
+        Page page = new Page();
+        db.readPage(pageNum,page);
+        db.close();
+        if (page.buffer().getInt(0) != pageNum)
+            throw new TestFailedException("Page " + pageNum + " of " +
+                                          filename + " not written");
+    }
+
 
     //----------------------------------------------------
     // test 1
@@ -83,6 +144,12 @@ public class BMTester
         {
             System.out.println("------- Test 2 -------");
 
+            // Frames the cleaner is writing are passed over, and pages
+            // read ahead take frames, either of which would change the
+            // frames chosen below.
+            bufMgr.setCleanerRate(0);
+            bufMgr.setReadAhead(0);
+
             // Allocate some pages
             bufMgr.newPage(5*bufMgr.poolSize(),filename);
             bufMgr.unpinPage(0,filename,false);
@@ -166,18 +233,1696 @@ public class BMTester
     }
 
 
+    //-----------------------------------------------------------
+    // test 3
+    //      Testing that a database grows when allocation runs out
+    //      of free pages
+    //------------------------------------------------------------
+    public static class Test3 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 3 -------");
+
+            // Use up the whole file, then ask for more.
+            DBFile db = new DBFile(filename);
+            int size = db.getNumPages();
+            db.close();
+            bufMgr.newPage(size,filename);
+            bufMgr.unpinPage(0,filename,false);
+
+            Pair<Integer,Page> run = bufMgr.newPage(3,filename);
+            if (run == null)
+                throw new TestFailedException("Unable to grow file");
+            System.out.println("Grew file, new run at page " + run.first);
+            if (run.first != size)
+                throw new TestFailedException("Run not placed at old end");
+
+            byte[] data = ("This is test 3").getBytes();
+            System.arraycopy(data,0,run.second.data,0,data.length);
+            bufMgr.unpinPage(run.first,filename,true);
+            bufMgr.flushPage(run.first,filename);
+
+            db = new DBFile(filename);
+            int grown = db.getNumPages();
+            db.close();
+            System.out.println("File now has " + grown + " pages");
+            if (grown < size + 3)
+                throw new TestFailedException("File did not grow on disk");
+
+            Page page = bufMgr.pinPage(run.first,filename,false);
+            if (!new String(page.data).startsWith("This is test 3"))
+                throw new TestFailedException("Page content incorrect");
+            bufMgr.unpinPage(run.first,filename,false);
+        }
+    }
+
+
+    //-----------------------------------------------------------
+    // test 4
+    //      Testing a database created with a larger page size
+    //------------------------------------------------------------
+    public static class Test4 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 4 -------");
+
+            int pageSize = 8192;
+            DBFile db = new DBFile(filename,50,pageSize);
+            db.close();
+            db = new DBFile(filename);
+            if (db.getPageSize() != pageSize)
+                throw new TestFailedException("Page size not recorded");
+            db.close();
+
+            Pair<Integer,Page> run = bufMgr.newPage(40,filename);
+            if (run.second.data.length != pageSize)
+                throw new TestFailedException("Pool page has wrong size");
+            bufMgr.unpinPage(run.first,filename,false);
+
+            // Write past the first kilobyte and force the pages out
+            // of the pool by cycling through more pages than it holds.
+            for (int i=1; i < 40; i++)
+            {
+                Page page = bufMgr.pinPage(i,filename,false);
+                byte[] data = ("Test 4 page " + i).getBytes();
+                System.arraycopy(data,0,page.data,pageSize-100,data.length);
+                bufMgr.unpinPage(i,filename,true);
+            }
+            for (int i=1; i < 40; i++)
+            {
+                Page page = bufMgr.pinPage(i,filename,false);
+                String orig = "Test 4 page " + i;
+                String readBack = new String(page.data,pageSize-100,
+                                             orig.length());
+                if (!readBack.equals(orig))
+                    throw new TestFailedException("Page content incorrect");
+                bufMgr.unpinPage(i,filename,false);
+            }
+            System.out.println("Read back 39 pages of " + pageSize + " bytes");
+        }
+    }
+
+
+    //-----------------------------------------------------------
+    // test 5
+    //      Testing that logged changes survive a crash before the
+    //      pages themselves were written
+    //------------------------------------------------------------
+    public static class Test5 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 5 -------");
+
+            String logName = filename + ".log";
+            (new File(logName)).delete();
+
+            // Crash: a second process allocates and changes pages,
+            // commits and halts without flushing anything else.
+            String java = System.getProperty("java.home") + File.separator +
+                "bin" + File.separator + "java";
+            Process crashed = new ProcessBuilder(java, "-cp",
+                                                 System.getProperty("java.class.path"),
+                                                 "BMTester$Test5",
+                                                 filename, logName)
+                .inheritIO().start();
+            if (crashed.waitFor() != 0)
+                throw new TestFailedException("Crashing process failed");
+
+            // Restart on the same log, with nothing of the database
+            // left in memory, so recovery has to work from disk.
+            DBFileCache.invalidateAll(filename);
+            LogManager log = new LogManager(logName);
+            BufferManager restarted =
+                new BufferManager(NUMBUF,DBFileCache.Mode.CHANNEL,log);
+            restarted.close();
+            if (log.skippedImages() != 0)
+                throw new TestFailedException("Logged pages skipped");
+            if (log.size() != 0)
+                throw new TestFailedException("Log not emptied");
+            log.close();
+
+            DBFileCache.invalidateAll(filename);
+            DBFile db = new DBFile(filename);
+            Page page = new Page();
+            for (int i=1; i < 10; i++)
+            {
+                db.readPage(i,page);
+                String orig = "This is test 5 for page " + i;
+                if (!new String(page.data).startsWith(orig))
+                    throw new TestFailedException("Page not recovered");
+            }
+            db.close();
+            System.out.println("Recovered 9 pages from the log");
+            (new File(logName)).delete();
+        }
+
+        /**
+         * The crashing side of the test: commits changes to new pages
+         * and halts, exiting with 1 if the pages reached the database
+         * before the crash.
+         */
+        public static void main(String[] args) throws Exception
+        {
+            String filename = args[0];
+            LogManager log = new LogManager(args[1]);
+            BufferManager bufMgr =
+                new BufferManager(NUMBUF,DBFileCache.Mode.CHANNEL,log);
+            // Keep the cleaner from writing pages ahead of the crash.
+            bufMgr.setCleanerRate(0);
+
+            bufMgr.newPage(10,filename);
+            bufMgr.unpinPage(0,filename,false);
+            for (int i=1; i < 10; i++)
+            {
+                Page page = bufMgr.pinPage(i,filename,false);
+                byte[] data = ("This is test 5 for page " + i).getBytes();
+                System.arraycopy(data,0,page.data,0,data.length);
+                bufMgr.unpinPage(i,filename,true);
+            }
+            bufMgr.commit();
+            System.out.println("Committed after " + log.syncCount() +
+                               " log sync(s)");
+
+            // The pages are only in the log, not yet in the database.
+            DBFile db = DBFileCache.shared().acquire(filename);
+            Page page = new Page();
+            db.readPage(5,page);
+            boolean written =
+                new String(page.data).startsWith("This is test 5");
+            if (written)
+                System.out.println("Page written before checkpoint");
+            Runtime.getRuntime().halt(written ? 1 : 0);
+        }
+    }
+
+
+    //-----------------------------------------------------------
+    // test 6
+    //      Testing that pages with the same number in different
+    //      databases are kept apart
+    //------------------------------------------------------------
+    public static class Test6 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 6 -------");
+
+            String other = filename + "2";
+            DBFile db = new DBFile(other,NUMBUF);
+            db.close();
+            try {
+                bufMgr.newPage(4,filename);
+                bufMgr.unpinPage(0,filename,false);
+                bufMgr.newPage(4,other);
+                bufMgr.unpinPage(0,other,false);
+
+                String[] names = { filename, other };
+                for (String name : names)
+                {
+                    Page page = bufMgr.pinPage(2,name,false);
+                    byte[] data = ("This is test 6 for " + name).getBytes();
+                    System.arraycopy(data,0,page.data,0,data.length);
+                    bufMgr.unpinPage(2,name,true);
+                }
+                if (bufMgr.findFrame(2,filename) == bufMgr.findFrame(2,other))
+                    throw new TestFailedException("Pages share a frame");
+                for (String name : names)
+                {
+                    Page page = bufMgr.pinPage(2,name,false);
+                    String orig = "This is test 6 for " + name;
+                    System.out.println("PAGE[2] of " + name + ": " +
+                                       new String(page.data,0,orig.length()));
+                    if (!new String(page.data).startsWith(orig))
+                        throw new TestFailedException("Page content incorrect");
+                    bufMgr.unpinPage(2,name,false);
+                }
+            }
+            finally {
+                DBFile.erase(other);
+            }
+        }
+    }
+
+
+    //-----------------------------------------------------------
+    // test 7
+    //      Stress test: many threads pinning, changing and unpinning
+    //      pages of a working set several times the pool size, with
+    //      checkpoints running alongside
+    //------------------------------------------------------------
+    public static class Test7 implements Testable
+    {
+        public void test(final BufferManager bufMgr, final String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 7 -------");
+
+            final int numPages = 4 * NUMBUF;
+            final int threads = 8;
+            final int ops = 2000;
+            bufMgr.newPage(numPages,filename);
+            bufMgr.unpinPage(0,filename,false);
+            for (int i=0; i < numPages; i++)
+            {
+                Page page = bufMgr.pinPage(i,filename,false);
+                ByteBuffer.wrap(page.data).putInt(0,i);
+                bufMgr.unpinPage(i,filename,true);
+            }
+
+            // Each thread owns one counter in every page, so threads
+            // never write the same bytes and every update must survive
+            // eviction and reloading.
+            final int[][] counts = new int[threads][numPages];
+            final Exception[] failure = new Exception[1];
+            final boolean[] done = new boolean[1];
+            Thread[] workers = new Thread[threads + 1];
+            for (int t=0; t < threads; t++)
+            {
+                final int id = t;
+                workers[t] = new Thread() {
+                        public void run()
+                        {
+                            try {
+                                work(bufMgr,filename,id,numPages,ops,counts[id]);
+                            }
+                            catch (Exception e) {
+                                synchronized (failure) {
+                                    failure[0] = e;
+                                }
+                            }
+                        }
+                    };
+            }
+            workers[threads] = new Thread() {
+                    public void run()
+                    {
+                        try {
+                            while (!done[0])
+                            {
+                                bufMgr.checkpoint();
+                                Thread.sleep(5);
+                            }
+                        }
+                        catch (Exception e) {
+                            synchronized (failure) {
+                                failure[0] = e;
+                            }
+                        }
+                    }
+                };
+            for (Thread worker : workers)
+                worker.start();
+            for (int t=0; t < threads; t++)
+                workers[t].join();
+            done[0] = true;
+            workers[threads].join();
+            synchronized (failure) {
+                if (failure[0] != null)
+                    throw failure[0];
+            }
+
+            bufMgr.checkpoint();
+            DBFile db = DBFileCache.shared().acquire(filename);
+            try {
+                Page page = new Page();
+                for (int i=0; i < numPages; i++)
+                {
+                    db.readPage(i,page);
+                    ByteBuffer buf = ByteBuffer.wrap(page.data);
+                    if (buf.getInt(0) != i)
+                        throw new TestFailedException("Page " + i +
+                                                      " holds another page");
+                    for (int t=0; t < threads; t++)
+                        if (buf.getInt(4 + 4*t) != counts[t][i])
+                            throw new TestFailedException("Lost update to page " + i);
+                }
+            }
+            finally {
+                DBFileCache.shared().release(db);
+            }
+            System.out.println(threads + " threads made " + threads * ops +
+                               " updates to " + numPages + " pages");
+        }
+
+        private static void work(BufferManager bufMgr, String filename,
+                                 int id, int numPages, int ops, int[] counts)
+            throws IOException
+        {
+            Random random = new Random(id);
+            for (int i=0; i < ops; i++)
+            {
+                int pageNum = random.nextInt(numPages);
+                Page page = bufMgr.pinPage(pageNum,filename,false);
+                while (page == null)
+                {
+                    // Every frame is momentarily pinned or busy.
+                    Thread.yield();
+                    page = bufMgr.pinPage(pageNum,filename,false);
+                }
+                ByteBuffer buf = ByteBuffer.wrap(page.data);
+                if (buf.getInt(0) != pageNum)
+                    throw new TestFailedException("Pinned the wrong page");
+                int offset = 4 + 4*id;
+                if (buf.getInt(offset) != counts[pageNum])
+                    throw new TestFailedException("Lost update to page " +
+                                                  pageNum);
+                buf.putInt(offset, ++counts[pageNum]);
+                bufMgr.unpinPage(pageNum,filename,true);
+            }
+        }
+    }
+
+
+    //-----------------------------------------------------------
+    // test 8
+    //      Testing each replacement policy: pages keep their contents
+    //      through eviction, a pinned page is never replaced, and the
+    //      scan-resistant policies keep a hot set through a long scan
+    //------------------------------------------------------------
+    public static class Test8 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 8 -------");
+
+            ReplacementPolicy[] policies = {
+                new ReplacementPolicy.Clock(), new ReplacementPolicy.LRU(),
+                new ReplacementPolicy.LRUK(), new ReplacementPolicy.TwoQ(),
+                new ReplacementPolicy.ARC()
+            };
+            int numPages = 8 * NUMBUF;
+            int hot = 5;
+            for (ReplacementPolicy policy : policies)
+            {
+                DBFile.erase(filename);
+                DBFile db = new DBFile(filename,numPages);
+                db.close();
+                bufMgr = new BufferManager(NUMBUF,DBFileCache.Mode.CHANNEL,
+                                           policy);
+                bufMgr.newPage(numPages,filename);
+                bufMgr.unpinPage(0,filename,false);
+                for (int i=1; i < numPages; i++)
+                {
+                    Page page = bufMgr.pinPage(i,filename,false);
+                    ByteBuffer.wrap(page.data).putInt(0,i);
+                    bufMgr.unpinPage(i,filename,true);
+                }
+
+                // Pages 1 to hot are used between short scans, then
+                // left alone during a scan four times the pool size.
+                int next = hot + 2;
+                for (int round=0; round < 8; round++)
+                {
+                    for (int i=1; i <= hot; i++)
+                        touch(bufMgr,filename,i);
+                    for (int i=0; i < NUMBUF/2; i++)
+                        touch(bufMgr,filename,next++);
+                }
+                Page pinned = bufMgr.pinPage(hot+1,filename,false);
+                int frame = bufMgr.findFrame(hot+1,filename);
+                for (int i=0; i < 4*NUMBUF; i++)
+                    touch(bufMgr,filename,next++ % (numPages - hot - 2) + hot + 2);
+                if (bufMgr.findFrame(hot+1,filename) != frame)
+                    throw new TestFailedException(policy.name() +
+                                                  " replaced a pinned page");
+                bufMgr.unpinPage(hot+1,filename,false);
+
+                int kept = 0;
+                for (int i=1; i <= hot; i++)
+                    if (bufMgr.findFrame(i,filename) >= 0)
+                        kept++;
+                System.out.println(policy.name() + " kept " + kept + " of " +
+                                   hot + " hot pages through the scan");
+                if (!(policy instanceof ReplacementPolicy.Clock ||
+                      policy instanceof ReplacementPolicy.LRU) && kept != hot)
+                    throw new TestFailedException(policy.name() +
+                                                  " let a scan evict hot pages");
+
+                for (int i=1; i < numPages; i++)
+                    touch(bufMgr,filename,i);
+                bufMgr.close();
+            }
+        }
+    }
+
+
+    //-----------------------------------------------------------
+    // test 9
+    //      Testing that only pages unpinned as dirty are written, and
+    //      that the page cleaner writes them without being asked
+    //------------------------------------------------------------
+    public static class Test9 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 9 -------");
+
+            bufMgr.setCleanerRate(0);
+            bufMgr.newPage(NUMBUF,filename);
+            bufMgr.unpinPage(0,filename,false);
+            for (int i=1; i < NUMBUF; i++)
+            {
+                bufMgr.pinPage(i,filename,false);
+                bufMgr.unpinPage(i,filename,false);
+            }
+            if (bufMgr.dirtyFrames() != 0)
+                throw new TestFailedException("Read-only pins made " +
+                                              bufMgr.dirtyFrames() +
+                                              " frames dirty");
+
+            int changed = 5;
+            for (int i=1; i <= changed; i++)
+            {
+                Page page = bufMgr.pinPage(i,filename,false);
+                byte[] data = ("This is test 9 for page " + i).getBytes();
+                System.arraycopy(data,0,page.data,0,data.length);
+                bufMgr.unpinPage(i,filename,true);
+            }
+            if (bufMgr.dirtyFrames() != changed)
+                throw new TestFailedException("Expected " + changed +
+                                              " dirty frames, found " +
+                                              bufMgr.dirtyFrames());
+            if (onDisk(filename,changed) != 0)
+                throw new TestFailedException("Page written on unpin");
+
+            // Ask for every dirty page to be cleaned, then wait.
+            bufMgr.setDirtyWatermarks(0,0);
+            bufMgr.setCleanerRate(100000);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (bufMgr.dirtyFrames() > 0 &&
+                   System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            if (onDisk(filename,changed) != changed)
+                throw new TestFailedException("Cleaner did not write " +
+                                              "the dirty pages");
+            System.out.println("Cleaner wrote " + changed + " dirty pages");
+        }
+
+        /**
+         * Counts the pages among 1 to count whose change has reached
+         * the database.
+         */
+        private static int onDisk(String filename, int count)
+            throws IOException
+        {
+            DBFile db = DBFileCache.shared().acquire(filename);
+            try {
+                Page page = new Page();
+                int found = 0;
+                for (int i=1; i <= count; i++)
+                {
+                    db.readPage(i,page);
+                    if (new String(page.data).startsWith("This is test 9 for page " + i))
+                        found++;
+                }
+                return found;
+            }
+            finally {
+                DBFileCache.shared().release(db);
+            }
+        }
+    }
+
+
+    //-----------------------------------------------------------
+    // test 10
+    //      Testing a buffer pool whose frames are carved out of an
+    //      off-heap arena, in each file mode that can use it
+    //------------------------------------------------------------
+    public static class Test10 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 10 -------");
+
+            DBFileCache.Mode[] modes = {
+                DBFileCache.Mode.CHANNEL, DBFileCache.Mode.MAPPED,
+                DBFileCache.Mode.DIRECT
+            };
+            int numPages = 4 * NUMBUF;
+            for (DBFileCache.Mode mode : modes)
+            {
+                DBFile.erase(filename);
+                DBFile db = new DBFile(filename,numPages,4096);
+                db.close();
+                bufMgr = new BufferManager(NUMBUF,mode,null,
+                                           new ReplacementPolicy.Clock(),4096);
+                try {
+                    bufMgr.newPage(numPages,filename);
+                    bufMgr.unpinPage(0,filename,false);
+                    for (int i=1; i < numPages; i++)
+                    {
+                        Page page = bufMgr.pinPage(i,filename,false);
+                        if (page.data != null || !page.buffer().isDirect())
+                            throw new TestFailedException("Page is not " +
+                                                          "off the heap");
+                        page.buffer().put(("This is test 10 for page " + i).getBytes());
+                        bufMgr.unpinPage(i,filename,true);
+                    }
+                    for (int i=1; i < numPages; i++)
+                    {
+                        Page page = bufMgr.pinPage(i,filename,false);
+                        byte[] data = new byte[page.size()];
+                        page.buffer().get(data);
+                        if (!new String(data).startsWith("This is test 10 for page " + i))
+                            throw new TestFailedException("Page content incorrect");
+                        bufMgr.unpinPage(i,filename,false);
+                    }
+                }
+                finally {
+                    bufMgr.close();
+                }
+                System.out.println(mode + ": " + (numPages - 1) +
+                                   " pages through a " + NUMBUF +
+                                   "-frame arena");
+            }
+
+            // Pages bigger than the frames do not fit.
+            DBFile.erase(filename);
+            DBFile db = new DBFile(filename,10,8192);
+            db.close();
+            bufMgr = new BufferManager(NUMBUF,DBFileCache.Mode.CHANNEL,null,
+                                       new ReplacementPolicy.Clock(),4096);
+            try {
+                bufMgr.newPage(10,filename);
+                throw new TestFailedException("Pinned a page bigger " +
+                                              "than its frame");
+            }
+            catch (DBFile.BadPageSizeException e) {
+                if (bufMgr.findFrame(0,filename) >= 0)
+                    throw new TestFailedException("Failed read left a " +
+                                                  "page in the pool");
+            }
+            finally {
+                bufMgr.close();
+            }
+        }
+    }
+
+
+    //-----------------------------------------------------------
+    // test 11
+    //      Testing explicit prefetches, sequential read-ahead, and the
+    //      count of prefetched pages used and wasted
+    //------------------------------------------------------------
+    public static class Test11 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 11 -------");
+
+            int numPages = 5 * NUMBUF;
+            bufMgr.setReadAhead(0);
+            bufMgr.newPage(numPages,filename);
+            bufMgr.unpinPage(0,filename,false);
+            for (int i=1; i < numPages; i++)
+            {
+                Page page = bufMgr.pinPage(i,filename,false);
+                ByteBuffer.wrap(page.data).putInt(0,i);
+                bufMgr.unpinPage(i,filename,true);
+            }
+            bufMgr.checkpoint();
+            bufMgr.close();
+
+            // An explicit hint loads pages without pinning them.
+            bufMgr = new BufferManager(NUMBUF);
+            try {
+                bufMgr.setReadAhead(0);
+                bufMgr.prefetch(filename,1,5);
+                awaitPages(bufMgr,filename,1,5);
+                for (int i=1; i <= 5; i++)
+                    touch(bufMgr,filename,i);
+                BufferPoolMetrics.Snapshot metrics = bufMgr.metrics();
+                if (metrics.getPrefetchedPages() != 5 || metrics.getPrefetchHits() != 5)
+                    throw new TestFailedException("Expected 5 prefetched " +
+                                                  "pages used, found " +
+                                                  metrics.getPrefetchHits() +
+                                                  " of " +
+                                                  metrics.getPrefetchedPages());
+
+                // Prefetched pages freed before use are wasted, and
+                // the holes they leave are skipped.
+                bufMgr.prefetch(filename,6,3);
+                awaitPages(bufMgr,filename,6,3);
+                for (int i=6; i < 9; i++)
+                    bufMgr.freePage(i,filename);
+                if (bufMgr.metrics().getPrefetchWasted() != 3)
+                    throw new TestFailedException("Expected 3 prefetched " +
+                                                  "pages wasted, found " +
+                                                  bufMgr.metrics().getPrefetchWasted());
+                bufMgr.prefetch(filename,6,4);
+                awaitPages(bufMgr,filename,9,1);
+                if (bufMgr.metrics().getPrefetchedPages() != 9)
+                    throw new TestFailedException("Prefetched pages " +
+                                                  "that are not allocated");
+            }
+            finally {
+                bufMgr.close();
+            }
+
+            // A sequential scan is read ahead of itself, slowly enough
+            // that the prefetcher keeps ahead.
+            bufMgr = new BufferManager(NUMBUF);
+            try {
+                for (int i=10; i < numPages; i++)
+                {
+                    touch(bufMgr,filename,i);
+                    Thread.sleep(1);
+                }
+                BufferPoolMetrics.Snapshot metrics = bufMgr.metrics();
+                if (metrics.getPrefetchHits() == 0)
+                    throw new TestFailedException("Scan was not read ahead");
+                System.out.println("Read ahead " + metrics.getPrefetchedPages() +
+                                   " pages of a " + (numPages - 10) +
+                                   "-page scan, " + metrics.getPrefetchHits() +
+                                   " used");
+            }
+            finally {
+                bufMgr.close();
+            }
+        }
+
+        /**
+         * Waits for a run of pages to be loaded into the pool.
+         */
+        private static void awaitPages(BufferManager bufMgr, String filename,
+                                       int startPage, int count)
+            throws InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + 5000;
+            for (int i=startPage; i < startPage + count; i++)
+                while (bufMgr.findFrame(i,filename) < 0)
+                {
+                    if (System.currentTimeMillis() > deadline)
+                        throw new TestFailedException("Page " + i +
+                                                      " was not prefetched");
+                    Thread.sleep(1);
+                }
+        }
+    }
+
+
+    //-----------------------------------------------------------
+    // test 12
+    //      Testing that bulk reads and writes under an access
+    //      strategy keep to their rings and leave hot pages alone
+    //------------------------------------------------------------
+    public static class Test12 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 12 -------");
+
+            int numPages = 5 * NUMBUF;
+            int hot = 5;
+            bufMgr.setReadAhead(0);
+
+            // A bulk load writes its pages through a ring of its own.
+            BufferAccessStrategy load =
+                new BufferAccessStrategy(BufferAccessStrategy.Type.BULK_WRITE);
+            for (int i=0; i < numPages; i++)
+            {
+                Pair<Integer,Page> pair = bufMgr.newPage(1,filename,load);
+                if (pair == null || pair.first != i)
+                    throw new TestFailedException("Bulk load could not " +
+                                                  "allocate page " + i);
+                ByteBuffer.wrap(pair.second.data).putInt(0,i);
+                bufMgr.unpinPage(i,filename,true);
+            }
+            int ring = load.getRingSize();
+            if (ring != NUMBUF / 8)
+                throw new TestFailedException("Ring of " + ring + " frames");
+            bufMgr.checkpoint();
+
+            for (int i=1; i <= hot; i++)
+                touch(bufMgr,filename,i,null);
+            BufferAccessStrategy scan =
+                new BufferAccessStrategy(BufferAccessStrategy.Type.BULK_READ);
+            for (int i=hot + 1; i < numPages; i++)
+                touch(bufMgr,filename,i,scan);
+            for (int i=1; i <= hot; i++)
+                if (bufMgr.findFrame(i,filename) < 0)
+                    throw new TestFailedException("Scan evicted hot page " + i);
+            // The load's ring still holds the last pages it wrote.
+            int scanned = 0;
+            for (int i=hot + 1; i < numPages; i++)
+                if (bufMgr.findFrame(i,filename) >= 0)
+                    scanned++;
+            if (scanned > scan.getRingSize() + ring)
+                throw new TestFailedException("Scan kept " + scanned +
+                                              " pages in the pool");
+
+            // Without a strategy the same scan takes the whole pool.
+            for (int i=hot + 1; i < numPages; i++)
+                touch(bufMgr,filename,i,null);
+            int kept = 0;
+            for (int i=1; i <= hot; i++)
+                if (bufMgr.findFrame(i,filename) >= 0)
+                    kept++;
+            System.out.println("Bulk scan kept " + hot + " of " + hot +
+                               " hot pages, plain scan " + kept);
+        }
+    }
+
+
+    //-----------------------------------------------------------
+    // test 13
+    //      Testing the counters and latency histograms, and
+    //      reading them through JMX
+    //------------------------------------------------------------
+    public static class Test13 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 13 -------");
+
+            // Histogram percentiles are the tops of their buckets.
+            LatencyHistogram histogram = new LatencyHistogram();
+            if (histogram.percentile(50) != 0 || histogram.getMax() != 0)
+                throw new TestFailedException("Empty histogram not empty");
+            for (int i=1; i <= 100; i++)
+                histogram.record(i * 1000);
+            if (histogram.getCount() != 100)
+                throw new TestFailedException("Histogram count incorrect");
+            long p50 = histogram.percentile(50);
+            long p99 = histogram.percentile(99);
+            long max = histogram.getMax();
+            if (p50 < 50000 || p50 > 50000 + 50000 / LatencyHistogram.SUB_BUCKETS
+                || p99 < 99000 || p99 > 99000 + 99000 / LatencyHistogram.SUB_BUCKETS
+                || max < 100000 || max > 100000 + 100000 / LatencyHistogram.SUB_BUCKETS)
+                throw new TestFailedException("Histogram gave p50 " + p50 +
+                                              ", p99 " + p99 + ", max " + max);
+            histogram.record(3);
+            if (histogram.percentile(0) != 3)
+                throw new TestFailedException("Small values not exact");
+            histogram.reset();
+            if (histogram.getCount() != 0)
+                throw new TestFailedException("Histogram not reset");
+
+            // Fill the pool with dirty pages, pin each of them again,
+            // then push half of them out.
+            int half = NUMBUF / 2;
+            bufMgr.setReadAhead(0);
+            bufMgr.setCleanerRate(0);
+            bufMgr.setPinSampling(1);
+            bufMgr.newPage(NUMBUF + half,filename);
+            bufMgr.unpinPage(0,filename,true);
+            for (int i=1; i < NUMBUF; i++)
+            {
+                if (bufMgr.pinPage(i,filename,false) == null)
+                    throw new TestFailedException("Unable to pin page");
+                bufMgr.unpinPage(i,filename,true);
+            }
+            BufferPoolMetrics.Snapshot metrics = bufMgr.metrics();
+            if (metrics.getFreeFrames() != 0 || metrics.getDirtyFrames() != NUMBUF
+                || metrics.getMisses() != NUMBUF - 1 || metrics.getHits() != 0
+                || metrics.getEvictions() != 0)
+                throw new TestFailedException("Frames incorrect: " + metrics);
+            for (int i=0; i < NUMBUF; i++)
+            {
+                if (bufMgr.pinPage(i,filename,false) == null)
+                    throw new TestFailedException("Unable to pin page");
+                bufMgr.unpinPage(i,filename,false);
+            }
+            metrics = bufMgr.metrics();
+            if (metrics.getHits() != NUMBUF || metrics.getMisses() != NUMBUF - 1)
+                throw new TestFailedException("Expected " + NUMBUF +
+                                              " hits: " + metrics);
+            for (int i=NUMBUF; i < NUMBUF + half; i++)
+            {
+                if (bufMgr.pinPage(i,filename,false) == null)
+                    throw new TestFailedException("Unable to pin page");
+                bufMgr.unpinPage(i,filename,false);
+            }
+            metrics = bufMgr.metrics();
+            if (metrics.getMisses() != NUMBUF - 1 + half
+                || metrics.getEvictions() != half
+                || metrics.getEvictionWriteBacks() != half
+                || metrics.getWriteBacks() != half
+                || metrics.getFramesScanned() < half)
+                throw new TestFailedException("Expected " + half +
+                                              " misses, each writing a " +
+                                              "page back: " + metrics);
+            // Every miss read its page, as did newPage its first page.
+            BufferPoolMetrics live = bufMgr.getMetrics();
+            if (live.getPinLatency().getCount() != 2 * NUMBUF - 1 + half
+                || live.getReadLatency().getCount() != NUMBUF + half
+                || live.getWriteLatency().getCount() != half
+                || metrics.getPinLatencyP50() > metrics.getPinLatencyMax())
+                throw new TestFailedException("Latencies not recorded: " +
+                                              metrics);
+
+            // The same figures are published through JMX.
+            ObjectName name = bufMgr.registerMBean("test13");
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                Object hits = server.getAttribute(name,"Hits");
+                Object free = server.getAttribute(name,"FreeFrames");
+                if (!Long.valueOf(NUMBUF).equals(hits)
+                    || !Integer.valueOf(0).equals(free))
+                    throw new TestFailedException("JMX gave " + hits +
+                                                  " hits, " + free +
+                                                  " free frames");
+            }
+            finally {
+                bufMgr.close();
+            }
+            if (server.isRegistered(name))
+                throw new TestFailedException("MBean left registered");
+            System.out.println(metrics);
+        }
+    }
+
+
+    //-----------------------------------------------------------
+    // test 14
+    //      Testing that the pool grows and shrinks while pages are
+    //      pinned, under each policy and with an arena
+    //------------------------------------------------------------
+    public static class Test14 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 14 -------");
+
+            ReplacementPolicy[] policies = {
+                new ReplacementPolicy.Clock(), new ReplacementPolicy.LRU(),
+                new ReplacementPolicy.LRUK(), new ReplacementPolicy.TwoQ(),
+                new ReplacementPolicy.ARC()
+            };
+            for (ReplacementPolicy policy : policies)
+            {
+                DBFile.erase(filename);
+                DBFile db = new DBFile(filename,4 * NUMBUF);
+                db.close();
+                bufMgr = new BufferManager(NUMBUF,DBFileCache.Mode.CHANNEL,
+                                           policy);
+                try {
+                    resizeInUse(bufMgr,filename);
+                }
+                finally {
+                    bufMgr.close();
+                }
+            }
+
+            DBFile.erase(filename);
+            DBFile db = new DBFile(filename,4 * NUMBUF,4096);
+            db.close();
+            bufMgr = new BufferManager(NUMBUF,DBFileCache.Mode.CHANNEL,null,
+                                       new ReplacementPolicy.Clock(),4096);
+            try {
+                resizeInUse(bufMgr,filename);
+            }
+            finally {
+                bufMgr.close();
+            }
+            System.out.println("Grew " + NUMBUF + " frames to " +
+                               2 * NUMBUF + " and shrank them to " +
+                               NUMBUF / 2 + " under " + policies.length +
+                               " policies and an arena");
+        }
+
+        /**
+         * Fills a pool, doubles it, then quarters it while one page
+         * stays pinned throughout and another pinned page sits in a
+         * frame to be dropped.
+         */
+        private static void resizeInUse(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            bufMgr.setReadAhead(0);
+            bufMgr.setCleanerRate(0);
+            Page held = bufMgr.newPage(3 * NUMBUF,filename).second;
+            held.buffer().putInt(0,0);
+            for (int i=1; i < NUMBUF; i++)
+                stamp(bufMgr,filename,i);
+
+            // The new frames take new pages without replacing any.
+            bufMgr.resize(2 * NUMBUF);
+            if (bufMgr.poolSize() != 2 * NUMBUF)
+                throw new TestFailedException("Pool did not grow");
+            for (int i=NUMBUF; i < 2 * NUMBUF; i++)
+                stamp(bufMgr,filename,i);
+            if (bufMgr.metrics().getEvictions() != 0)
+                throw new TestFailedException("Grown pool replaced pages");
+            if (bufMgr.pinPage(0,filename,false) != held)
+                throw new TestFailedException("Growing moved a pinned page");
+            bufMgr.unpinPage(0,filename,false);
+
+            // A shrink waits for a pinned page in a frame it drops.
+            int target = NUMBUF / 2;
+            if (bufMgr.findFrame(0,filename) >= target)
+                throw new TestFailedException("Held page in a frame to drop");
+            int pinned = -1;
+            for (int i=1; i < 2 * NUMBUF && pinned < 0; i++)
+                if (bufMgr.findFrame(i,filename) >= target)
+                    pinned = i;
+            Page page = bufMgr.pinPage(pinned,filename,false);
+            Exception[] failure = new Exception[1];
+            Thread shrinker = new Thread(() -> {
+                    try {
+                        bufMgr.resize(target);
+                    }
+                    catch (Exception e) {
+                        failure[0] = e;
+                    }
+                });
+            shrinker.start();
+            shrinker.join(100);
+            if (!shrinker.isAlive())
+                throw new TestFailedException("Shrink did not wait for " +
+                                              "a pinned page");
+            page.buffer().putInt(4,42);
+            bufMgr.unpinPage(pinned,filename,true);
+            shrinker.join(5000);
+            if (shrinker.isAlive())
+                throw new TestFailedException("Shrink did not finish");
+            if (failure[0] != null)
+                throw failure[0];
+            if (bufMgr.poolSize() != target)
+                throw new TestFailedException("Pool did not shrink");
+
+            // Pages that stayed are where they were; the others were
+            // written back and read in again.
+            if (held.buffer().getInt(0) != 0 || bufMgr.findFrame(0,filename) < 0)
+                throw new TestFailedException("Shrinking lost a pinned page");
+            bufMgr.unpinPage(0,filename,false);
+            for (int i=1; i < 2 * NUMBUF; i++)
+            {
+                Page check = bufMgr.pinPage(i,filename,false);
+                if (check == null || check.buffer().getInt(0) != i)
+                    throw new TestFailedException("Page " + i +
+                                                  " content incorrect");
+                if (i == pinned && check.buffer().getInt(4) != 42)
+                    throw new TestFailedException("Change to a page in a " +
+                                                  "dropped frame was lost");
+                bufMgr.unpinPage(i,filename,false);
+            }
+            for (int i=0; i < 2 * NUMBUF; i++)
+                if (bufMgr.findFrame(i,filename) >= target)
+                    throw new TestFailedException("Page in a dropped frame");
+        }
+    }
+
+
+    //-----------------------------------------------------------
+    // test 15
+    //      Testing that threads missing on the same page at once
+    //      read it once, the others each waiting once for the read
+    //------------------------------------------------------------
+    public static class Test15 implements Testable
+    {
+        public void test(BufferManager bufMgr, final String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 15 -------");
+
+            final int numPages = 4 * NUMBUF;
+            final int threads = 8;
+            final Thread[] workers = new Thread[threads];
+            final int[] parked = new int[1];
+
+            // A miss that replaces a changed page must flush the log
+            // before writing the page back, with the new page already
+            // in the table. Holding it there until another thread has
+            // parked waiting for that page makes sure the wait path
+            // is taken, not only the fast one.
+            String logName = filename + ".log";
+            (new File(logName)).delete();
+            LogManager log = new LogManager(logName) {
+                    public void flush(long lsn) throws IOException
+                    {
+                        if (isWorker(workers))
+                        {
+                            long deadline = System.nanoTime() + 1000000000L;
+                            while (!waiterParked(workers)
+                                   && System.nanoTime() < deadline)
+                                Thread.yield();
+                            if (waiterParked(workers))
+                                parked[0]++;
+                        }
+                        super.flush(lsn);
+                    }
+                };
+            final BufferManager manager =
+                new BufferManager(NUMBUF,DBFileCache.Mode.CHANNEL,log);
+            try {
+                manager.setReadAhead(0);
+                manager.setCleanerRate(0);
+                manager.newPage(numPages,filename);
+                manager.unpinPage(0,filename,false);
+                BufferPoolMetrics.Snapshot before = manager.metrics();
+
+                // Each round, every thread pins the same page and holds
+                // it until all have it; one of them changes it, so that
+                // its eviction later goes through the log.
+                final CyclicBarrier barrier = new CyclicBarrier(threads);
+                final Exception[] failure = new Exception[1];
+                for (int t=0; t < threads; t++)
+                {
+                    final int id = t;
+                    workers[t] = new Thread() {
+                            public void run()
+                            {
+                                try {
+                                    for (int i=1; i < numPages; i++)
+                                    {
+                                        barrier.await();
+                                        Page page = manager.pinPage(i,filename,false);
+                                        if (page == null)
+                                            throw new TestFailedException("Unable " +
+                                                                          "to pin page");
+                                        barrier.await();
+                                        manager.unpinPage(i,filename,id == 0);
+                                    }
+                                }
+                                catch (Exception e) {
+                                    synchronized (failure) {
+                                        if (failure[0] == null)
+                                            failure[0] = e;
+                                    }
+                                    barrier.reset(); //release the others
+                                }
+                            }
+                        };
+                }
+                for (Thread worker : workers)
+                    worker.start();
+                for (Thread worker : workers)
+                    worker.join();
+                if (failure[0] != null)
+                    throw failure[0];
+
+                BufferPoolMetrics.Snapshot after = manager.metrics();
+                long rounds = numPages - 1;
+                long misses = after.getMisses() - before.getMisses();
+                long hits = after.getHits() - before.getHits();
+                long waits = after.getPinWaits() - before.getPinWaits();
+                if (misses != rounds || hits != (threads - 1) * rounds)
+                    throw new TestFailedException("Expected " + rounds +
+                                                  " misses, found " + misses +
+                                                  " and " + hits + " hits");
+                if (waits > (threads - 1) * rounds)
+                    throw new TestFailedException("Threads waited " + waits +
+                                                  " times for " + rounds +
+                                                  " reads");
+                // Every worker finished, so whoever parked was woken.
+                if (parked[0] == 0 || waits == 0)
+                    throw new TestFailedException("No thread waited for " +
+                                                  "a page being read");
+                System.out.println(threads + " threads read " + rounds +
+                                   " pages once each, waiting " + waits +
+                                   " times, " + parked[0] +
+                                   " reads held until a waiter parked");
+            }
+            finally {
+                manager.close();
+                log.close();
+                (new File(logName)).delete();
+            }
+        }
+
+        /**
+         * Whether the current thread is one of the threads.
+         */
+        private static boolean isWorker(Thread[] threads)
+        {
+            for (Thread thread : threads)
+                if (thread == Thread.currentThread())
+                    return true;
+            return false;
+        }
+
+        /**
+         * Whether any of the threads is parked in a buffer manager,
+         * waiting for a frame.
+         */
+        private static boolean waiterParked(Thread[] threads)
+        {
+            for (Thread thread : threads)
+                if (thread != null &&
+                    LockSupport.getBlocker(thread) instanceof BufferManager)
+                    return true;
+            return false;
+        }
+    }
+
+
+    //-----------------------------------------------------------
+    // test 16
+    //      Testing that flushes write each dirty page to its own
+    //      database, adjacent pages together, and that a checkpoint
+    //      keeps to its rate
+    //------------------------------------------------------------
+    public static class Test16 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 16 -------");
+
+            bufMgr.setReadAhead(0);
+            bufMgr.setCleanerRate(0);
+            String other = filename + "2";
+            DBFile db = new DBFile(other,NUMBUF);
+            db.close();
+            try {
+                // Runs start a page in: an unwritten page 0 would read
+                // back as stamped.
+                int base = bufMgr.newPage(13,filename).first;
+                bufMgr.unpinPage(base++,filename,false);
+                int otherBase = bufMgr.newPage(4,other).first;
+                bufMgr.unpinPage(otherBase,other,false);
+
+                // Two runs in the first database, changed out of page
+                // order, and one in the other.
+                int[] pageNums = { 10, 3, 9, 0, 8, 4, 1, 7, 2 };
+                for (int pageNum : pageNums)
+                    stamp(bufMgr,filename,base + pageNum);
+                for (int i=1; i < 4; i++)
+                    stamp(bufMgr,other,otherBase + i);
+
+                BufferPoolMetrics live = bufMgr.getMetrics();
+                long writes = live.getWriteLatency().getCount();
+                bufMgr.flushAllPages(other);
+                BufferPoolMetrics.Snapshot metrics = bufMgr.metrics();
+                if (metrics.getWriteBacks() != 3
+                    || live.getWriteLatency().getCount() != writes + 1
+                    || metrics.getDirtyFrames() != pageNums.length)
+                    throw new TestFailedException("Expected one write of 3 " +
+                                                  "pages: " + metrics);
+                bufMgr.flushAllPages();
+                metrics = bufMgr.metrics();
+                if (metrics.getWriteBacks() != 3 + pageNums.length
+                    || live.getWriteLatency().getCount() != writes + 3
+                    || metrics.getDirtyFrames() != 0)
+                    throw new TestFailedException("Expected two more writes " +
+                                                  "of " + pageNums.length +
+                                                  " pages: " + metrics);
+                for (int pageNum : pageNums)
+                    checkOnDisk(filename,base + pageNum);
+                for (int i=1; i < 4; i++)
+                    checkOnDisk(other,otherBase + i);
+
+                // Ten pages at 100 a second take a tenth of a second.
+                for (int i=0; i < 10; i++)
+                    stamp(bufMgr,filename,base + i);
+                bufMgr.setCheckpointRate(100);
+                long start = System.nanoTime();
+                bufMgr.checkpoint();
+                long millis = (System.nanoTime() - start) / 1000000;
+                System.out.println("Checkpoint of 10 pages took " + millis +
+                                   " ms");
+                if (millis < 90)
+                    throw new TestFailedException("Checkpoint rate not kept");
+                if (bufMgr.metrics().getDirtyFrames() != 0)
+                    throw new TestFailedException("Checkpoint left dirty pages");
+            }
+            finally {
+                bufMgr.close();
+                DBFile.erase(other);
+            }
+        }
+    }
+
+
+    //-----------------------------------------------------------
+    // test 17
+    //      Testing shared and exclusive latches and optimistic reads
+    //------------------------------------------------------------
+    public static class Test17 implements Testable
+    {
+        public void test(final BufferManager bufMgr, final String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 17 -------");
+
+            final int pageNum = bufMgr.newPage(1,filename).first;
+            bufMgr.unpinPage(pageNum,filename,false);
+
+            // A shared latch waits for the exclusive one.
+            bufMgr.pinExclusive(pageNum,filename);
+            final boolean[] latched = new boolean[1];
+            final Exception[] failure = new Exception[1];
+            Thread reader = new Thread() {
+                    public void run()
+                    {
+                        try {
+                            bufMgr.pinShared(pageNum,filename);
+                            synchronized (latched) {
+                                latched[0] = true;
+                            }
+                            bufMgr.unpinShared(pageNum,filename);
+                        }
+                        catch (Exception e) {
+                            failure[0] = e;
+                        }
+                    }
+                };
+            reader.start();
+            Thread.sleep(50);
+            synchronized (latched) {
+                if (latched[0])
+                    throw new TestFailedException("Shared latch taken " +
+                                                  "while held exclusive");
+            }
+            if (bufMgr.tryOptimisticRead(pageNum,filename) != 0)
+                throw new TestFailedException("Optimistic read started " +
+                                              "while held exclusive");
+            bufMgr.unpinExclusive(pageNum,filename,false);
+            reader.join();
+            if (failure[0] != null)
+                throw failure[0];
+            if (!latched[0])
+                throw new TestFailedException("Shared latch not taken");
+
+            // A stamp holds until the page is latched exclusive.
+            bufMgr.pinShared(pageNum,filename);
+            long stamp = bufMgr.tryOptimisticRead(pageNum,filename);
+            if (stamp == 0 || !bufMgr.validate(stamp))
+                throw new TestFailedException("Optimistic read failed " +
+                                              "under a shared latch");
+            try {
+                bufMgr.unpinExclusive(pageNum,filename,false);
+                throw new TestFailedException("Shared latch let go as " +
+                                              "exclusive");
+            }
+            catch (BufferManager.PageNotLatchedException e) {
+            }
+            bufMgr.unpinShared(pageNum,filename);
+            bufMgr.pinExclusive(pageNum,filename);
+            if (bufMgr.validate(stamp))
+                throw new TestFailedException("Stamp valid while held " +
+                                              "exclusive");
+            bufMgr.unpinExclusive(pageNum,filename,true);
+            if (bufMgr.validate(stamp))
+                throw new TestFailedException("Stamp valid after a change");
+            bufMgr.pinPage(pageNum,filename,false);
+            long next = bufMgr.tryOptimisticRead(stamp);
+            if (next == 0 || next == stamp || !bufMgr.validate(next))
+                throw new TestFailedException("Stamp not renewed");
+            try {
+                bufMgr.unpinShared(pageNum,filename);
+                throw new TestFailedException("Unlatched page let go");
+            }
+            catch (BufferManager.PageNotLatchedException e) {
+            }
+            bufMgr.unpinPage(pageNum,filename,false);
+
+            // Writers keep two numbers equal; readers never see them
+            // differ, once validated.
+            final int rounds = 2000;
+            final int[] counts = new int[2]; // validated, retried
+            Thread[] threads = new Thread[6];
+            for (int t=0; t < threads.length; t++)
+            {
+                final int kind = t % 3;
+                threads[t] = new Thread() {
+                        public void run()
+                        {
+                            try {
+                                for (int i=0; i < rounds; i++)
+                                {
+                                    if (kind == 0)
+                                        write();
+                                    else if (kind == 1)
+                                        readShared();
+                                    else
+                                        readOptimistic();
+                                }
+                            }
+                            catch (Exception e) {
+                                synchronized (failure) {
+                                    if (failure[0] == null)
+                                        failure[0] = e;
+                                }
+                            }
+                        }
+
+                        private void write() throws IOException
+                        {
+                            Page page = bufMgr.pinExclusive(pageNum,filename);
+                            ByteBuffer buf = ByteBuffer.wrap(page.data);
+                            buf.putInt(0,buf.getInt(0) + 1);
+                            Thread.yield();
+                            buf.putInt(4,buf.getInt(4) + 1);
+                            bufMgr.unpinExclusive(pageNum,filename,true);
+                        }
+
+                        private void readShared() throws IOException
+                        {
+                            Page page = bufMgr.pinShared(pageNum,filename);
+                            ByteBuffer buf = ByteBuffer.wrap(page.data);
+                            int first = buf.getInt(0);
+                            Thread.yield();
+                            int second = buf.getInt(4);
+                            bufMgr.unpinShared(pageNum,filename);
+                            if (first != second)
+                                throw new TestFailedException("Shared reader " +
+                                                              "saw a change");
+                        }
+
+                        private void readOptimistic() throws IOException
+                        {
+                            Page page = bufMgr.pinPage(pageNum,filename,false);
+                            ByteBuffer buf = ByteBuffer.wrap(page.data);
+                            long stamp = 0;
+                            while (true)
+                            {
+                                stamp = stamp == 0 ?
+                                    bufMgr.tryOptimisticRead(pageNum,filename) :
+                                    bufMgr.tryOptimisticRead(stamp);
+                                int first = buf.getInt(0);
+                                Thread.yield();
+                                int second = buf.getInt(4);
+                                if (bufMgr.validate(stamp))
+                                {
+                                    if (first != second)
+                                        throw new TestFailedException(
+                                            "Validated read saw a change");
+                                    synchronized (counts) {
+                                        counts[0]++;
+                                    }
+                                    break;
+                                }
+                                synchronized (counts) {
+                                    counts[1]++;
+                                }
+                            }
+                            bufMgr.unpinPage(pageNum,filename,false);
+                        }
+                    };
+                threads[t].start();
+            }
+            for (Thread thread : threads)
+                thread.join();
+            if (failure[0] != null)
+                throw failure[0];
+            Page page = bufMgr.pinPage(pageNum,filename,false);
+            int total = ByteBuffer.wrap(page.data).getInt(0);
+            bufMgr.unpinPage(pageNum,filename,false);
+            if (total != 2 * rounds)
+                throw new TestFailedException("Expected " + 2 * rounds +
+                                              " changes, found " + total);
+            System.out.println(counts[0] + " optimistic reads validated, " +
+                               counts[1] + " retried");
+        }
+    }
+
+
+    //-----------------------------------------------------------
+    // test 18
+    //      Testing page handles: unpinning through them, reuse, and
+    //      use after unpin
+    //------------------------------------------------------------
+    public static class Test18 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 18 -------");
+
+            bufMgr.setReadAhead(0);
+            bufMgr.setCleanerRate(0);
+            int base = bufMgr.newPage(2 * NUMBUF,filename).first;
+            bufMgr.unpinPage(base,filename,false);
+
+            // A change marked through the handle is recorded on close.
+            PageHandle first;
+            try (PageHandle handle = bufMgr.pinPage(base,filename))
+            {
+                if (handle.pageId() != base)
+                    throw new TestFailedException("Handle on wrong page");
+                byte[] data = ("This is test 18").getBytes();
+                System.arraycopy(data,0,handle.page().data,0,data.length);
+                handle.markDirty();
+                first = handle;
+            }
+            if (bufMgr.metrics().getDirtyFrames() != 1
+                || bufMgr.metrics().getPinnedFrames() != 0)
+                throw new TestFailedException("Handle did not unpin a " +
+                                              "dirty page: " + bufMgr.metrics());
+            expectStale(first,"after close");
+
+            // The closed handle is handed out again.
+            PageHandle handle = bufMgr.pinPage(base + 1,filename);
+            if (handle != first)
+                throw new TestFailedException("Handle not reused");
+            if (!new String(bufMgr.pinPage(base,filename).page().data)
+                .startsWith("This is test 18"))
+                throw new TestFailedException("Page content incorrect");
+            bufMgr.unpinPage(base,filename,false);
+
+            // A page unpinned by id and then replaced leaves its
+            // handle stale, whatever frame it is read back into.
+            bufMgr.unpinPage(base + 1,filename,false);
+            for (int i=2; i < 2 * NUMBUF; i++)
+            {
+                bufMgr.pinPage(base + i,filename,false);
+                bufMgr.unpinPage(base + i,filename,false);
+            }
+            PageHandle again = bufMgr.pinPage(base + 1,filename);
+            expectStale(handle,"after its page was replaced");
+            again.close();
+
+            // Latches taken through a handle go with it.
+            PageHandle writer = bufMgr.pinPage(base,filename);
+            PageHandle reader = bufMgr.pinPage(base,filename);
+            writer.latchExclusive();
+            if (reader.tryOptimisticRead() != 0)
+                throw new TestFailedException("Optimistic read started " +
+                                              "while held exclusive");
+            try {
+                writer.latchShared();
+                throw new TestFailedException("Latched twice through a " +
+                                              "handle");
+            }
+            catch (IllegalStateException e) {
+            }
+            writer.close();
+            long stamp = reader.tryOptimisticRead();
+            if (stamp == 0 || !reader.validate(stamp))
+                throw new TestFailedException("Latch not let go on close");
+            reader.latchShared();
+            reader.unlatch();
+            reader.close();
+            if (bufMgr.metrics().getPinnedFrames() != 0)
+                throw new TestFailedException("Handles left pages pinned");
+        }
+
+        private static void expectStale(PageHandle handle, String when)
+            throws IOException
+        {
+            try {
+                handle.markDirty();
+                throw new TestFailedException("Handle usable " + when);
+            }
+            catch (PageHandle.StaleHandleException e) {
+            }
+            try {
+                handle.close();
+                throw new TestFailedException("Handle closed " + when);
+            }
+            catch (PageHandle.StaleHandleException e) {
+            }
+        }
+    }
+
+
+    //-----------------------------------------------------------
+    // test 19
+    //      Testing that the hot page list saved at close is reloaded,
+    //      hottest pages first, at the rate set
+    //------------------------------------------------------------
+    public static class Test19 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 19 -------");
+
+            String list = filename + ".hot";
+            int base = bufMgr.newPage(2 * NUMBUF,filename).first;
+            bufMgr.unpinPage(base,filename,false);
+            for (int i=0; i < 2 * NUMBUF; i++)
+                stamp(bufMgr,filename,base + i);
+            bufMgr.close();
+            try {
+                if (bufMgr.loadHotPages(list) != 0)
+                    throw new TestFailedException("Missing list loaded");
+
+                // Ten pages used, the last five of them twice.
+                BufferManager before = lruManager(NUMBUF);
+                before.setHotPageFile(list,0);
+                for (int i=0; i < 10; i++)
+                    touch(before,filename,base + i);
+                for (int i=5; i < 10; i++)
+                    touch(before,filename,base + i);
+                before.close();
+
+                // A smaller pool takes the hottest five, and pinning
+                // them is a hit.
+                BufferManager after = lruManager(5);
+                int listed = after.loadHotPages(list);
+                if (listed != 10)
+                    throw new TestFailedException("Listed " + listed +
+                                                  " pages, not 10");
+                waitForWarmUp(after);
+                for (int i=0; i < 10; i++)
+                    if ((after.findFrame(base + i,filename) >= 0) != (i >= 5))
+                        throw new TestFailedException("Page " + i + " " +
+                                                      "reloaded wrongly");
+                for (int i=5; i < 10; i++)
+                    touch(after,filename,base + i);
+                BufferPoolMetrics.Snapshot metrics = after.metrics();
+                after.close();
+                if (metrics.getMisses() != 0 || metrics.getPrefetchHits() != 5)
+                    throw new TestFailedException("Reloaded pages missed: " +
+                                                  metrics);
+
+                // Ten pages apart from each other at 100 a second take
+                // about a tenth of a second.
+                before = lruManager(NUMBUF);
+                for (int i=0; i < 20; i += 2)
+                    touch(before,filename,base + i);
+                before.saveHotPages(list);
+                before.close();
+                after = lruManager(NUMBUF);
+                after.setWarmUpRate(100);
+                long start = System.nanoTime();
+                after.loadHotPages(list);
+                waitForWarmUp(after);
+                long millis = (System.nanoTime() - start) / 1000000;
+                metrics = after.metrics();
+                after.close();
+                System.out.println("Reloaded 10 pages in " + millis + " ms");
+                if (metrics.getPrefetchedPages() != 10 || millis < 80)
+                    throw new TestFailedException("Warm-up rate not kept: " +
+                                                  metrics);
+
+                try (FileOutputStream out = new FileOutputStream(list)) {
+                    out.write("not a list".getBytes());
+                }
+                after = lruManager(NUMBUF);
+                try {
+                    after.loadHotPages(list);
+                    throw new TestFailedException("Bad list loaded");
+                }
+                catch (IOException e) {
+                }
+                finally {
+                    after.close();
+                }
+            }
+            finally {
+                new File(list).delete();
+            }
+        }
+
+        private static BufferManager lruManager(int poolSize)
+            throws IOException
+        {
+            BufferManager bufMgr =
+                new BufferManager(poolSize,DBFileCache.Mode.CHANNEL,null,
+                                  new ReplacementPolicy.LRU());
+            bufMgr.setReadAhead(0);
+            return bufMgr;
+        }
+
+        private static void waitForWarmUp(BufferManager bufMgr)
+            throws InterruptedException
+        {
+            for (int i=0; bufMgr.isWarmingUp(); i++)
+            {
+                if (i == 5000)
+                    throw new TestFailedException("Warm-up did not end");
+                Thread.sleep(1);
+            }
+        }
+    }
+
+
+    //-----------------------------------------------------------
+    // test 20
+    //      Testing that pools in different modes, and plain DBFile
+    //      objects, see each other's allocations of one file
+    //------------------------------------------------------------
+    public static class Test20 implements Testable
+    {
+        public void test(BufferManager bufMgr, String filename)
+            throws Exception
+        {
+            System.out.println("------- Test 20 -------");
+
+            BufferManager mapped =
+                new BufferManager(NUMBUF,DBFileCache.Mode.MAPPED);
+            try {
+                Pair<Integer,Page> first = bufMgr.newPage(3,filename);
+                Pair<Integer,Page> second = mapped.newPage(3,filename);
+                bufMgr.unpinPage(first.first,filename,false);
+                mapped.unpinPage(second.first,filename,false);
+                System.out.println("Runs at pages " + first.first +
+                                   " and " + second.first);
+                if (Math.abs(first.first - second.first) < 3)
+                    throw new TestFailedException("Run allocated twice");
+
+                // Neither allocation has reached the map file yet.
+                DBFile db = new DBFile(filename);
+                try {
+                    db.readPage(second.first + 2,new Page());
+                    int page = db.allocatePages(1);
+                    if (page - first.first < 3 && page >= first.first ||
+                        page - second.first < 3 && page >= second.first)
+                        throw new TestFailedException("Page allocated twice");
+                }
+                finally {
+                    db.close();
+                }
+            }
+            finally {
+                mapped.close();
+            }
+        }
+    }
+
+
     public static final String FILENAME = "__testing";
     public static final int NUMBUF = 20;
 
 
     public static boolean runTest(Testable testObj)
+    {
+        return runTest(testObj, DBFileCache.Mode.CHANNEL);
+    }
+
+
+    public static boolean runTest(Testable testObj, DBFileCache.Mode mode)
     {
         boolean success = true;
         DBFile dbfile = null;
+        BufferManager bufMgr = null;
         try
         {
-            dbfile = new DBFile(FILENAME,NUMBUF+500);
-            BufferManager bufMgr = new BufferManager(NUMBUF);
+            if (mode == DBFileCache.Mode.COMPRESSED)
+                dbfile = new CompressedDBFile(FILENAME,NUMBUF+500);
+            else
+                dbfile = new DBFile(FILENAME,NUMBUF+500);
+            dbfile.close();
+            bufMgr = new BufferManager(NUMBUF,mode);
             testObj.test(bufMgr,FILENAME);
         }
         catch (Exception e)
@@ -185,6 +1930,12 @@ public class BMTester
             success = false;
             e.printStackTrace();
         }
+        finally
+        {
+            // Stop the page cleaner before the database is erased.
+            if (bufMgr != null)
+                bufMgr.close();
+        }
 
         DBFile.erase(FILENAME);
 
@@ -201,6 +1952,29 @@ public class BMTester
         // Run the tests.
         runTest(new Test1());
         runTest(new Test2());
+        runTest(new Test1(), DBFileCache.Mode.MAPPED);
+        runTest(new Test3());
+        runTest(new Test3(), DBFileCache.Mode.MAPPED);
+        runTest(new Test1(), DBFileCache.Mode.DIRECT);
+        runTest(new Test4());
+        runTest(new Test5());
+        runTest(new Test1(), DBFileCache.Mode.COMPRESSED);
+        runTest(new Test3(), DBFileCache.Mode.COMPRESSED);
+        runTest(new Test6());
+        runTest(new Test7());
+        runTest(new Test8());
+        runTest(new Test9());
+        runTest(new Test10());
+        runTest(new Test11());
+        runTest(new Test12());
+        runTest(new Test13());
+        runTest(new Test14());
+        runTest(new Test15());
+        runTest(new Test16());
+        runTest(new Test17());
+        runTest(new Test18());
+        runTest(new Test19());
+        runTest(new Test20());
         
         // Clean up
         DBFile.erase(FILENAME);
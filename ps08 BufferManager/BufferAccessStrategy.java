@@ -0,0 +1,144 @@
+import java.util.Arrays;
+
+/**
+ * How one caller's pins use the buffer pool. A bulk operation, such as
+ * a scan of a whole table or a load, passes a strategy to pinPage and
+ * newPage. The pages it misses on then go into a small ring of frames
+ * of its own, reused as the operation moves on, instead of pushing
+ * the pool's other pages out. Pages already in the pool are pinned
+ * where they are. Pins without a strategy use the whole pool.
+ *
+ * The ring fills with frames as the operation misses. A frame drops
+ * out of it when its turn comes round again and another caller has
+ * the page pinned, or the page has been replaced or freed. A bulk read
+ * also lets go of a frame whose page has been changed, rather than
+ * write it back; a bulk write writes its own changes back as it goes.
+ * Pins under a strategy do not trigger sequential read-ahead, which
+ * would load pages outside the ring.
+ *
+ * A strategy serves one operation on one thread at a time, with a
+ * single buffer manager.
+ */
+public class BufferAccessStrategy
+{
+    /**
+     * Kinds of bulk operation.
+     */
+    public enum Type
+    {
+        /**
+         * Reading many pages once, as a sequential scan does.
+         */
+        BULK_READ,
+
+        /**
+         * Writing many pages, as a bulk load or a copy does.
+         */
+        BULK_WRITE
+    }
+
+    /**
+     * Default number of frames in a bulk read's ring.
+     */
+    public static final int BULK_READ_RING = 32;
+
+    /**
+     * Default number of frames in a bulk write's ring, larger so that
+     * pages are written back well after they were changed.
+     */
+    public static final int BULK_WRITE_RING = 256;
+
+    private Type type;
+    private int ringSize;
+    private int[] frames; // ring of frame indexes, -1 where not filled
+    private long[] keys; // page table key of the page put in each frame
+    private int current; // slot to be used next
+
+    /**
+     * Creates a strategy with the default ring size for its type.
+     * @param type the kind of operation.
+     */
+    public BufferAccessStrategy(Type type)
+    {
+        this(type, type == Type.BULK_READ ? BULK_READ_RING : BULK_WRITE_RING);
+    }
+
+    /**
+     * Creates a strategy with a ring of the given size. A buffer
+     * manager gives the ring at most an eighth of its pool.
+     * @param type the kind of operation.
+     * @param ringSize the number of frames in the ring.
+     * @throws IllegalArgumentException if ringSize is not positive.
+     */
+    public BufferAccessStrategy(Type type, int ringSize)
+    {
+        if (ringSize <= 0)
+            throw new IllegalArgumentException("ring size must be positive");
+        this.type = type;
+        this.ringSize = ringSize;
+    }
+
+    /**
+     * Returns the kind of operation.
+     * @return the type.
+     */
+    public Type getType()
+    {
+        return type;
+    }
+
+    /**
+     * Returns the number of frames the ring may hold.
+     * @return the ring size, once the strategy has been used with a
+     * buffer manager, or else the size asked for.
+     */
+    public int getRingSize()
+    {
+        return frames == null ? ringSize : frames.length;
+    }
+
+    /**
+     * Sizes the ring for a pool, on first use.
+     * @param poolSize the number of frames in the pool.
+     */
+    void init(int poolSize)
+    {
+        if (frames != null)
+            return;
+        int size = Math.max(1, Math.min(ringSize, poolSize / 8));
+        frames = new int[size];
+        keys = new long[size];
+        Arrays.fill(frames, -1);
+    }
+
+    /**
+     * Returns the frame in the slot to be used next.
+     * @return the frame index, or -1 if the slot is empty.
+     */
+    int currentFrame()
+    {
+        return frames[current];
+    }
+
+    /**
+     * Returns the page put in the frame of the slot to be used next.
+     * @return its page table key.
+     */
+    long currentKey()
+    {
+        return keys[current];
+    }
+
+    /**
+     * Records the frame a page went into in the slot to be used next,
+     * and moves on to the following slot.
+     * @param frame the frame index.
+     * @param key the page table key of the page.
+     */
+    void record(int frame, long key)
+    {
+        frames[current] = frame;
+        keys[current] = key;
+        current = current + 1 == frames.length ? 0 : current + 1;
+    }
+}
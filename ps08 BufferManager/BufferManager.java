@@ -1,47 +1,424 @@
 import java.io.*;
-import java.util.HashMap;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 /**
  * Buffer manager. Manages a memory-based buffer pool of pages.
+ *
+ * The frame to replace on a miss is chosen by a ReplacementPolicy,
+ * clock unless another is given when the buffer manager is created.
+ *
+ * A buffer manager may be used by many threads at once. The page
+ * table is split into stripes, each with its own lock, which is held
+ * only while a mapping is looked up or changed. Pin counts are
+ * atomic, so under clock a hit takes no lock shared with hits on
+ * other pages. A miss claims
+ * its frame and enters the page in the table before doing any I/O,
+ * then reads with no lock held; other threads pinning the same page
+ * in the meantime wait for that read instead of starting their own.
+ * They park until the reader wakes them rather than spin, so many
+ * threads, virtual ones included, can wait on a slow read at little
+ * cost.
+ *
+ * Unpinning a changed page only marks its frame dirty. Dirty pages
+ * are written back by a background page cleaner, which keeps the
+ * frames due to be replaced next clean and, when too many frames are
+ * dirty, cleans others until few enough are; whatever it has not
+ * reached is written when its frame is replaced. The cleaner starts
+ * with the first change and runs until the buffer manager is closed.
+ *
+ * Pages may also be loaded before they are asked for, by a background
+ * prefetcher: explicitly through prefetch, and automatically once
+ * pinPage sees a file's pages pinned in ascending order. Read-ahead
+ * starts small and doubles while the pages it loads are used, and
+ * shrinks when they are replaced unused.
+ *
+ * A bulk operation can pass a BufferAccessStrategy to pinPage and
+ * newPage to keep its misses to a small ring of frames, so that a
+ * large scan or load leaves the rest of the pool alone.
+ *
+ * The pool can be resized while it is in use. Growing it adds empty
+ * frames; shrinking it replaces the pages in the frames past its new
+ * end, waiting for those that are pinned to be unpinned. Frames that
+ * remain keep their pages, so pages pinned meanwhile stay valid.
+ *
+ * A pin keeps a page in its frame, but not other threads off it.
+ * pinShared and pinExclusive also latch the page, for threads that
+ * read it and for one that changes it. A reader can instead read a
+ * pinned page optimistically, taking no latch at all, and check with
+ * validate afterwards that no writer got in. Write-backs take no
+ * latch: a page caught half changed is marked dirty again when the
+ * change is recorded, and is written again.
+ *
+ * pinPage(int, String) returns a PageHandle rather than the page. The
+ * handle remembers the frame, so marking the page dirty and unpinning
+ * it through the handle need no lookup, and handles are reused, so
+ * pinning through them allocates nothing.
+ *
+ * So that a restart need not start cold, the pages in the pool can be
+ * listed, hottest first, in a file: now, every so often, and when the
+ * buffer manager is closed. A new buffer manager reloads the list in
+ * the background, into empty frames only, giving way to misses.
+ *
+ * Hits, misses, evictions, write-backs and the latency of pins and of
+ * database I/O are counted as the buffer manager works; metrics takes
+ * a snapshot of them, and registerMBean publishes them through JMX.
  */
 public class BufferManager
 {
     public static class PageNotPinnedException
         extends RuntimeException {};
     public static class PagePinnedException extends RuntimeException {};
+    public static class PageNotLatchedException
+        extends RuntimeException {};
 
     /**
      * Value to use for an invalid page id.
      */
     public static final int INVALID_PAGE = -1;
 
+    /**
+     * Size the write-ahead log may reach before unpinPage triggers a
+     * checkpoint.
+     */
+    public static final long CHECKPOINT_LOG_SIZE = 64L << 20;
+
+    /**
+     * Default number of pages per second the page cleaner may write.
+     */
+    public static final int CLEANER_RATE = 10000;
+
+    /**
+     * Default fraction of the pool, counted among the frames to be
+     * replaced next, that the page cleaner keeps clean.
+     */
+    public static final double CLEAN_AHEAD = 0.1;
+
+    /**
+     * Default fraction of dirty frames at which the page cleaner stops
+     * working through the whole pool.
+     */
+    public static final double DIRTY_LOW_WATERMARK = 0.1;
+
+    /**
+     * Default fraction of dirty frames above which the page cleaner
+     * starts working through the whole pool.
+     */
+    public static final double DIRTY_HIGH_WATERMARK = 0.25;
+
+    /**
+     * Default largest number of pages sequential read-ahead loads at
+     * once.
+     */
+    public static final int READ_AHEAD = 64;
+
+    /**
+     * Default share of pins timed for the pin latency histogram: one
+     * in this many, chosen at random. Reading the clock twice costs
+     * about as much as a hit.
+     */
+    public static final int PIN_SAMPLING = 16;
+
+    /**
+     * Default number of pages per second a warm-up may load.
+     */
+    public static final int WARM_UP_RATE = 10000;
+
+    // Time between rounds of the page cleaner, in milliseconds.
+    private static final long CLEANER_INTERVAL = 10;
+
+    // Time between looks at the pinned frames a shrink waits for, in
+    // milliseconds.
+    private static final long DRAIN_INTERVAL = 1;
+
+    // Most pages a flush writes with a single gathering write.
+    private static final int MAX_WRITE_RUN = 64;
+
+    // Pages of a hot page list a warm-up sorts and loads at a time.
+    private static final int WARM_UP_BATCH = 256;
+
+    // Time a warm-up waits while misses are being read, or until its
+    // rate lets it load more, in milliseconds.
+    private static final long WARM_UP_INTERVAL = 1;
+
+    // First word of a hot page list file.
+    private static final int HOT_PAGES_MAGIC = 0x484f5450;
+
+    // Pages loaded by the first read-ahead of a sequential scan.
+    private static final int MIN_READ_AHEAD = 4;
+
+    // Pins of ascending pages in a row that make a scan sequential.
+    private static final int SEQUENTIAL_PINS = 3;
+
+    // Prefetch requests that may wait for the prefetcher; later ones
+    // are dropped.
+    private static final int PREFETCH_QUEUE = 64;
+
+    // Number of page table stripes, a power of two.
+    private static final int STRIPES = 64;
+
+    // Pin count of a frame that is free, or is being loaded or
+    // evicted by one thread; nobody else may pin it meanwhile.
+    private static final int BUSY = -1;
+
+    // A frame's latch word holds the number of shared holders, a bit
+    // for an exclusive holder, and above them a version, bumped each
+    // time an exclusive holder lets go.
+    private static final long SHARED = 0xffff;
+    private static final long EXCLUSIVE = 1L << 16;
+    private static final int VERSION_SHIFT = 17;
+    private static final long VERSION = 1L << VERSION_SHIFT;
+
+    // Tries at a latch before a thread yields between tries.
+    private static final int LATCH_SPINS = 64;
+
+    // Closed page handles each thread keeps for its next pins.
+    private static final int HANDLE_POOL = 16;
+
     private static class FrameDescriptor
     {
         private int pageNum;
         private String fileName;
-        private int pinCount;
-        private boolean dirty;
-        private boolean referenceBit;
-        
+        private int fileId;
+        volatile int pinCount; // updated through PIN_COUNT
+        volatile int dirty; // 1 if changed since last written; updated through DIRTY
+        private long pageLsn; // LSN of the last logged change; guarded by the frame
+        volatile int prefetched; // 1 until a page loaded ahead is pinned; updated through PREFETCHED
+        // Bumped each time the frame stops being busy, by the thread
+        // that made it busy, which then wakes the threads waiting.
+        volatile int wakes;
+        volatile Waiter waiters; // stack of threads waiting; updated through WAITERS
+        volatile long latch; // updated through LATCH
+        // Bumped each time the frame is given a page, so that a page
+        // handle can tell that its page has left the frame.
+        volatile int generation;
+
         public FrameDescriptor()
         {
             pageNum = INVALID_PAGE;
-            pinCount = 0;
+            pinCount = BUSY;
             fileName = null;
-            dirty = false;
-            referenceBit = false;
+            dirty = 0;
+            pageLsn = 0;
+            latch = VERSION;
+        }
+
+    }
+
+    private static final AtomicIntegerFieldUpdater<FrameDescriptor> PIN_COUNT =
+        AtomicIntegerFieldUpdater.newUpdater(FrameDescriptor.class, "pinCount");
+    private static final AtomicIntegerFieldUpdater<FrameDescriptor> DIRTY =
+        AtomicIntegerFieldUpdater.newUpdater(FrameDescriptor.class, "dirty");
+    private static final AtomicIntegerFieldUpdater<FrameDescriptor> PREFETCHED =
+        AtomicIntegerFieldUpdater.newUpdater(FrameDescriptor.class, "prefetched");
+    private static final AtomicReferenceFieldUpdater<FrameDescriptor, Waiter> WAITERS =
+        AtomicReferenceFieldUpdater.newUpdater(FrameDescriptor.class, Waiter.class, "waiters");
+    private static final AtomicLongFieldUpdater<FrameDescriptor> LATCH =
+        AtomicLongFieldUpdater.newUpdater(FrameDescriptor.class, "latch");
+
+    /**
+     * A thread parked until a busy frame is loaded, evicted or given
+     * back.
+     */
+    private static class Waiter
+    {
+        private final Thread thread;
+        private Waiter next;
+
+        Waiter(Thread thread)
+        {
+            this.thread = thread;
+        }
+    }
+
+    /**
+     * Closed page handles kept by one thread, on a stack linked
+     * through the handles. Each handle remembers the pool it came
+     * from, so closing it takes no thread-local lookup.
+     */
+    static class HandlePool
+    {
+        private final Thread owner;
+        private PageHandle top;
+        private int size;
+
+        HandlePool(Thread owner)
+        {
+            this.owner = owner;
+        }
+    }
+
+    /**
+     * Read-ahead state of one database: the last page pinned, how many
+     * pins in a row were of the next page, which run that is, how far
+     * ahead pages have been requested, and how the pages loaded since
+     * the window last changed have fared.
+     */
+    private static class ReadAhead
+    {
+        volatile int lastPage = INVALID_PAGE;
+        volatile int run;
+        volatile int generation; // changes whenever a run is broken
+        private int requestedTo = INVALID_PAGE;
+        private int window = MIN_READ_AHEAD;
+        private int used;
+        private int wasted;
+    }
+
+    /**
+     * A run of pages for the prefetcher to load, and for read-ahead,
+     * the scan it was made for.
+     */
+    private static class PrefetchRequest
+    {
+        private final String fileName;
+        private final int fileId;
+        private final int startPage;
+        private final int count;
+        private final ReadAhead stream; // null for an explicit prefetch
+        private final int generation;
+        private final boolean warm; // part of a warm-up: empty frames only
+
+        PrefetchRequest(String fileName, int fileId, int startPage, int count,
+                        ReadAhead stream, int generation, boolean warm)
+        {
+            this.fileName = fileName;
+            this.fileId = fileId;
+            this.startPage = startPage;
+            this.count = count;
+            this.stream = stream;
+            this.generation = generation;
+            this.warm = warm;
+        }
+
+        /**
+         * Tells whether a page of a read-ahead is no longer wanted:
+         * the scan has already pinned it, or has broken off.
+         */
+        boolean stale(int pageNum)
+        {
+            return stream != null && (stream.generation != generation
+                                      || pageNum <= stream.lastPage);
+        }
+    }
+
+    /**
+     * A hot page list being reloaded after a restart: the databases it
+     * names, its pages hottest first, and the batch of them being
+     * loaded, sorted. Used by the prefetcher only.
+     */
+    private static class WarmUp
+    {
+        private final String[] fileNames;
+        private final int[] fileIds;
+        private final long[] keys; // page table keys, hottest first
+        private int next; // first key not yet batched
+        private long[] batch = new long[0];
+        private int batchNext;
+        private long start; // when loading began
+        private long requested; // pages asked for since
+
+        WarmUp(String[] fileNames, int[] fileIds, long[] keys)
+        {
+            this.fileNames = fileNames;
+            this.fileIds = fileIds;
+            this.keys = keys;
         }
 
+        String fileName(int fileId)
+        {
+            for (int i = 0; i < fileIds.length; i++)
+                if (fileIds[i] == fileId)
+                    return fileNames[i];
+            return null;
+        }
     }
 
     // Here are some private variables to get you started. You'll
     // probably need more.
-    private Page[] bufferPool;
-    private FrameDescriptor[] frameTable;
-    private HashMap<Integer, Integer> allPages;
-    private int poolCapacity;
+    // Replaced, under the checkpoint lock, when the pool is resized.
+    private volatile Page[] bufferPool;
+    private volatile FrameDescriptor[] frameTable;
+    private PageTable[] allPages; // stripes, each locked on itself
+    private ConcurrentHashMap<String, Integer> fileIds;
+    private AtomicInteger nextFileId;
+    private volatile int poolCapacity;
     private int numpages;
-    private int clockHand;
+    private final Object freeLock = new Object();
+    private int[] freeFrames; // stack of empty frame indexes; guarded by freeLock
+    private int freeCount;
+    // Frames from here on are not handed out; below poolCapacity only
+    // while the pool shrinks.
+    private volatile int frameLimit;
+    // While the pool shrinks, the frames past frameLimit emptied and
+    // given up so far; guarded by freeLock.
+    private boolean[] retired;
+    private final Object resizeLock = new Object(); // one resize at a time
+    private AtomicInteger numPinned; // frames with a nonzero pin count
+    private AtomicInteger numDirty;
+    private ReplacementPolicy policy;
+    private ReplacementPolicy.Frames candidates;
+    private DBFileCache files;
+    private PageArena arena; // frame memory outside the heap, or null
+    private LogManager log;
+    // Shared by page changes and write-backs, exclusive for checkpoints,
+    // so the log is not emptied while a change is on its way to disk.
+    private ReentrantReadWriteLock checkpointLock;
+    // Databases written since the last checkpoint, to be synced by it.
+    private Set<String> unsynced;
+
+    private volatile Thread cleaner; // started and stopped under threadLock
+    private volatile Thread prefetcher; // started and stopped under threadLock
+    private final Object threadLock = new Object();
+    private volatile boolean closed;
+    private volatile int cleanerRate;
+    private volatile int checkpointRate; // 0 for no limit
+    private volatile double cleanAhead;
+    private volatile double lowWatermark;
+    private volatile double highWatermark;
+    // Used by the cleaner thread only.
+    private int[] upcoming;
+    private int cleanerCursor;
+    private boolean draining;
+
+    private ConcurrentLinkedQueue<PrefetchRequest> prefetches;
+    private AtomicInteger queuedPrefetches;
+    private volatile int maxReadAhead;
+    private volatile ReadAhead[] streams; // by file id; grown under threadLock
+
+    private BufferPoolMetrics metrics;
+    private volatile int pinSampling;
+    private ObjectName mbeanName; // set while registered with JMX
+    private final ThreadLocal<HandlePool> handles =
+        ThreadLocal.withInitial(() -> new HandlePool(Thread.currentThread()));
+
+    private volatile WarmUp warmUp; // pages left to reload, or null
+    private volatile int warmUpRate;
+    private AtomicInteger demandReads; // misses being read by callers
+    private volatile String hotPageFile; // saved to at close, or null
+    private volatile long hotPageInterval;
+    private volatile Thread hotPageSaver; // started and stopped under threadLock
 
     /**
      * Creates a buffer manager with the specified size.
@@ -49,11 +426,149 @@ public class BufferManager
      */
     public BufferManager(int poolSize)
     {
+        this(poolSize, DBFileCache.Mode.CHANNEL);
+    }
+
+    /**
+     * Creates a buffer manager that opens databases in the given mode.
+     * @param poolSize the number of pages that the buffer pool can hold.
+     * @param mode how the underlying database files are accessed.
+     */
+    public BufferManager(int poolSize, DBFileCache.Mode mode)
+    {
+        this(poolSize, mode, new ReplacementPolicy.Clock());
+    }
+
+    /**
+     * Creates a buffer manager that replaces pages by the given policy.
+     * @param poolSize the number of pages that the buffer pool can hold.
+     * @param mode how the underlying database files are accessed.
+     * @param policy the replacement policy, used by this buffer
+     * manager only.
+     */
+    public BufferManager(int poolSize, DBFileCache.Mode mode,
+                         ReplacementPolicy policy)
+    {
+        this(poolSize, mode, policy, null);
+    }
+
+    private BufferManager(int poolSize, DBFileCache.Mode mode,
+                          ReplacementPolicy policy, PageArena arena)
+    {
+        this.arena = arena;
         bufferPool = new Page[poolSize];
         poolCapacity = poolSize;
         frameTable = new FrameDescriptor[poolSize];
-        allPages = new HashMap<Integer,Integer>(); //create hashmap with pageId as key, index frame of page as value
-        clockHand = -1;
+        for (int i = 0; i < poolSize; i++)
+            frameTable[i] = new FrameDescriptor();
+        //maps (file, page) to the index frame of the page
+        allPages = new PageTable[STRIPES];
+        for (int i = 0; i < STRIPES; i++)
+            allPages[i] = new PageTable(poolSize / STRIPES + 1);
+        fileIds = new ConcurrentHashMap<String, Integer>();
+        nextFileId = new AtomicInteger();
+        //stack the empty frames so that frame 0 is handed out first
+        freeFrames = new int[poolSize];
+        for (int i = 0; i < poolSize; i++)
+            freeFrames[i] = poolSize - 1 - i;
+        freeCount = poolSize;
+        frameLimit = poolSize;
+        numPinned = new AtomicInteger();
+        numDirty = new AtomicInteger();
+        this.policy = policy;
+        policy.init(poolSize);
+        candidates = new ReplacementPolicy.Frames() {
+                public boolean isPinned(int frame)
+                {
+                    metrics.framesScanned.increment();
+                    return frameTable[frame].pinCount != 0;
+                }
+
+                public boolean claim(int frame)
+                {
+                    return frame < frameLimit
+                        && PIN_COUNT.compareAndSet(frameTable[frame], 0, BUSY);
+                }
+            };
+        files = DBFileCache.forMode(mode);
+        checkpointLock = new ReentrantReadWriteLock();
+        unsynced = ConcurrentHashMap.newKeySet();
+        cleanerRate = CLEANER_RATE;
+        cleanAhead = CLEAN_AHEAD;
+        lowWatermark = DIRTY_LOW_WATERMARK;
+        highWatermark = DIRTY_HIGH_WATERMARK;
+        upcoming = new int[0];
+        prefetches = new ConcurrentLinkedQueue<PrefetchRequest>();
+        queuedPrefetches = new AtomicInteger();
+        maxReadAhead = READ_AHEAD;
+        streams = new ReadAhead[0];
+        metrics = new BufferPoolMetrics();
+        pinSampling = PIN_SAMPLING;
+        warmUpRate = WARM_UP_RATE;
+        demandReads = new AtomicInteger();
+    }
+
+    /**
+     * Creates a buffer manager that logs page changes ahead of
+     * writing them. Changes recorded in the log but not yet in the
+     * databases, left by a crash, are redone first.
+     * @param poolSize the number of pages that the buffer pool can hold.
+     * @param mode how the underlying database files are accessed.
+     * @param log the write-ahead log, or null to write dirty pages
+     * straight back to the databases.
+     * @throws IOException passed through from underlying file system.
+     */
+    public BufferManager(int poolSize, DBFileCache.Mode mode, LogManager log)
+        throws IOException
+    {
+        this(poolSize, mode, log, new ReplacementPolicy.Clock());
+    }
+
+    /**
+     * Creates a buffer manager with a write-ahead log that replaces
+     * pages by the given policy.
+     * @param poolSize the number of pages that the buffer pool can hold.
+     * @param mode how the underlying database files are accessed.
+     * @param log the write-ahead log, or null to write dirty pages
+     * straight back to the databases.
+     * @param policy the replacement policy, used by this buffer
+     * manager only.
+     * @throws IOException passed through from underlying file system.
+     */
+    public BufferManager(int poolSize, DBFileCache.Mode mode, LogManager log,
+                         ReplacementPolicy policy)
+        throws IOException
+    {
+        this(poolSize, mode, log, policy, 0);
+    }
+
+    /**
+     * Creates a buffer manager whose frames may be carved out of one
+     * region of memory outside the heap. Pages in such a pool are
+     * views of their frames: their data field is null and their
+     * contents are reached through Page.buffer().
+     * @param poolSize the number of pages that the buffer pool can hold.
+     * @param mode how the underlying database files are accessed.
+     * @param log the write-ahead log, or null to write dirty pages
+     * straight back to the databases.
+     * @param policy the replacement policy, used by this buffer
+     * manager only.
+     * @param frameSize the size of each frame of an off-heap pool;
+     * pages of databases with bigger pages cannot be pinned. If 0,
+     * each frame's page is an array on the heap instead.
+     * @throws IllegalArgumentException if frameSize is neither 0 nor
+     * a valid page size.
+     * @throws IOException passed through from underlying file system.
+     */
+    public BufferManager(int poolSize, DBFileCache.Mode mode, LogManager log,
+                         ReplacementPolicy policy, int frameSize)
+        throws IOException
+    {
+        this(poolSize, mode, policy,
+             frameSize == 0 ? null : new PageArena(poolSize, frameSize));
+        this.log = log;
+        if (log != null)
+            log.recover(files);
     }
 
     /**
@@ -65,6 +580,160 @@ public class BufferManager
         return poolCapacity;
     }
 
+    /**
+     * Changes the number of frames in the pool while it is in use.
+     * Growing adds empty frames. Shrinking stops handing out the frames
+     * past the new end, then replaces their pages as they become
+     * unpinned, writing back those that are dirty, and returns once
+     * all of them are empty; the caller must not hold pins on pages in
+     * those frames. Pages in the frames that remain are untouched, and
+     * references to them stay valid.
+     * @param newPoolSize the new number of frames.
+     * @throws IllegalArgumentException if newPoolSize is not positive.
+     * @throws IOException passed through from underlying file system,
+     * in which case a shrink is abandoned and the pool keeps its size.
+     */
+    public void resize(int newPoolSize) throws IOException
+    {
+        if (newPoolSize <= 0)
+            throw new IllegalArgumentException("pool size must be positive");
+        synchronized (resizeLock) {
+            if (newPoolSize > poolCapacity)
+                grow(newPoolSize);
+            else if (newPoolSize < poolCapacity)
+                shrink(newPoolSize);
+        }
+    }
+
+    /**
+     * Adds empty frames to the pool. Misses wait meanwhile, since the
+     * frame arrays are replaced.
+     * @param newPoolSize the new number of frames.
+     */
+    private void grow(int newPoolSize)
+    {
+        checkpointLock.writeLock().lock();
+        try {
+            int oldSize = poolCapacity;
+            if (arena != null)
+                arena.resize(newPoolSize);
+            policy.resize(newPoolSize);
+            FrameDescriptor[] frames = Arrays.copyOf(frameTable, newPoolSize);
+            for (int i = oldSize; i < newPoolSize; i++)
+                frames[i] = new FrameDescriptor();
+            bufferPool = Arrays.copyOf(bufferPool, newPoolSize);
+            frameTable = frames;
+            synchronized (freeLock) {
+                freeFrames = Arrays.copyOf(freeFrames, newPoolSize);
+                for (int i = newPoolSize - 1; i >= oldSize; i--)
+                    freeFrames[freeCount++] = i;
+                frameLimit = newPoolSize;
+            }
+            poolCapacity = newPoolSize;
+        }
+        finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Empties the frames past a new end of the pool and drops them.
+     * @param newPoolSize the new number of frames.
+     * @throws IOException if a dirty page could not be written back.
+     */
+    private void shrink(int newPoolSize) throws IOException
+    {
+        int oldSize = poolCapacity;
+        //stop handing out the frames to be dropped; those on the stack
+        //are given up at once
+        synchronized (freeLock) {
+            retired = new boolean[oldSize];
+            frameLimit = newPoolSize;
+            int kept = 0;
+            for (int i = 0; i < freeCount; i++) {
+                if (freeFrames[i] < newPoolSize)
+                    freeFrames[kept++] = freeFrames[i];
+                else
+                    retired[freeFrames[i]] = true;
+            }
+            freeCount = kept;
+        }
+        try {
+            //the others are given up as their pins drain
+            while (retireFrames(newPoolSize, oldSize) > 0)
+                LockSupport.parkNanos(DRAIN_INTERVAL * 1000000);
+        }
+        catch (IOException | RuntimeException e) {
+            synchronized (freeLock) {
+                frameLimit = oldSize;
+                for (int i = newPoolSize; i < oldSize; i++)
+                    if (retired[i])
+                        freeFrames[freeCount++] = i;
+                retired = null;
+            }
+            throw e;
+        }
+
+        checkpointLock.writeLock().lock();
+        try {
+            policy.resize(newPoolSize);
+            if (arena != null)
+                arena.resize(newPoolSize);
+            bufferPool = Arrays.copyOf(bufferPool, newPoolSize);
+            frameTable = Arrays.copyOf(frameTable, newPoolSize);
+            synchronized (freeLock) {
+                freeFrames = Arrays.copyOf(freeFrames, newPoolSize);
+                retired = null;
+            }
+            poolCapacity = newPoolSize;
+            cleanerCursor = 0;
+        }
+        finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Empties and gives up each frame past the new end of a shrinking
+     * pool that nobody has pinned or claimed.
+     * @param from the first frame to be dropped.
+     * @param to the end of the frames to be dropped.
+     * @return the number of frames still to be given up.
+     * @throws IOException if a dirty page could not be written back;
+     * the frame then keeps its page.
+     */
+    private int retireFrames(int from, int to) throws IOException
+    {
+        int left = 0;
+        for (int i = from; i < to; i++) {
+            synchronized (freeLock) {
+                if (retired[i])
+                    continue;
+            }
+            FrameDescriptor frame = frameTable[i];
+            if (frame.pinCount != 0 || !PIN_COUNT.compareAndSet(frame, 0, BUSY)) {
+                left++;
+                continue;
+            }
+            checkpointLock.readLock().lock();
+            try {
+                evict(i);
+            }
+            catch (IOException | RuntimeException e) {
+                releaseClaim(i);
+                throw e;
+            }
+            finally {
+                checkpointLock.readLock().unlock();
+            }
+            bufferPool[i] = null;
+            policy.removed(i);
+            pushFreeFrame(i);
+            wake(frame);
+        }
+        return left;
+    }
+
     /**
      * Checks if this page is in buffer pool. If it is, returns a
      * pointer to it. Otherwise, it finds an available frame for this
@@ -83,111 +752,145 @@ public class BufferManager
     public Page pinPage(int pinPageId, String fileName, boolean emptyPage)
         throws IOException
     {
-        if (emptyPage) { //if page is empty, return null
-            System.out.println("The page is empty.");
+        return pinPage(pinPageId, fileName, emptyPage, null);
+    }
+
+    /**
+     * Pins a page for a bulk operation. A page in the pool is pinned
+     * where it is; a page that is not is read into the next frame of
+     * the operation's ring, so that the operation does not push the
+     * pool's other pages out.
+     * @param pinPageId the page id for the page to be pinned
+     * @param fileName the name of the database that contains the page
+     * to be pinned
+     * @param emptyPage determines if the page is known to be
+     * empty. If true, then the page is not actually read from disk
+     * since it is assumed to be empty.
+     * @param strategy the operation's access strategy, or null to use
+     * the whole pool.
+     * @return a reference to the page in the buffer pool. If the buffer
+     * pool is full, null is returned.
+     * @throws IOException passed through from underlying file system.
+     */
+    public Page pinPage(int pinPageId, String fileName, boolean emptyPage,
+                        BufferAccessStrategy strategy)
+        throws IOException
+    {
+        if (emptyPage) //if page is empty, return null
             return null;
+        int index = pinFrame(pinPageId, fileName, strategy);
+        return index < 0 ? null : bufferPool[index];
+    }
+
+    /**
+     * Pins a page, timing a sample of pins for the pin latency
+     * histogram.
+     * @param pinPageId the page id for the page to be pinned.
+     * @param fileName the name of the database that contains the page.
+     * @param strategy the caller's access strategy, or null.
+     * @return the frame index, or -1 if every frame is pinned.
+     * @throws IOException passed through from underlying file system.
+     */
+    private int pinFrame(int pinPageId, String fileName,
+                         BufferAccessStrategy strategy)
+        throws IOException
+    {
+        int sampling = pinSampling;
+        if (sampling > 1 && ThreadLocalRandom.current().nextInt(sampling) != 0)
+            return pin(pinPageId, fileName, strategy);
+        long start = System.nanoTime();
+        try {
+            return pin(pinPageId, fileName, strategy);
         }
-        numPages();
-        int numPinned = 0;
-        for (int i=0; i<numpages; i++){
-            if (frameTable[i].pinCount != 0){
-                numPinned++;
-            }
-        }
-        if (numPinned == poolCapacity){
-            return null;
+        finally {
+            metrics.pinLatency.record(System.nanoTime() - start);
         }
-        if (allPages.containsKey(pinPageId)) { //if page is in bufferpool
-            System.out.println("tester 1");
-            numPages();
-            int pageIndex = allPages.get(pinPageId);
-            FrameDescriptor curPage = frameTable[pageIndex];
-            curPage.pinCount ++;
-            curPage.dirty = true;
-            return bufferPool[pageIndex];
-        }
-        else{ //if page is not in bufferpool, get from disk
-            numPages();
-            if (numpages < poolCapacity) { //if there is empty frame
-                //update buffer pool
-                numPages();
-                int newIndex = numpages; //index to insert at
-                Page insertPage = null; //create new page object in memory
-                
-                DBFile db = new DBFile(fileName); //open the target database containing the page
-                insertPage = new Page();
-                db.readPage(pinPageId, insertPage); //read page into the new page object
-                bufferPool[newIndex] = insertPage; //insert the new page object into bufferpool
-                numPages();
-                
-                //update FrameDescriptor
-                FrameDescriptor newFrame = new FrameDescriptor();
-                newFrame.pageNum = pinPageId;
-                newFrame.pinCount = 1; //pin page
-                newFrame.fileName = fileName;
-                newFrame.dirty = true;
-                frameTable[newIndex] = newFrame;
-                
-                //update allPages
-                allPages.put(pinPageId, newIndex);
-                
-                return bufferPool[newIndex];
-            }
-            numPages();
-            if (numpages >= poolCapacity) { //if there are no empty frames, use clock
-                //choose a frame for replacement using clock replacement
-                numPages();
-                boolean frameFound = false;
-                clockHand = (clockHand + 1) % (poolCapacity); //advance clockhand
-                FrameDescriptor curFrame = frameTable[clockHand];
-                while (frameFound == false) {
-                    if (curFrame.pinCount != 0) { //if page pinned, advance clockhand
-                        clockHand = (clockHand + 1) % (poolCapacity);
-                        curFrame = frameTable[clockHand];
-                    }
-                    if (curFrame.pinCount == 0 && curFrame.referenceBit == false) {
-                        curFrame.referenceBit = true;
-                        clockHand = (clockHand + 1) % (poolCapacity);
-                        curFrame = frameTable[clockHand];
-                    }
-                    if (curFrame.referenceBit == true) {
-                        frameFound = true;
-                    }
-                    
+    }
+
+    /**
+     * Pins a page, reading it in if need be.
+     * @param pinPageId the page id for the page to be pinned.
+     * @param fileName the name of the database that contains the page.
+     * @param strategy the caller's access strategy, or null.
+     * @return the frame index, or -1 if every frame is pinned.
+     * @throws IOException passed through from underlying file system.
+     */
+    private int pin(int pinPageId, String fileName,
+                    BufferAccessStrategy strategy)
+        throws IOException
+    {
+        int fileId = fileId(fileName);
+        long key = PageTable.key(fileId, pinPageId);
+        PageTable stripe = stripe(key);
+        if (strategy != null)
+            strategy.init(poolCapacity);
+        else if (maxReadAhead > 0)
+            readAhead(fileName, fileId, pinPageId);
+        while (true) {
+            int pageIndex;
+            FrameDescriptor frame = null;
+            boolean hit = false;
+            int wakes = 0;
+            synchronized (stripe) {
+                pageIndex = stripe.get(key);
+                if (pageIndex >= 0) {
+                    frame = frameTable[pageIndex];
+                    wakes = frame.wakes; //before the frame is seen busy
+                    hit = tryPin(frame);
+                }
+            }
+            if (hit) { //if page is in bufferpool
+                //the policy counted a page loaded ahead as accessed
+                //when it was loaded
+                if (frame.prefetched != 0 && PREFETCHED.compareAndSet(frame, 1, 0))
+                    prefetchOutcome(frame.fileId, true);
+                else
+                    policy.accessed(pageIndex);
+                metrics.hits.increment();
+                return pageIndex;
+            }
+            if (pageIndex >= 0) { //another thread is reading or evicting it
+                metrics.pinWaits.increment();
+                awaitFrame(frame, wakes);
+                continue;
+            }
+            if (numPinned.get() >= poolCapacity) { //every frame is pinned
+                return -1;
+            }
+            //if page is not in bufferpool, get from disk into the
+            //strategy's next frame, an empty frame, or else one chosen
+            //by the replacement policy
+            checkpointLock.readLock().lock();
+            try {
+                int newIndex = strategy == null ? -1 : reuseRingFrame(strategy);
+                if (newIndex < 0)
+                    newIndex = takeFreeFrame();
+                if (newIndex < 0)
+                    newIndex = policy.victim(key, candidates);
+                if (newIndex < 0)
+                    return -1;
+                boolean loaded;
+                demandReads.incrementAndGet();
+                try {
+                    loaded = load(newIndex, key, fileName, fileId, pinPageId, true);
                 }
-                
-                int curPageId = curFrame.pageNum;
-                //check if the page to be replaced is dirty
-                if (curFrame.dirty == true) {
-                    DBFile dbFile = new DBFile(fileName);
-                    dbFile.writePage(curFrame.pageNum, bufferPool[clockHand]);;
+                finally {
+                    demandReads.decrementAndGet();
                 }
-                //update bufferpool
-                Page insertPage = new Page(); //create new page object in memory
-                DBFile db = new DBFile(fileName); //open the target database containing the page
-                db.readPage(pinPageId, insertPage); //read page into the new page object
-                bufferPool[clockHand] = insertPage; //insert the new page object into bufferpool
-                numPages();
-                
-                //update frameTable
-                FrameDescriptor newFrame = new FrameDescriptor();
-                newFrame.pageNum = pinPageId;
-                newFrame.pinCount = 1; //pin page
-                newFrame.fileName = fileName;
-                newFrame.dirty = true;
-                frameTable[clockHand] = newFrame; 
-                
-                //update allPages
-                allPages.remove(curPageId);
-                allPages.put(pinPageId, clockHand);
-                
-                return bufferPool[clockHand];
-            }
-        }
-        return null;
-    }
-
-    
+                if (loaded) {
+                    metrics.misses.increment();
+                    if (strategy != null)
+                        strategy.record(newIndex, key);
+                    return newIndex;
+                }
+            }
+            finally {
+                checkpointLock.readLock().unlock();
+            }
+        }
+    }
+
+
     /**
      * If the pin count for this page is greater than 0, it is
      * decremented. If the pin count becomes zero, it is appropriately
@@ -195,8 +898,8 @@ public class BufferManager
      * @param unpinPageId the page id for the page to be unpinned
      * @param fileName the name of the database that contains the page
      * to be unpinned
-     * @param dirty if false, then the page does not actually need to
-     * be written back to disk.
+     * @param dirty whether the caller changed the page. If false, then
+     * the page does not actually need to be written back to disk.
      * @throws PageNotPinnedException if the page is not pinned, or if
      * the page id is invalid in some other way.
      * @throws IOException passed through from underlying file system.
@@ -204,117 +907,1577 @@ public class BufferManager
     public void unpinPage(int unpinPageId, String fileName, boolean dirty)
         throws IOException
     {
-        boolean success = false;
-        int pageIndex = allPages.get(unpinPageId);
-        FrameDescriptor curPage = frameTable[pageIndex];
-        
-        if (curPage.pinCount > 0) {
-            curPage.pinCount --;
-            success = true;
-        }
-        if (curPage.pinCount == 0) {
-            curPage.referenceBit = false;
-        }
-        
-        //write back if the page unpinned is dirty
-        if (curPage.dirty == true) {
-            DBFile dbFile = new DBFile(fileName);
-            dbFile.writePage(curPage.pageNum, bufferPool[pageIndex]);
-        }
-        
-        if (!success) {
-            throw new PageNotPinnedException();
-        }
+        int pageIndex = pinnedFrame(unpinPageId, fileName);
+        boolean checkpointDue = recordChange(pageIndex, fileName, dirty);
+        unpin(pageIndex, true);
+        if (dirty)
+            startCleaner();
+        if (checkpointDue)
+            checkpoint();
     }
 
-
     /**
-     * Requests a run of pages from the underlying database, then
-     * finds a frame in the buffer pool for the first page and pins
-     * it. If the buffer pool is full, no new pages are allocated from
-     * the database.
-     * @param numPages the number of pages in the run to be allocated.
-     * @param fileName the name of the database from where pages are
-     * to be allocated.
-     * @return an Integer containing the first page id of the run, and
-     * a references to the Page which has been pinned in the buffer
-     * pool. Returns null if there is not enough space in the buffer
-     * pool for the first page.
-     * @throws DBFile.FileFullException if there are not enough free pages.
+     * Pins a page and latches it shared: other threads may read it,
+     * and may latch it shared too, but nobody may latch it exclusive
+     * until unpinShared. Latches are not reentrant; a thread holding a
+     * page's latch must not ask for it again.
+     * @param pageId the page id for the page to be pinned.
+     * @param fileName the name of the database that contains the page.
+     * @return a reference to the page in the buffer pool, or null if
+     * every frame is pinned.
      * @throws IOException passed through from underlying file system.
      */
-    public Pair<Integer,Page> newPage(int numPages, String fileName)
-        throws IOException
+    public Page pinShared(int pageId, String fileName) throws IOException
     {
-        DBFile db = new DBFile(fileName); //open the target database containing the page
-        int firstPId = db.allocatePages(numPages);
-        numPages();
-        if (numpages < poolCapacity){ //if there is empty frame
-            //update buffer pool
-            int newIndex = numpages; //index to insert at
-            Page insertPage = new Page(); //create new page object in memory
-            db.readPage(firstPId, insertPage); //read page into the new page object
-            bufferPool[newIndex] = insertPage; //insert the new page object into bufferpool
-            numPages();
-            
-            //update FrameDescriptor
-            FrameDescriptor newFrame = new FrameDescriptor();
-            newFrame.pageNum = firstPId;
-            newFrame.pinCount = 1; //pin page
-            newFrame.fileName = fileName;
-            newFrame.dirty = true;
-            frameTable[newIndex] = newFrame;
-            
-            //update allPages
-            allPages.put(firstPId, newIndex);
-            Pair<Integer, Page> ret = new Pair<Integer, Page>(firstPId, bufferPool[newIndex]);
-            System.out.println(newIndex);
-            return ret;
-        }
-        else {
-            System.out.println("There is not enough space in the bufferpool.");
+        int index = pinFrame(pageId, fileName, null);
+        if (index < 0)
             return null;
-        }
+        latchShared(frameTable[index]);
+        return bufferPool[index];
     }
 
     /**
-     * Deallocates a page from the underlying database. Verifies that
-     * page is not pinned.
-     * @param pageId the page id to be deallocated.
-     * @param fileName the name of the database from where the page is
-     * to be deallocated.
-     * @throws PagePinnedException if the page is pinned
+     * Pins a page and latches it exclusive, waiting until no other
+     * thread holds its latch; nobody else may latch it until
+     * unpinExclusive. A thread that changes a page other threads may
+     * be reading should hold this latch while it does.
+     * @param pageId the page id for the page to be pinned.
+     * @param fileName the name of the database that contains the page.
+     * @return a reference to the page in the buffer pool, or null if
+     * every frame is pinned.
      * @throws IOException passed through from underlying file system.
      */
-    public void freePage(int pageId, String fileName) throws IOException
+    public Page pinExclusive(int pageId, String fileName) throws IOException
     {
-        DBFile temp = new DBFile(fileName);
-        int pageIndex = allPages.get(pageId);
-        FrameDescriptor curPage = frameTable[pageIndex];
-        
-        if (curPage.pinCount > 0)
-            throw new PagePinnedException();
-        temp.deallocatePages(pageId, 1);
+        int index = pinFrame(pageId, fileName, null);
+        if (index < 0)
+            return null;
+        latchExclusive(frameTable[index]);
+        return bufferPool[index];
     }
 
-    
-    
     /**
-     * Count the number of pages in the bufferpool
+     * Lets go of a shared latch taken by pinShared and unpins the page.
+     * @param pageId the page id for the page to be unpinned.
+     * @param fileName the name of the database that contains the page.
+     * @throws PageNotPinnedException if the page is not pinned.
+     * @throws PageNotLatchedException if the page is not latched
+     * shared.
      */
-    public void numPages() {
-        int counter = 0;
-        for (int i = 0; i < bufferPool.length; i ++)
-            if (bufferPool[i] != null)
-                counter ++;
-        numpages = counter;
+    public void unpinShared(int pageId, String fileName)
+    {
+        int pageIndex = pinnedFrame(pageId, fileName);
+        unlatchShared(frameTable[pageIndex]);
+        unpin(pageIndex, true);
     }
+
     /**
-     * Flushes page from the buffer pool to the underlying database if
-     * it is dirty. If page is not dirty, it is not flushed,
-     * especially since an undirty page may hang around even after the
-     * underlying database has been erased. If the page is not in the
-     * buffer pool, do nothing, since the page is effectively flushed
+     * Lets go of an exclusive latch taken by pinExclusive and unpins
+     * the page. A change is logged before the latch goes, so the log
+     * holds the page as the caller left it.
+     * @param pageId the page id for the page to be unpinned.
+     * @param fileName the name of the database that contains the page.
+     * @param dirty whether the caller changed the page.
+     * @throws PageNotPinnedException if the page is not pinned.
+     * @throws PageNotLatchedException if the page is not latched
+     * exclusive.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void unpinExclusive(int pageId, String fileName, boolean dirty)
+        throws IOException
+    {
+        int pageIndex = pinnedFrame(pageId, fileName);
+        FrameDescriptor frame = frameTable[pageIndex];
+        if ((frame.latch & EXCLUSIVE) == 0)
+            throw new PageNotLatchedException();
+        boolean checkpointDue;
+        try {
+            checkpointDue = recordChange(pageIndex, fileName, dirty);
+        }
+        finally {
+            unlatchExclusive(frame);
+        }
+        unpin(pageIndex, true);
+        if (dirty)
+            startCleaner();
+        if (checkpointDue)
+            checkpoint();
+    }
+
+    /**
+     * Pins a page and returns a handle on the pin, through which the
+     * page is marked dirty, latched and unpinned without being looked
+     * up again. Handles are reused, so that pinning this way allocates
+     * nothing; see PageHandle.
+     * @param pageId the page id for the page to be pinned.
+     * @param fileName the name of the database that contains the page.
+     * @return a handle on the pinned page, or null if every frame is
+     * pinned.
+     * @throws IOException passed through from underlying file system.
+     */
+    public PageHandle pinPage(int pageId, String fileName) throws IOException
+    {
+        int index = pinFrame(pageId, fileName, null);
+        if (index < 0)
+            return null;
+        HandlePool pool = handles.get();
+        PageHandle handle = pool.top;
+        if (handle != null) {
+            pool.top = handle.next;
+            pool.size--;
+            handle.next = null;
+        }
+        else {
+            handle = new PageHandle(this, pool);
+        }
+        handle.frame = index;
+        handle.generation = frameTable[index].generation;
+        handle.pageNum = pageId;
+        handle.page = bufferPool[index];
+        handle.dirty = false;
+        handle.latch = PageHandle.UNLATCHED;
+        handle.open = true;
+        return handle;
+    }
+
+    /**
+     * Checks that a page handle is open and its page still pinned in
+     * its frame.
+     * @param handle the handle.
+     * @return the frame the handle pins.
+     * @throws PageHandle.StaleHandleException if it is not.
+     */
+    FrameDescriptor checkHandle(PageHandle handle)
+    {
+        FrameDescriptor[] frames = frameTable;
+        if (!handle.open || handle.frame >= frames.length)
+            throw new PageHandle.StaleHandleException();
+        FrameDescriptor frame = frames[handle.frame];
+        if (frame.generation != handle.generation || frame.pinCount <= 0)
+            throw new PageHandle.StaleHandleException();
+        return frame;
+    }
+
+    /**
+     * Latches the page of a handle.
+     * @param handle the handle.
+     * @param mode PageHandle.SHARED or PageHandle.EXCLUSIVE.
+     * @throws IllegalStateException if the page is already latched
+     * through the handle.
+     */
+    void latch(PageHandle handle, int mode)
+    {
+        FrameDescriptor frame = checkHandle(handle);
+        if (handle.latch != PageHandle.UNLATCHED)
+            throw new IllegalStateException("page already latched");
+        if (mode == PageHandle.SHARED)
+            latchShared(frame);
+        else
+            latchExclusive(frame);
+        handle.latch = mode;
+    }
+
+    /**
+     * Lets go of the latch taken through a handle.
+     * @param handle the handle.
+     * @throws PageNotLatchedException if there is none.
+     */
+    void unlatch(PageHandle handle)
+    {
+        FrameDescriptor frame = checkHandle(handle);
+        if (handle.latch == PageHandle.SHARED)
+            unlatchShared(frame);
+        else if (handle.latch == PageHandle.EXCLUSIVE)
+            unlatchExclusive(frame);
+        else
+            throw new PageNotLatchedException();
+        handle.latch = PageHandle.UNLATCHED;
+    }
+
+    /**
+     * Starts an optimistic read of the page of a handle.
+     * @param handle the handle.
+     * @return a stamp for validate, or 0 if the page is latched
+     * exclusive.
+     */
+    long tryOptimisticRead(PageHandle handle)
+    {
+        return stamp(checkHandle(handle), handle.frame);
+    }
+
+    /**
+     * Unpins the page of a handle, recording its change and letting go
+     * of its latch first, and keeps the handle for reuse. The page is
+     * unpinned even if the change cannot be logged, since the closed
+     * handle could not unpin it later.
+     * @param handle the handle.
+     * @throws IOException passed through from underlying file system.
+     */
+    void unpin(PageHandle handle) throws IOException
+    {
+        FrameDescriptor frame = checkHandle(handle);
+        int pageIndex = handle.frame;
+        boolean dirty = handle.dirty;
+        boolean checkpointDue;
+        handle.open = false;
+        try {
+            checkpointDue = recordChange(pageIndex, frame.fileName, dirty);
+        }
+        finally {
+            if (handle.latch == PageHandle.SHARED)
+                unlatchShared(frame);
+            else if (handle.latch == PageHandle.EXCLUSIVE)
+                unlatchExclusive(frame);
+            unpin(pageIndex, true);
+            handle.page = null;
+            //only the pinning thread's own pool takes the handle back
+            HandlePool pool = handle.pool;
+            if (pool.owner == Thread.currentThread() && pool.size < HANDLE_POOL) {
+                handle.next = pool.top;
+                pool.top = handle;
+                pool.size++;
+            }
+        }
+        if (dirty)
+            startCleaner();
+        if (checkpointDue)
+            checkpoint();
+    }
+
+    /**
+     * Starts an optimistic read of a pinned page, which takes no latch
+     * and writes nothing shared, so that readers of the same page do
+     * not slow each other down. The caller reads what it needs from
+     * the page, then calls validate with the stamp returned; only if
+     * that returns true did no exclusive holder change the page
+     * meanwhile, and can what was read be used. Until then, what was
+     * read may be inconsistent, and must not be trusted so far as to
+     * loop or index with it unchecked.
+     * @param pageId the page id of the page to be read.
+     * @param fileName the name of the database that contains the page.
+     * @return a stamp for validate, or 0 if the page is latched
+     * exclusive.
+     * @throws PageNotPinnedException if the page is not pinned.
+     */
+    public long tryOptimisticRead(int pageId, String fileName)
+    {
+        int pageIndex = pinnedFrame(pageId, fileName);
+        return stamp(frameTable[pageIndex], pageIndex);
+    }
+
+    /**
+     * Starts another optimistic read of the page an earlier one was
+     * started on, without looking the page up again, so that a caller
+     * reading many records of a page pays for the lookup once. The
+     * page must still be pinned.
+     * @param stamp a nonzero stamp returned for the page by
+     * tryOptimisticRead.
+     * @return a stamp for validate, or 0 if the page is latched
+     * exclusive.
+     */
+    public long tryOptimisticRead(long stamp)
+    {
+        int pageIndex = (int)stamp - 1;
+        return stamp(frameTable[pageIndex], pageIndex);
+    }
+
+    /**
+     * Tells whether the page an optimistic read was started on has not
+     * been latched exclusive since. The page must still be pinned.
+     * @param stamp the stamp returned by tryOptimisticRead.
+     * @return true if what was read since the stamp was taken is
+     * consistent; false if it must be read again.
+     */
+    public boolean validate(long stamp)
+    {
+        VarHandle.acquireFence(); //keep the caller's reads before this
+        if (stamp == 0)
+            return false;
+        FrameDescriptor[] frames = frameTable;
+        int index = (int)stamp - 1;
+        if (index >= frames.length)
+            return false;
+        long state = frames[index].latch;
+        return (state & EXCLUSIVE) == 0
+            && (int)(state >>> VERSION_SHIFT) == (int)(stamp >>> 32);
+    }
+
+    /**
+     * Returns a stamp for an optimistic read of a frame.
+     * @param frame the frame, pinned by the caller.
+     * @param index the frame index.
+     * @return the stamp, or 0 if the frame is latched exclusive.
+     */
+    private static long stamp(FrameDescriptor frame, int index)
+    {
+        long state = frame.latch;
+        if ((state & EXCLUSIVE) != 0)
+            return 0;
+        //the stamp names the frame, so validate need not look it up
+        return (state >>> VERSION_SHIFT) << 32 | (index + 1);
+    }
+
+    /**
+     * Finds the frame of a page that is pinned.
+     * @param pageId the page id.
+     * @param fileName the name of the database that contains the page.
+     * @return the frame index.
+     * @throws PageNotPinnedException if the page is not pinned.
+     */
+    private int pinnedFrame(int pageId, String fileName)
+    {
+        int pageIndex = lookup(PageTable.key(fileId(fileName), pageId));
+        if (pageIndex < 0 || frameTable[pageIndex].pinCount <= 0)
+            throw new PageNotPinnedException();
+        return pageIndex;
+    }
+
+    /**
+     * Records a caller's change to a page it has pinned: logs it, with
+     * a log, and marks the frame dirty. The caller's pin keeps the
+     * frame from being replaced until the change has been recorded.
+     * @param pageIndex the frame index.
+     * @param fileName the name of the database that contains the page.
+     * @param dirty whether the caller changed the page.
+     * @return true if the log has grown enough for a checkpoint.
+     * @throws IOException passed through from underlying file system.
+     */
+    private boolean recordChange(int pageIndex, String fileName, boolean dirty)
+        throws IOException
+    {
+        if (!dirty)
+            return false;
+        FrameDescriptor curPage = frameTable[pageIndex];
+        if (log == null) {
+            //the page is written back later. A flush may have cleared
+            //the flag since the page was pinned, so the caller's word
+            //sets it again.
+            setDirty(curPage);
+            return false;
+        }
+        //log the change; the page itself is written by the cleaner,
+        //at eviction or at checkpoint time
+        checkpointLock.readLock().lock();
+        try {
+            long lsn = log.append(fileName, curPage.pageNum, bufferPool[pageIndex]);
+            synchronized (curPage) {
+                curPage.pageLsn = Math.max(curPage.pageLsn, lsn);
+            }
+            setDirty(curPage);
+        }
+        finally {
+            checkpointLock.readLock().unlock();
+        }
+        return log.size() >= CHECKPOINT_LOG_SIZE;
+    }
+
+
+    /**
+     * Requests a run of pages from the underlying database, then
+     * finds a frame in the buffer pool for the first page and pins
+     * it. If the buffer pool is full, no new pages are allocated from
+     * the database.
+     * @param numPages the number of pages in the run to be allocated.
+     * @param fileName the name of the database from where pages are
+     * to be allocated.
+     * @return an Integer containing the first page id of the run, and
+     * a references to the Page which has been pinned in the buffer
+     * pool. Returns null if there is not enough space in the buffer
+     * pool for the first page.
+     * @throws DBFile.FileFullException if there are not enough free pages.
+     * @throws IOException passed through from underlying file system.
+     */
+    public Pair<Integer,Page> newPage(int numPages, String fileName)
+        throws IOException
+    {
+        return newPage(numPages, fileName, null);
+    }
+
+    /**
+     * Allocates a run of pages for a bulk operation and pins the first
+     * in the next frame of the operation's ring, or else an empty
+     * frame. Once the ring has frames, a bulk load can go on however
+     * full the pool is.
+     * @param numPages the number of pages in the run to be allocated.
+     * @param fileName the name of the database from where pages are
+     * to be allocated.
+     * @param strategy the operation's access strategy, or null to use
+     * empty frames only.
+     * @return an Integer containing the first page id of the run, and
+     * a references to the Page which has been pinned in the buffer
+     * pool. Returns null if there is no frame for the first page.
+     * @throws DBFile.FileFullException if there are not enough free pages.
+     * @throws IOException passed through from underlying file system.
+     */
+    public Pair<Integer,Page> newPage(int numPages, String fileName,
+                                      BufferAccessStrategy strategy)
+        throws IOException
+    {
+        int firstPId;
+        if (strategy != null)
+            strategy.init(poolCapacity);
+        checkpointLock.readLock().lock();
+        try {
+            int newIndex = strategy == null ? -1 : reuseRingFrame(strategy);
+            if (newIndex < 0)
+                newIndex = takeFreeFrame(); //index to insert at
+            if (newIndex < 0) //no empty frame, so allocate nothing
+                return null;
+            DBFile db = files.acquire(fileName); //open the target database containing the page
+            try {
+                firstPId = db.allocatePages(numPages);
+                logAllocation(fileName, firstPId, numPages, true);
+            }
+            catch (IOException | RuntimeException e) {
+                releaseClaim(newIndex);
+                throw e;
+            }
+            finally {
+                files.release(db);
+            }
+            int fileId = fileId(fileName);
+            long key = PageTable.key(fileId, firstPId);
+            if (load(newIndex, key, fileName, fileId, firstPId, true)) {
+                if (strategy != null)
+                    strategy.record(newIndex, key);
+                return new Pair<Integer, Page>(firstPId, bufferPool[newIndex]);
+            }
+        }
+        finally {
+            checkpointLock.readLock().unlock();
+        }
+        //another thread pinned the new page first
+        return new Pair<Integer, Page>(firstPId,
+                                       pinPage(firstPId, fileName, false, strategy));
+    }
+
+    /**
+     * Deallocates a page from the underlying database. Verifies that
+     * page is not pinned.
+     * @param pageId the page id to be deallocated.
+     * @param fileName the name of the database from where the page is
+     * to be deallocated.
+     * @throws PagePinnedException if the page is pinned
+     * @throws IOException passed through from underlying file system.
+     */
+    public void freePage(int pageId, String fileName) throws IOException
+    {
+        long key = PageTable.key(fileId(fileName), pageId);
+        PageTable stripe = stripe(key);
+        while (true) {
+            FrameDescriptor frame;
+            int wakes;
+            synchronized (stripe) {
+                int pageIndex = stripe.get(key);
+                if (pageIndex < 0)
+                    break;
+                frame = frameTable[pageIndex];
+                wakes = frame.wakes;
+                if (frame.pinCount > 0)
+                    throw new PagePinnedException();
+                if (PIN_COUNT.compareAndSet(frame, 0, BUSY)) {
+                    //the frame's contents are gone, so free it
+                    stripe.remove(key);
+                    if (PREFETCHED.compareAndSet(frame, 1, 0))
+                        prefetchOutcome(frame.fileId, false);
+                    frame.pageNum = INVALID_PAGE;
+                    frame.fileName = null;
+                    setClean(frame);
+                    bufferPool[pageIndex] = null;
+                    policy.removed(pageIndex);
+                    pushFreeFrame(pageIndex);
+                    wake(frame);
+                    break;
+                }
+            }
+            if (frame.pinCount == BUSY) //another thread is evicting it
+                awaitFrame(frame, wakes);
+        }
+        checkpointLock.readLock().lock();
+        DBFile temp = files.acquire(fileName);
+        try {
+            temp.deallocatePages(pageId, 1);
+            logAllocation(fileName, pageId, 1, false);
+        }
+        finally {
+            files.release(temp);
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Logs an allocation or deallocation. The space map is written
+     * back in batches, so without the record a crash could lose the
+     * allocation of pages whose logged images are then not redone.
+     * The database is synced at the next checkpoint, which empties
+     * the log. Called with the checkpoint lock held shared.
+     * @throws IOException passed through from underlying file system.
+     */
+    private void logAllocation(String fileName, int startPage, int runSize,
+                               boolean allocated)
+        throws IOException
+    {
+        if (log == null)
+            return;
+        if (allocated)
+            log.appendAllocation(fileName, startPage, runSize);
+        else
+            log.appendDeallocation(fileName, startPage, runSize);
+        unsynced.add(fileName);
+    }
+
+
+
+    /**
+     * Reads a page through the shared file cache straight into a
+     * claimed frame.
+     * @param index the claimed frame.
+     * @param fileName the name of the database that contains the page.
+     * @param pageNum the page number to be read.
+     * @return the frame's page, holding the page read.
+     * @throws DBFile.BadPageSizeException if the database's pages do
+     * not fit in an arena frame.
+     * @throws IOException passed through from underlying file system.
+     */
+    private Page readFrame(int index, String fileName, int pageNum)
+        throws IOException
+    {
+        DBFile db = files.acquire(fileName);
+        try {
+            Page page = framePage(index, db.getPageSize());
+            long start = System.nanoTime();
+            db.readPage(pageNum, page);
+            metrics.readLatency.record(System.nanoTime() - start);
+            return page;
+        }
+        finally {
+            files.release(db);
+        }
+    }
+
+    /**
+     * Returns the page object a claimed frame reads into: its slice of
+     * the arena, or else the frame's heap page if that has the right
+     * size. Only a frame new to this page size gets a new page object.
+     * @param index the claimed frame.
+     * @param size the page size of the database to be read.
+     * @return the page to read into.
+     * @throws DBFile.BadPageSizeException if pages of this size do not
+     * fit in an arena frame.
+     */
+    private Page framePage(int index, int size)
+    {
+        if (arena != null)
+            return arena.page(index, size);
+        Page page = bufferPool[index];
+        if (page == null || page.size() != size)
+            page = new Page(size);
+        return page;
+    }
+
+    /**
+     * Fills a claimed frame with a page. The page is entered in the
+     * table first, so that threads pinning it wait for this read; then
+     * the frame's old page is written back if need be and the new one
+     * read in its place, with no lock held. If the write-back fails,
+     * the frame keeps its old page; if the read fails, the old page has
+     * already been overwritten, so the frame is left empty. Either way
+     * the table entry is withdrawn.
+     *
+     * The write-back is not overlapped with the read. The read goes
+     * into the frame's own memory, and the old page leaves the table
+     * only once it is on disk, so that a thread pinning it again never
+     * reads its old contents. The page cleaner keeps most victims
+     * clean, so most misses have nothing to write.
+     * @param index the claimed frame.
+     * @param key the page table key of the page.
+     * @param fileName the name of the database that contains the page.
+     * @param fileId the id of that database.
+     * @param pageNum the page number.
+     * @param pin whether to pin the page, or else leave it unpinned as
+     * a page loaded ahead of use.
+     * @return true if the page was loaded; false if another thread
+     * entered it in the table first, in which case the frame has been
+     * given back.
+     * @throws IOException passed through from underlying file system.
+     */
+    private boolean load(int index, long key, String fileName, int fileId,
+                         int pageNum, boolean pin)
+        throws IOException
+    {
+        if (!enter(index, key))
+            return false;
+        Page insertPage;
+        try {
+            evict(index);
+            insertPage = readFrame(index, fileName, pageNum);
+        }
+        catch (IOException | RuntimeException e) {
+            abandon(index, key);
+            throw e;
+        }
+        installPage(index, key, insertPage, fileName, fileId, pageNum, pin);
+        return true;
+    }
+
+    /**
+     * Enters a page in the table as held by a claimed frame, unless it
+     * is there already, in which case the frame is given back.
+     * @param index the claimed frame.
+     * @param key the page table key of the page.
+     * @return true if the page was entered.
+     */
+    private boolean enter(int index, long key)
+    {
+        PageTable stripe = stripe(key);
+        synchronized (stripe) {
+            if (stripe.get(key) >= 0) {
+                releaseClaim(index);
+                return false;
+            }
+            stripe.put(key, index);
+        }
+        return true;
+    }
+
+    /**
+     * Writes back the page in a claimed frame if it is dirty, then
+     * drops it from the table; it can be read again from disk.
+     * @param index the claimed frame.
+     * @throws IOException passed through from underlying file system;
+     * the frame then keeps its page.
+     */
+    private void evict(int index) throws IOException
+    {
+        FrameDescriptor frame = frameTable[index];
+        if (frame.pageNum == INVALID_PAGE)
+            return;
+        if (frame.dirty != 0) {
+            writeFrame(index);
+            metrics.evictionWriteBacks.increment();
+        }
+        metrics.evictions.increment();
+        long oldKey = PageTable.key(frame.fileId, frame.pageNum);
+        PageTable old = stripe(oldKey);
+        synchronized (old) {
+            old.remove(oldKey);
+        }
+        //a page loaded ahead and never used leaves no history
+        //behind, or reading it again would look like a second use
+        if (PREFETCHED.compareAndSet(frame, 1, 0)) {
+            prefetchOutcome(frame.fileId, false);
+            policy.removed(index);
+        }
+        frame.pageNum = INVALID_PAGE;
+        frame.fileName = null;
+    }
+
+    /**
+     * Withdraws a page that could not be loaded from the table and
+     * gives back its frame, which keeps its old page if that was not
+     * evicted yet and is otherwise left empty.
+     * @param index the claimed frame.
+     * @param key the page table key of the page.
+     */
+    private void abandon(int index, long key)
+    {
+        PageTable stripe = stripe(key);
+        synchronized (stripe) {
+            stripe.remove(key);
+        }
+        if (frameTable[index].pageNum == INVALID_PAGE)
+            policy.removed(index);
+        releaseClaim(index);
+    }
+
+    /**
+     * Puts a page just read into a claimed frame and pins it once, or
+     * leaves it unpinned and marked as loaded ahead of use. Setting
+     * the pin count last publishes the frame to other threads.
+     * @param index the frame index.
+     * @param key the page table key of the page.
+     * @param page the page read.
+     * @param fileName the name of the database that contains the page.
+     * @param fileId the id of that database.
+     * @param pageNum the page number.
+     * @param pin whether to pin the page.
+     */
+    private void installPage(int index, long key, Page page, String fileName,
+                             int fileId, int pageNum, boolean pin)
+    {
+        bufferPool[index] = page; //the frame's page, now holding the new data
+
+        //update FrameDescriptor
+        FrameDescriptor frame = frameTable[index];
+        frame.pageNum = pageNum;
+        frame.fileName = fileName;
+        frame.fileId = fileId;
+        frame.generation++;
+        synchronized (frame) {
+            frame.pageLsn = 0;
+        }
+        policy.loaded(index, key);
+        if (pin) {
+            numPinned.incrementAndGet();
+            frame.pinCount = 1; //pin page
+        }
+        else {
+            frame.prefetched = 1;
+            frame.pinCount = 0;
+        }
+        wake(frame);
+    }
+
+    /**
+     * Adds a pin to a frame unless it is busy.
+     * @param frame the frame to pin.
+     * @return true if the frame was pinned.
+     */
+    private boolean tryPin(FrameDescriptor frame)
+    {
+        while (true) {
+            int pins = frame.pinCount;
+            if (pins < 0)
+                return false;
+            if (PIN_COUNT.compareAndSet(frame, pins, pins + 1)) {
+                if (pins == 0)
+                    numPinned.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Removes a pin from a frame.
+     * @param index the frame to unpin.
+     * @param caller whether the pin was the caller's, rather than one
+     * taken internally, in which case the replacement policy is told
+     * when its last pin goes.
+     * @throws PageNotPinnedException if the frame is not pinned.
+     */
+    private void unpin(int index, boolean caller)
+    {
+        FrameDescriptor frame = frameTable[index];
+        while (true) {
+            int pins = frame.pinCount;
+            if (pins <= 0)
+                throw new PageNotPinnedException();
+            if (pins == 1 && caller)
+                policy.unpinned(index);
+            if (PIN_COUNT.compareAndSet(frame, pins, pins - 1)) {
+                if (pins == 1)
+                    numPinned.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Takes a frame's latch shared, waiting while it is held exclusive.
+     * @param frame the frame, pinned by the caller.
+     */
+    private static void latchShared(FrameDescriptor frame)
+    {
+        for (int tries = 0; ; tries++) {
+            long state = frame.latch;
+            if ((state & EXCLUSIVE) == 0 && (state & SHARED) != SHARED
+                && LATCH.compareAndSet(frame, state, state + 1))
+                return;
+            backOff(tries);
+        }
+    }
+
+    /**
+     * Takes a frame's latch exclusive, waiting while anyone holds it.
+     * @param frame the frame, pinned by the caller.
+     */
+    private static void latchExclusive(FrameDescriptor frame)
+    {
+        for (int tries = 0; ; tries++) {
+            long state = frame.latch;
+            if ((state & (EXCLUSIVE | SHARED)) == 0
+                && LATCH.compareAndSet(frame, state, state | EXCLUSIVE))
+                return;
+            backOff(tries);
+        }
+    }
+
+    /**
+     * Lets go of a shared hold on a frame's latch.
+     * @param frame the frame.
+     * @throws PageNotLatchedException if the latch is not held shared.
+     */
+    private static void unlatchShared(FrameDescriptor frame)
+    {
+        while (true) {
+            long state = frame.latch;
+            if ((state & SHARED) == 0)
+                throw new PageNotLatchedException();
+            if (LATCH.compareAndSet(frame, state, state - 1))
+                return;
+        }
+    }
+
+    /**
+     * Lets go of the exclusive hold on a frame's latch and bumps its
+     * version, failing the optimistic reads under way.
+     * @param frame the frame.
+     * @throws PageNotLatchedException if the latch is not held
+     * exclusive.
+     */
+    private static void unlatchExclusive(FrameDescriptor frame)
+    {
+        long state = frame.latch;
+        if ((state & EXCLUSIVE) == 0)
+            throw new PageNotLatchedException();
+        //nobody else changes the word while it is held exclusive
+        frame.latch = (state & ~EXCLUSIVE) + VERSION;
+    }
+
+    /**
+     * Waits a little before another try at a latch. Latches are held
+     * for the length of a page access, so a waiter spins at first, then
+     * yields to let the holder run.
+     * @param tries the tries made so far.
+     */
+    private static void backOff(int tries)
+    {
+        if (tries < LATCH_SPINS)
+            Thread.onSpinWait();
+        else
+            Thread.yield();
+    }
+
+    /**
+     * Gives back a claimed frame that was not loaded: an empty frame
+     * goes back on the stack, an occupied one keeps its page.
+     * @param index the claimed frame.
+     */
+    private void releaseClaim(int index)
+    {
+        FrameDescriptor frame = frameTable[index];
+        if (frame.pageNum == INVALID_PAGE)
+            pushFreeFrame(index);
+        else
+            frame.pinCount = 0;
+        wake(frame);
+    }
+
+    /**
+     * Claims the frame due for reuse in a bulk operation's ring, if it
+     * still holds the page the operation put there and nobody has it
+     * pinned. A bulk read passes over a dirty frame, which it would
+     * have to write first; the page stays in the pool for the cleaner.
+     * @param strategy the operation's access strategy.
+     * @return the claimed frame, or -1 if the ring has none to give,
+     * in which case the frame the caller takes instead goes in its
+     * slot.
+     */
+    private int reuseRingFrame(BufferAccessStrategy strategy)
+    {
+        int index = strategy.currentFrame();
+        if (index < 0 || index >= frameLimit)
+            return -1;
+        FrameDescriptor frame = frameTable[index];
+        if (frame.pinCount != 0
+            || (frame.dirty != 0
+                && strategy.getType() == BufferAccessStrategy.Type.BULK_READ)
+            || !PIN_COUNT.compareAndSet(frame, 0, BUSY))
+            return -1;
+        //the page may have been replaced since the last look
+        if (frame.pageNum == INVALID_PAGE
+            || PageTable.key(frame.fileId, frame.pageNum) != strategy.currentKey()) {
+            releaseClaim(index);
+            return -1;
+        }
+        return index;
+    }
+
+    private int takeFreeFrame()
+    {
+        synchronized (freeLock) {
+            if (freeCount == 0)
+                return -1;
+            return freeFrames[--freeCount];
+        }
+    }
+
+    /**
+     * Puts an empty, claimed frame back on the stack, or if a shrink
+     * is giving it up, counts it as given up.
+     * @param index the frame index.
+     */
+    private void pushFreeFrame(int index)
+    {
+        synchronized (freeLock) {
+            if (index >= frameLimit)
+                retired[index] = true;
+            else
+                freeFrames[freeCount++] = index;
+        }
+    }
+
+    /**
+     * Parks until a busy frame is woken: loaded, given back, or emptied
+     * after its page was evicted or freed. The caller reads the frame's
+     * wake count before it finds the frame busy, so a wake that comes
+     * in between is not missed.
+     * @param frame the busy frame.
+     * @param wakes the frame's wake count before it was seen busy.
+     */
+    private void awaitFrame(FrameDescriptor frame, int wakes)
+    {
+        Waiter waiter = new Waiter(Thread.currentThread());
+        do {
+            waiter.next = frame.waiters;
+        } while (!WAITERS.compareAndSet(frame, waiter.next, waiter));
+        while (frame.wakes == wakes)
+            LockSupport.park(this);
+    }
+
+    /**
+     * Ends a busy spell of a frame: counts a wake and unparks every
+     * thread waiting for it. Only the thread that made the frame busy
+     * calls this, once its new state is set.
+     * @param frame the frame.
+     */
+    private void wake(FrameDescriptor frame)
+    {
+        frame.wakes = frame.wakes + 1;
+        if (frame.waiters == null)
+            return;
+        for (Waiter w = WAITERS.getAndSet(frame, null); w != null; w = w.next)
+            LockSupport.unpark(w.thread);
+    }
+
+    /**
+     * Returns the page table stripe responsible for a key.
+     */
+    private PageTable stripe(long key)
+    {
+        return allPages[(int)((key * 0xc2b2ae3d27d4eb4fL) >>> 58)];
+    }
+
+    /**
+     * Looks a page up in the page table.
+     * @param key the page table key of the page.
+     * @return the frame holding the page, or -1 if it is not in the
+     * pool.
+     */
+    private int lookup(long key)
+    {
+        PageTable stripe = stripe(key);
+        synchronized (stripe) {
+            return stripe.get(key);
+        }
+    }
+
+    /**
+     * Enforces the write-ahead rule before a frame's page is written
+     * to its database: the log must be durable up to the page's last
+     * logged change.
+     * @param frame descriptor of the frame about to be written.
+     * @throws IOException passed through from underlying file system.
+     */
+    private void logBefore(FrameDescriptor frame) throws IOException
+    {
+        if (log != null) {
+            long lsn;
+            synchronized (frame) {
+                lsn = frame.pageLsn;
+            }
+            log.flush(lsn);
+        }
+    }
+
+    /**
+     * Writes a page through the shared file cache.
+     * @param fileName the name of the database that contains the page.
+     * @param pageNum the page number to be written.
+     * @param page the page object to write out.
+     * @throws IOException passed through from underlying file system.
+     */
+    private void writePage(String fileName, int pageNum, Page page)
+        throws IOException
+    {
+        DBFile db = files.acquire(fileName);
+        try {
+            db.writePage(pageNum, page);
+        }
+        finally {
+            files.release(db);
+        }
+    }
+
+    /**
+     * Writes a pinned frame's page back to its database. The dirty
+     * flag is cleared first, so that a change made while the write is
+     * under way marks the frame dirty again. Writes of the same frame
+     * follow one another, so an older image never lands last, and
+     * none runs during a checkpoint, which syncs what was written.
+     * @param index the frame index.
+     * @throws IOException passed through from underlying file system.
+     */
+    private void writeFrame(int index) throws IOException
+    {
+        FrameDescriptor frame = frameTable[index];
+        checkpointLock.readLock().lock();
+        try {
+            synchronized (frame) {
+                setClean(frame);
+                try {
+                    logBefore(frame);
+                    long start = System.nanoTime();
+                    writePage(frame.fileName, frame.pageNum, bufferPool[index]);
+                    metrics.writeLatency.record(System.nanoTime() - start);
+                    metrics.writeBacks.increment();
+                    unsynced.add(frame.fileName);
+                }
+                catch (IOException | RuntimeException e) {
+                    setDirty(frame);
+                    throw e;
+                }
+            }
+        }
+        finally {
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    private void setDirty(FrameDescriptor frame)
+    {
+        if (DIRTY.compareAndSet(frame, 0, 1))
+            numDirty.incrementAndGet();
+    }
+
+    private void setClean(FrameDescriptor frame)
+    {
+        if (DIRTY.compareAndSet(frame, 1, 0))
+            numDirty.decrementAndGet();
+    }
+
+    /**
+     * Starts the page cleaner unless it is running, stopped by a rate
+     * of 0 or closed.
+     */
+    private void startCleaner()
+    {
+        if (cleaner != null || cleanerRate == 0 || closed)
+            return;
+        synchronized (threadLock) {
+            if (cleaner == null && cleanerRate > 0 && !closed) {
+                Thread thread = new Thread(this::runCleaner, "page cleaner");
+                thread.setDaemon(true);
+                cleaner = thread;
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * Stops the page cleaner and waits for its round to end. The
+     * thread is not interrupted, since that would close the channel
+     * it might be writing to.
+     */
+    private void stopCleaner()
+    {
+        Thread thread;
+        synchronized (threadLock) {
+            thread = cleaner;
+            cleaner = null;
+        }
+        join(thread);
+    }
+
+    /**
+     * Wakes a background thread told to stop and waits for it to end.
+     * @param thread the thread, or null if none was running.
+     */
+    private static void join(Thread thread)
+    {
+        if (thread != null && thread != Thread.currentThread()) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void runCleaner()
+    {
+        while (cleaner == Thread.currentThread()) {
+            try {
+                cleanRound();
+            }
+            catch (IOException | RuntimeException e) {
+                //the frame stays dirty, to be written at eviction
+                System.err.println("page cleaner: " + e);
+            }
+            LockSupport.parkNanos(CLEANER_INTERVAL * 1000000);
+        }
+    }
+
+    /**
+     * Writes back up to one interval's worth of dirty pages: first
+     * those in the frames to be replaced next, then, while more of the
+     * pool is dirty than the watermarks allow, any others.
+     * @throws IOException passed through from underlying file system.
+     */
+    private void cleanRound() throws IOException
+    {
+        int budget = (int)Math.max(1, cleanerRate * CLEANER_INTERVAL / 1000);
+        int ahead = (int)Math.ceil(cleanAhead * poolCapacity);
+        if (upcoming.length != ahead)
+            upcoming = new int[ahead];
+        int count = policy.upcoming(upcoming);
+        for (int i = 0; i < count && budget > 0; i++)
+            if (clean(upcoming[i]))
+                budget--;
+
+        if (numDirty.get() > highWatermark * poolCapacity)
+            draining = true;
+        for (int i = 0; draining && budget > 0 && i < poolCapacity; i++) {
+            if (numDirty.get() <= lowWatermark * poolCapacity) {
+                draining = false;
+                break;
+            }
+            cleanerCursor = cleanerCursor + 1 >= poolCapacity ? 0 : cleanerCursor + 1;
+            if (clean(cleanerCursor))
+                budget--;
+        }
+    }
+
+    /**
+     * Writes back a frame's page if it is dirty and nobody has it
+     * pinned; pages in use are likely to change again soon.
+     * @param index the frame index.
+     * @return true if the page was written.
+     * @throws IOException passed through from underlying file system.
+     */
+    private boolean clean(int index) throws IOException
+    {
+        FrameDescriptor[] frames = frameTable;
+        if (index >= frames.length) //the pool has just shrunk
+            return false;
+        FrameDescriptor frame = frames[index];
+        if (frame.dirty == 0 || frame.pinCount != 0 || !tryPin(frame))
+            return false;
+        try {
+            if (frame.dirty == 0)
+                return false;
+            writeFrame(index);
+            return true;
+        }
+        finally {
+            unpin(index, false);
+        }
+    }
+
+    /**
+     * Notes a pin for sequential read-ahead. Once a database's pages
+     * have been pinned in ascending order for SEQUENTIAL_PINS pins, the
+     * pages after the one pinned are requested a window at a time,
+     * each time the reader comes within half a window of the last page
+     * requested. The window doubles while the pages loaded ahead are
+     * pinned and halves once any are replaced unpinned. A pin out of
+     * order only resets the run, without taking a lock.
+     * @param fileName the name of the database.
+     * @param fileId the id of that database.
+     * @param pageNum the page being pinned.
+     */
+    private void readAhead(String fileName, int fileId, int pageNum)
+    {
+        ReadAhead stream = stream(fileId);
+        int last = stream.lastPage;
+        if (pageNum == last)
+            return;
+        if (pageNum - 1 != last) {
+            stream.lastPage = pageNum;
+            if (stream.run != 0) {
+                stream.run = 0;
+                stream.generation++;
+            }
+            return;
+        }
+        int start;
+        int count;
+        int generation;
+        synchronized (stream) {
+            if (stream.lastPage != last)
+                return; //another thread's pin came in between
+            stream.lastPage = pageNum;
+            if (stream.run == 0) { //a new run; forget the last one
+                stream.requestedTo = pageNum;
+                stream.window = MIN_READ_AHEAD;
+                stream.used = 0;
+                stream.wasted = 0;
+            }
+            stream.run++;
+            if (stream.run < SEQUENTIAL_PINS - 1
+                || stream.requestedTo - pageNum > stream.window / 2)
+                return;
+            int window = stream.window;
+            if (stream.wasted > 0)
+                window /= 2;
+            else if (stream.used > 0)
+                window *= 2;
+            int cap = Math.min(maxReadAhead, poolCapacity / 4);
+            stream.window = Math.max(1, Math.min(window, cap));
+            stream.used = 0;
+            stream.wasted = 0;
+            start = Math.max(stream.requestedTo, pageNum) + 1;
+            count = stream.window;
+            stream.requestedTo = start + count - 1;
+            generation = stream.generation;
+        }
+        requestPrefetch(new PrefetchRequest(fileName, fileId, start, count,
+                                            stream, generation, false));
+    }
+
+    /**
+     * Returns the read-ahead state of a database.
+     * @param fileId the id of the database.
+     * @return its state, created on first use.
+     */
+    private ReadAhead stream(int fileId)
+    {
+        ReadAhead[] all = streams;
+        if (fileId < all.length)
+            return all[fileId];
+        synchronized (threadLock) {
+            all = streams;
+            if (fileId >= all.length) {
+                int length = Math.max(fileId + 1, 2 * all.length);
+                ReadAhead[] grown = Arrays.copyOf(all, length);
+                for (int i = all.length; i < length; i++)
+                    grown[i] = new ReadAhead();
+                streams = grown;
+                all = grown;
+            }
+            return all[fileId];
+        }
+    }
+
+    /**
+     * Counts a page loaded ahead of use as pinned, or as replaced or
+     * freed without ever being pinned, in the totals and for its
+     * database's read-ahead window.
+     * @param fileId the id of the page's database.
+     * @param used true if the page was pinned.
+     */
+    private void prefetchOutcome(int fileId, boolean used)
+    {
+        (used ? metrics.prefetchHits : metrics.prefetchWasted).increment();
+        ReadAhead stream = stream(fileId);
+        synchronized (stream) {
+            if (used)
+                stream.used++;
+            else
+                stream.wasted++;
+        }
+    }
+
+    /**
+     * Queues a run of pages for the prefetcher, starting it if need
+     * be, unless the buffer manager is closed or the queue is full.
+     * @param request the run of pages.
+     */
+    private void requestPrefetch(PrefetchRequest request)
+    {
+        if (closed)
+            return;
+        if (queuedPrefetches.incrementAndGet() > PREFETCH_QUEUE) {
+            queuedPrefetches.decrementAndGet();
+            return;
+        }
+        prefetches.add(request);
+        startPrefetcher();
+    }
+
+    /**
+     * Starts the prefetcher unless it is running or the buffer manager
+     * is closed, and wakes it.
+     */
+    private void startPrefetcher()
+    {
+        if (prefetcher == null) {
+            synchronized (threadLock) {
+                if (prefetcher == null && !closed) {
+                    Thread thread = new Thread(this::runPrefetcher, "page prefetcher");
+                    thread.setDaemon(true);
+                    prefetcher = thread;
+                    thread.start();
+                }
+            }
+        }
+        LockSupport.unpark(prefetcher);
+    }
+
+    /**
+     * Stops the prefetcher, waits for the page it is loading, and
+     * drops the requests still queued.
+     */
+    private void stopPrefetcher()
+    {
+        Thread thread;
+        synchronized (threadLock) {
+            thread = prefetcher;
+            prefetcher = null;
+        }
+        join(thread);
+        prefetches.clear();
+        queuedPrefetches.set(0);
+    }
+
+    private void runPrefetcher()
+    {
+        while (prefetcher == Thread.currentThread()) {
+            //a warm-up fills the time prefetches leave
+            PrefetchRequest request = prefetches.poll();
+            if (request != null)
+                queuedPrefetches.decrementAndGet();
+            else
+                request = nextWarmUpRun();
+            if (request == null) {
+                if (warmUp != null)
+                    LockSupport.parkNanos(this, WARM_UP_INTERVAL * 1000000);
+                else
+                    LockSupport.park(this);
+                continue;
+            }
+            try {
+                loadAhead(request);
+            }
+            catch (IOException | RuntimeException e) {
+                //the pages will be read when they are pinned; a
+                //warm-up whose list no longer fits the databases is
+                //given up
+                if (request.warm)
+                    warmUp = null;
+                System.err.println("page prefetcher: " + e);
+            }
+        }
+    }
+
+    /**
+     * Returns the next run of pages of the warm-up under way, if it may
+     * load more now: while no miss is being read, within its rate, and
+     * while there are empty frames. Pages are taken hottest first, a
+     * batch of no more than the empty frames at a time, and each batch
+     * is loaded in order of database and page number, adjacent pages
+     * together. The warm-up ends when
+     * its list or the empty frames run out.
+     * @return the run, or null if there is none to load now.
+     */
+    private PrefetchRequest nextWarmUpRun()
+    {
+        WarmUp warm = warmUp;
+        if (warm == null)
+            return null;
+        int free;
+        synchronized (freeLock) {
+            free = freeCount;
+        }
+        if (free == 0
+            || (warm.batchNext == warm.batch.length && warm.next == warm.keys.length)) {
+            warmUp = null;
+            return null;
+        }
+        if (demandReads.get() > 0) //misses come first
+            return null;
+        long now = System.nanoTime();
+        if (warm.requested == 0)
+            warm.start = now;
+        int rate = warmUpRate;
+        if (rate > 0 && now < warm.start + warm.requested * 1000000000L / rate)
+            return null;
+
+        if (warm.batchNext == warm.batch.length) {
+            //no more than fit, or sorting would put colder pages first
+            int end = Math.min(warm.next + Math.min(WARM_UP_BATCH, free),
+                               warm.keys.length);
+            warm.batch = Arrays.copyOfRange(warm.keys, warm.next, end);
+            Arrays.sort(warm.batch);
+            warm.batchNext = 0;
+            warm.next = end;
+        }
+        long[] batch = warm.batch;
+        int first = warm.batchNext;
+        int last = first + 1;
+        while (last < batch.length && last - first < READ_AHEAD
+               && batch[last] == batch[last - 1] + 1)
+            last++;
+        warm.batchNext = last;
+        warm.requested += last - first;
+        int fileId = (int)(batch[first] >>> 32);
+        return new PrefetchRequest(warm.fileName(fileId), fileId, (int)batch[first],
+                                   last - first, null, 0, true);
+    }
+
+    /**
+     * Loads the pages of a request that are not in the pool into
+     * unpinned frames, stopping at the end of the database or when no
+     * frame can be had. Pages that are not allocated, and pages a
+     * read-ahead no longer wants, are skipped. Each run of missing
+     * pages is read with a single vectored read.
+     * @param request the run of pages.
+     * @throws IOException passed through from underlying file system.
+     */
+    private void loadAhead(PrefetchRequest request) throws IOException
+    {
+        DBFile db = files.acquire(request.fileName);
+        try {
+            int end = (int)Math.min((long)request.startPage + request.count,
+                                    db.getNumPages());
+            int[] run = new int[Math.max(0, end - request.startPage)];
+            int pageNum = request.startPage;
+            while (pageNum < end) {
+                if (prefetcher != Thread.currentThread()
+                    || numPinned.get() >= poolCapacity)
+                    return;
+                if (request.stale(pageNum)
+                    || lookup(PageTable.key(request.fileId, pageNum)) >= 0) {
+                    pageNum++;
+                    continue;
+                }
+                checkpointLock.readLock().lock();
+                try {
+                    //claim frames for the missing pages from here on
+                    int count = 0;
+                    boolean framesLeft = true;
+                    while (pageNum + count < end && !request.stale(pageNum + count)) {
+                        long key = PageTable.key(request.fileId, pageNum + count);
+                        int index = aheadFrame(request, key);
+                        if (index < 0) {
+                            framesLeft = false;
+                            break;
+                        }
+                        if (!enter(index, key))
+                            break;
+                        run[count++] = index;
+                    }
+                    if (count > 0)
+                        loadRun(db, request, pageNum, run, count);
+                    if (!framesLeft)
+                        return;
+                    pageNum += count;
+                }
+                finally {
+                    checkpointLock.readLock().unlock();
+                }
+            }
+        }
+        finally {
+            files.release(db);
+        }
+    }
+
+    /**
+     * Claims a frame for a page loaded ahead: an empty frame, or else,
+     * except in a warm-up, which must not push out pages in use, one
+     * chosen by the replacement policy.
+     * @param request the prefetch the page belongs to.
+     * @param key the page table key of the page.
+     * @return the claimed frame, or -1 if none can be had.
+     */
+    private int aheadFrame(PrefetchRequest request, long key)
+    {
+        int index = takeFreeFrame();
+        if (index < 0 && !request.warm)
+            index = policy.victim(key, candidates);
+        return index;
+    }
+
+    /**
+     * Reads a run of pages into claimed frames, where they have been
+     * entered in the table, and leaves them unpinned. If the run is not
+     * all allocated, its pages are loaded one at a time instead, and
+     * those that are not are skipped.
+     * @param db the database that contains the pages.
+     * @param request the prefetch the run belongs to.
+     * @param startPage the page number of the first page of the run.
+     * @param run the claimed frames, in page order.
+     * @param count the number of pages in the run.
+     * @throws IOException passed through from underlying file system.
+     */
+    private void loadRun(DBFile db, PrefetchRequest request, int startPage,
+                         int[] run, int count)
+        throws IOException
+    {
+        Page[] pages = new Page[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                evict(run[i]);
+                pages[i] = framePage(run[i], db.getPageSize());
+            }
+            long start = System.nanoTime();
+            db.readPages(startPage, pages);
+            metrics.readLatency.record(System.nanoTime() - start);
+        }
+        catch (IOException | RuntimeException e) {
+            for (int i = 0; i < count; i++)
+                abandon(run[i], PageTable.key(request.fileId, startPage + i));
+            if (!(e instanceof DBFile.PageNotAllocatedException))
+                throw e;
+            for (int i = 0; i < count; i++) {
+                long key = PageTable.key(request.fileId, startPage + i);
+                int index = aheadFrame(request, key);
+                if (index < 0)
+                    return;
+                try {
+                    if (load(index, key, request.fileName, request.fileId,
+                             startPage + i, false))
+                        metrics.prefetchedPages.increment();
+                }
+                catch (DBFile.PageNotAllocatedException hole) {
+                    //load has left the frame empty
+                }
+            }
+            return;
+        }
+        for (int i = 0; i < count; i++)
+            installPage(run[i], PageTable.key(request.fileId, startPage + i),
+                        pages[i], request.fileName, request.fileId,
+                        startPage + i, false);
+        metrics.prefetchedPages.add(count);
+    }
+
+    /**
+     * Returns the small integer id standing for a database name in
+     * page table keys, assigning the next one on first use. Ids are
+     * never reused, so a name keeps its id for the life of the buffer
+     * manager.
+     * @param fileName the name of the database.
+     * @return the id of the database.
+     */
+    private int fileId(String fileName)
+    {
+        Integer id = fileIds.get(fileName);
+        if (id == null) {
+            fileIds.putIfAbsent(fileName, nextFileId.getAndIncrement());
+            id = fileIds.get(fileName);
+        }
+        return id;
+    }
+
+    /**
+     * Count the number of pages in the bufferpool
+     */
+    public void numPages() {
+        synchronized (freeLock) {
+            numpages = poolCapacity - freeCount;
+        }
+    }
+
+    /**
+     * Flushes page from the buffer pool to the underlying database if
+     * it is dirty. If page is not dirty, it is not flushed,
+     * especially since an undirty page may hang around even after the
+     * underlying database has been erased. If the page is not in the
+     * buffer pool, do nothing, since the page is effectively flushed
      * already.
      * @param pageId the page id to be flushed.
      * @param fileName the name of the database where the page should
@@ -323,38 +2486,704 @@ public class BufferManager
      */
     public void flushPage(int pageId, String fileName) throws IOException
     {
-        if (allPages.containsKey(pageId)) {
-            if (frameTable[allPages.get(pageId)].dirty) {
-                DBFile dbFile = new DBFile(fileName);
-                int pageIndex = allPages.get(pageId);
-                FrameDescriptor curPage = frameTable[pageIndex];
-                dbFile.writePage(curPage.pageNum, bufferPool[pageIndex]);
-                frameTable[allPages.get(pageId)].dirty = false;
-            }
+        long key = PageTable.key(fileId(fileName), pageId);
+        PageTable stripe = stripe(key);
+        int pageIndex;
+        synchronized (stripe) {
+            pageIndex = stripe.get(key);
+            //a busy frame is being read, so is clean, or is being
+            //evicted, so is being written already
+            if (pageIndex < 0 || !tryPin(frameTable[pageIndex]))
+                return;
+        }
+        FrameDescriptor curPage = frameTable[pageIndex];
+        try {
+            if (curPage.dirty != 0)
+                writeFrame(pageIndex);
+        }
+        finally {
+            unpin(pageIndex, false);
         }
     }
 
     /**
      * Flushes all dirty pages from the buffer pool to the underlying
-     * databases. If page is not dirty, it is not flushed, especially
-     * since an undirty page may hang around even after the underlying
-     * database has been erased.
+     * databases, each to its own, and syncs the databases written. If
+     * page is not dirty, it is not flushed, especially since an
+     * undirty page may hang around even after the underlying database
+     * has been erased. Pages are written in order of database and page
+     * number, adjacent ones together.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void flushAllPages() throws IOException
+    {
+        sync(flushDirty(-1, 0));
+    }
+
+    /**
+     * Flushes all dirty pages of one database from the buffer pool to
+     * it, and syncs it if any were written.
+     * @param fileName the name of the database whose pages should be
+     * flushed.
      * @throws IOException passed through from underlying file system.
      */
     public void flushAllPages(String fileName) throws IOException
     {
-        for (int i = 0; i < bufferPool.length; i++) {
-            if (frameTable[i] != null) {
-                // // check if dirty
-                // System.out.println(frameTable[i].pageNum);
-                // System.out.println(frameTable[i].dirty);
-                flushPage(frameTable[i].pageNum, fileName);
+        sync(flushDirty(fileId(fileName), 0));
+    }
+
+    /**
+     * Writes the dirty pages in the pool, or those of one database,
+     * back in order of database and page number, each run of adjacent
+     * pages with a single gathering write. Pages changed while this
+     * runs may or may not be written.
+     * @param fileId the id of the database whose pages are written, or
+     * -1 for every database.
+     * @param rate the most pages per second to write, or 0 for no
+     * limit.
+     * @return the names of the databases written.
+     * @throws IOException passed through from underlying file system.
+     */
+    private Set<String> flushDirty(int fileId, int rate) throws IOException
+    {
+        //gather keys unlocked; frames changing meanwhile are caught
+        //when each page is looked up and pinned
+        FrameDescriptor[] frames = frameTable;
+        long[] keys = new long[frames.length];
+        int numKeys = 0;
+        for (FrameDescriptor frame : frames) {
+            if (frame.dirty != 0 && frame.pinCount != BUSY
+                && (fileId < 0 || frame.fileId == fileId))
+                keys[numKeys++] = PageTable.key(frame.fileId, frame.pageNum);
+        }
+        Arrays.sort(keys, 0, numKeys);
+
+        Set<String> written = new HashSet<>();
+        int[] run = new int[MAX_WRITE_RUN];
+        long start = System.nanoTime();
+        long pagesWritten = 0;
+        int i = 0;
+        while (i < numKeys) {
+            //pin a run of adjacent dirty pages from here on
+            int count = 0;
+            int index;
+            while (i < numKeys && count < run.length
+                   && (count == 0 || keys[i] == keys[i - 1] + 1)
+                   && (index = pinDirty(keys[i])) >= 0) {
+                run[count++] = index;
+                i++;
+            }
+            if (count == 0) {
+                i++; //not in the pool, clean or busy
+                continue;
+            }
+            pagesWritten += writeRun(run, count, written);
+            if (rate > 0)
+                pace(start, pagesWritten, rate);
+        }
+        return written;
+    }
+
+    /**
+     * Pins the frame holding a page if the page is dirty.
+     * @param key the packed key of the page.
+     * @return the frame index, or -1 if the page is not in the pool,
+     * is clean, or its frame is busy.
+     */
+    private int pinDirty(long key)
+    {
+        PageTable stripe = stripe(key);
+        int index;
+        synchronized (stripe) {
+            index = stripe.get(key);
+            if (index < 0 || !tryPin(frameTable[index]))
+                return -1;
+        }
+        if (frameTable[index].dirty == 0) {
+            unpin(index, false);
+            return -1;
+        }
+        return index;
+    }
+
+    /**
+     * Writes a run of pinned frames holding adjacent pages of one
+     * database with a single gathering write, then unpins them. As in
+     * writeFrame, the dirty flags are cleared first and set again if
+     * the write fails, and each frame is locked while it is written;
+     * frames are locked in page order, so two runs never wait for each
+     * other in a circle.
+     * @param run the frames, in page order.
+     * @param count the number of frames in the run.
+     * @param written the names of the databases written, to which the
+     * run's is added.
+     * @return the number of pages written.
+     * @throws IOException passed through from underlying file system.
+     */
+    private int writeRun(int[] run, int count, Set<String> written)
+        throws IOException
+    {
+        checkpointLock.readLock().lock();
+        try {
+            FrameDescriptor[] frames = frameTable;
+            Page[] pages = new Page[count];
+            for (int i = 0; i < count; i++)
+                pages[i] = bufferPool[run[i]];
+            String fileName = frames[run[0]].fileName;
+            DBFile db = files.acquire(fileName);
+            try {
+                writeLocked(db, frames, run, pages, 0);
+            }
+            finally {
+                files.release(db);
+            }
+            unsynced.add(fileName);
+            written.add(fileName);
+            return count;
+        }
+        finally {
+            checkpointLock.readLock().unlock();
+            for (int i = 0; i < count; i++)
+                unpin(run[i], false);
+        }
+    }
+
+    /**
+     * Locks the frames of a run from the given one on, then writes the
+     * run.
+     */
+    private void writeLocked(DBFile db, FrameDescriptor[] frames, int[] run,
+                             Page[] pages, int from)
+        throws IOException
+    {
+        if (from < pages.length) {
+            synchronized (frames[run[from]]) {
+                writeLocked(db, frames, run, pages, from + 1);
+            }
+            return;
+        }
+        long lsn = 0;
+        for (int i = 0; i < pages.length; i++) {
+            FrameDescriptor frame = frames[run[i]];
+            setClean(frame);
+            lsn = Math.max(lsn, frame.pageLsn);
+        }
+        try {
+            if (log != null)
+                log.flush(lsn);
+            long start = System.nanoTime();
+            db.writePages(frames[run[0]].pageNum, pages);
+            metrics.writeLatency.record(System.nanoTime() - start);
+            metrics.writeBacks.add(pages.length);
+        }
+        catch (IOException | RuntimeException e) {
+            for (int i = 0; i < pages.length; i++)
+                setDirty(frames[run[i]]);
+            throw e;
+        }
+    }
+
+    /**
+     * Waits until writing the given number of pages since the start
+     * keeps within a rate.
+     */
+    private static void pace(long start, long pages, int rate)
+    {
+        long due = start + pages * 1000000000L / rate;
+        long now;
+        while ((now = System.nanoTime()) < due)
+            LockSupport.parkNanos(due - now);
+    }
+
+    /**
+     * Syncs databases, once each.
+     * @param fileNames the names of the databases.
+     * @throws IOException passed through from underlying file system.
+     */
+    private void sync(Set<String> fileNames) throws IOException
+    {
+        for (String fileName : fileNames) {
+            DBFile db = files.acquire(fileName);
+            try {
+                db.force();
+            }
+            finally {
+                files.release(db);
+            }
+        }
+    }
+
+    /**
+     * Makes every change logged so far durable. Threads committing at
+     * the same time share a single log sync. Without a log, this is a
+     * checkpoint.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void commit() throws IOException
+    {
+        if (log != null)
+            log.flush();
+        else
+            checkpoint();
+    }
+
+    /**
+     * Writes every dirty page to its own database and syncs the
+     * databases written since the last checkpoint, whether by it, the
+     * cleaner or evictions, once each. With a log, the log is then
+     * emptied, since everything it records is now in the databases.
+     *
+     * Dirty pages are written in order of database and page number,
+     * adjacent ones together, first while pages go on changing, at
+     * the rate set by setCheckpointRate, then once more for the pages
+     * changed meanwhile, while page changes, misses, evictions and
+     * other writes wait.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void checkpoint() throws IOException
+    {
+        flushDirty(-1, checkpointRate);
+        checkpointLock.writeLock().lock();
+        try {
+            if (log != null)
+                log.flush();
+            flushDirty(-1, 0);
+            sync(unsynced);
+            unsynced.clear();
+            if (log != null)
+                log.truncate();
+        }
+        finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Sets how many pages per second a checkpoint may write before it
+     * stops page changes to write the rest, so that its writes leave
+     * the device to foreground reads.
+     * @param pagesPerSecond the checkpoint's rate; 0 for no limit.
+     * @throws IllegalArgumentException if the rate is negative.
+     */
+    public void setCheckpointRate(int pagesPerSecond)
+    {
+        if (pagesPerSecond < 0)
+            throw new IllegalArgumentException("negative checkpoint rate");
+        checkpointRate = pagesPerSecond;
+    }
+
+    /**
+     * Sets how many pages per second the page cleaner may write.
+     * @param pagesPerSecond the cleaner's rate; 0 stops the cleaner,
+     * leaving write-back to evictions, flushes and checkpoints.
+     * @throws IllegalArgumentException if the rate is negative.
+     */
+    public void setCleanerRate(int pagesPerSecond)
+    {
+        if (pagesPerSecond < 0)
+            throw new IllegalArgumentException("negative cleaner rate");
+        cleanerRate = pagesPerSecond;
+        if (pagesPerSecond == 0)
+            stopCleaner();
+        else if (numDirty.get() > 0)
+            startCleaner();
+    }
+
+    /**
+     * Sets the fraction of the pool, counted among the frames the
+     * replacement policy would replace next, that the page cleaner
+     * keeps clean.
+     * @param fraction a fraction between 0 and 1.
+     * @throws IllegalArgumentException if the fraction is out of range.
+     */
+    public void setCleanAhead(double fraction)
+    {
+        if (fraction < 0 || fraction > 1)
+            throw new IllegalArgumentException("fraction out of range");
+        cleanAhead = fraction;
+    }
+
+    /**
+     * Sets the fractions of dirty frames that start and stop the page
+     * cleaner's passes over the whole pool.
+     * @param low the fraction of dirty frames a pass stops at.
+     * @param high the fraction of dirty frames above which a pass
+     * starts.
+     * @throws IllegalArgumentException if the fractions are out of
+     * range or low is above high.
+     */
+    public void setDirtyWatermarks(double low, double high)
+    {
+        if (low < 0 || high > 1 || low > high)
+            throw new IllegalArgumentException("bad watermarks");
+        lowWatermark = low;
+        highWatermark = high;
+    }
+
+    /**
+     * Returns the number of frames whose pages have changed since they
+     * were last written.
+     * @return the number of dirty frames.
+     */
+    public int dirtyFrames()
+    {
+        return numDirty.get();
+    }
+
+    /**
+     * Asks for a run of pages to be loaded in the background, so that
+     * pinning them later is a hit. Pages already in the pool stay
+     * where they are; the others go into empty frames or frames the
+     * replacement policy gives up, and are left unpinned. This is only
+     * a hint: pages past the end of the database or not allocated are
+     * skipped, and the request is dropped if too many are waiting. A
+     * scan following a chain of blocks can name the next block while
+     * it works on the current one.
+     * @param fileName the name of the database that contains the pages.
+     * @param startPage the page id of the first page of the run.
+     * @param count the number of pages in the run; at most a pool's
+     * worth are loaded.
+     */
+    public void prefetch(String fileName, int startPage, int count)
+    {
+        if (startPage < 0 || count <= 0)
+            return;
+        requestPrefetch(new PrefetchRequest(fileName, fileId(fileName), startPage,
+                                            Math.min(count, poolCapacity), null, 0,
+                                            false));
+    }
+
+    /**
+     * Sets how many pages sequential read-ahead may load at once. The
+     * window is also kept to a quarter of the pool.
+     * @param maxPages the largest read-ahead window; 0 turns automatic
+     * read-ahead off, leaving only explicit prefetches.
+     * @throws IllegalArgumentException if maxPages is negative.
+     */
+    public void setReadAhead(int maxPages)
+    {
+        if (maxPages < 0)
+            throw new IllegalArgumentException("negative read-ahead");
+        maxReadAhead = maxPages;
+    }
+
+    /**
+     * Writes the list of pages in the pool to a file, hottest first as
+     * the replacement policy judges: pages it would not replace soon,
+     * then the others from last to be replaced to first. loadHotPages
+     * reloads the list after a restart. Each page takes eight bytes.
+     * The list is written to a new file that then replaces the old
+     * one, so a crash while saving leaves the old list.
+     * @param path the name of the file.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void saveHotPages(String path) throws IOException
+    {
+        FrameDescriptor[] frames = frameTable;
+        int[] order = new int[frames.length];
+        int numCold = policy.upcoming(order);
+        boolean[] cold = new boolean[frames.length];
+        for (int i = 0; i < numCold; i++)
+            if (order[i] < frames.length)
+                cold[order[i]] = true;
+        int[] hottest = new int[frames.length];
+        int count = 0;
+        for (int i = 0; i < frames.length; i++)
+            if (!cold[i])
+                hottest[count++] = i;
+        for (int i = numCold - 1; i >= 0; i--) {
+            int index = order[i];
+            if (index < frames.length && cold[index]) {
+                cold[index] = false; //listed once
+                hottest[count++] = index;
+            }
+        }
+
+        //read each page's name under a pin, so it is not half changed
+        Map<String, Integer> names = new LinkedHashMap<>();
+        int[] fileIndexes = new int[count];
+        int[] pageNums = new int[count];
+        int numPages = 0;
+        for (int i = 0; i < count; i++) {
+            FrameDescriptor frame = frames[hottest[i]];
+            if (!tryPin(frame))
+                continue;
+            try {
+                if (frame.pageNum == INVALID_PAGE)
+                    continue;
+                Integer fileIndex = names.get(frame.fileName);
+                if (fileIndex == null) {
+                    fileIndex = names.size();
+                    names.put(frame.fileName, fileIndex);
+                }
+                fileIndexes[numPages] = fileIndex;
+                pageNums[numPages++] = frame.pageNum;
+            }
+            finally {
+                unpin(hottest[i], false);
+            }
+        }
+
+        File temp = new File(path + ".tmp");
+        FileOutputStream file = new FileOutputStream(temp);
+        try {
+            DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(file));
+            out.writeInt(HOT_PAGES_MAGIC);
+            out.writeInt(names.size());
+            for (String name : names.keySet())
+                out.writeUTF(name);
+            out.writeInt(numPages);
+            for (int i = 0; i < numPages; i++) {
+                out.writeInt(fileIndexes[i]);
+                out.writeInt(pageNums[i]);
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        finally {
+            file.close();
+        }
+        Files.move(temp.toPath(), Paths.get(path),
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a list saved by saveHotPages and starts loading its pages
+     * in the background, so that the pool warms up while it serves
+     * pins. Pages are taken hottest first, a batch at a time, and each
+     * batch is read in order of database and page number, adjacent
+     * pages together. Loading goes only into empty frames, stops when
+     * none are left, and keeps to the rate set by setWarmUpRate; it
+     * waits while misses are being read and while prefetches are
+     * queued. Pages no longer in their database are skipped.
+     * @param path the name of the file.
+     * @return the number of pages listed, or 0 if there is no such
+     * file.
+     * @throws IOException if the file is not a hot page list, or
+     * passed through from underlying file system.
+     */
+    public int loadHotPages(String path) throws IOException
+    {
+        File file = new File(path);
+        if (!file.exists())
+            return 0;
+        String[] names;
+        int[] ids;
+        long[] keys;
+        try (DataInputStream in = new DataInputStream(
+                 new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != HOT_PAGES_MAGIC)
+                throw new IOException(path + " is not a hot page list");
+            names = new String[in.readInt()];
+            ids = new int[names.length];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = in.readUTF();
+                ids[i] = fileId(names[i]);
+            }
+            keys = new long[in.readInt()];
+            for (int i = 0; i < keys.length; i++) {
+                int fileIndex = in.readInt();
+                int pageNum = in.readInt();
+                if (fileIndex < 0 || fileIndex >= names.length || pageNum < 0)
+                    throw new IOException(path + " is not a hot page list");
+                keys[i] = PageTable.key(ids[fileIndex], pageNum);
+            }
+        }
+        if (keys.length > 0 && !closed) {
+            warmUp = new WarmUp(names, ids, keys);
+            startPrefetcher();
+        }
+        return keys.length;
+    }
+
+    /**
+     * Tells whether pages listed by loadHotPages are still being
+     * loaded.
+     * @return true while a warm-up is under way.
+     */
+    public boolean isWarmingUp()
+    {
+        return warmUp != null;
+    }
+
+    /**
+     * Sets how many pages per second a warm-up may load.
+     * @param pagesPerSecond the warm-up's rate; 0 for no limit.
+     * @throws IllegalArgumentException if the rate is negative.
+     */
+    public void setWarmUpRate(int pagesPerSecond)
+    {
+        if (pagesPerSecond < 0)
+            throw new IllegalArgumentException("negative warm-up rate");
+        warmUpRate = pagesPerSecond;
+    }
+
+    /**
+     * Names the file the hot page list is saved to, with saveHotPages,
+     * when the buffer manager is closed and every so often meanwhile.
+     * @param path the name of the file, or null to stop saving.
+     * @param intervalMillis the time between saves in milliseconds; 0
+     * saves at close only.
+     * @throws IllegalArgumentException if the interval is negative.
+     */
+    public void setHotPageFile(String path, long intervalMillis)
+    {
+        if (intervalMillis < 0)
+            throw new IllegalArgumentException("negative interval");
+        stopHotPageSaver();
+        synchronized (threadLock) {
+            hotPageFile = path;
+            hotPageInterval = intervalMillis;
+            if (path != null && intervalMillis > 0 && !closed) {
+                Thread thread = new Thread(this::runHotPageSaver, "hot page saver");
+                thread.setDaemon(true);
+                hotPageSaver = thread;
+                thread.start();
+            }
+        }
+    }
+
+    private void runHotPageSaver()
+    {
+        while (hotPageSaver == Thread.currentThread()) {
+            long due = System.nanoTime() + hotPageInterval * 1000000;
+            long now;
+            while ((now = System.nanoTime()) < due) {
+                LockSupport.parkNanos(this, due - now);
+                if (hotPageSaver != Thread.currentThread())
+                    return;
+            }
+            try {
+                saveHotPages(hotPageFile);
+            }
+            catch (IOException | RuntimeException e) {
+                System.err.println("hot page saver: " + e);
+            }
+        }
+    }
+
+    /**
+     * Stops the thread saving the hot page list and waits for it to
+     * end.
+     */
+    private void stopHotPageSaver()
+    {
+        Thread thread;
+        synchronized (threadLock) {
+            thread = hotPageSaver;
+            hotPageSaver = null;
+        }
+        join(thread);
+    }
+
+    /**
+     * Sets the share of pins timed for the pin latency histogram.
+     * Database reads and writes are always timed.
+     * @param every one in how many pins, chosen at random, to time; 1
+     * times every pin.
+     * @throws IllegalArgumentException if every is not positive.
+     */
+    public void setPinSampling(int every)
+    {
+        if (every <= 0)
+            throw new IllegalArgumentException("sampling must be positive");
+        pinSampling = every;
+    }
+
+    /**
+     * Takes a snapshot of the buffer manager's counters, latency
+     * percentiles and frames.
+     * @return the snapshot.
+     */
+    public BufferPoolMetrics.Snapshot metrics()
+    {
+        int free;
+        synchronized (freeLock) {
+            free = freeCount;
+        }
+        return new BufferPoolMetrics.Snapshot(metrics, poolCapacity, free,
+                                              numPinned.get(), numDirty.get());
+    }
+
+    /**
+     * Returns the buffer manager's live counters and histograms.
+     * @return the metrics.
+     */
+    public BufferPoolMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * Publishes the buffer manager's metrics as an MXBean with the
+     * platform MBean server, under the name
+     * "BufferManager:type=BufferPool,name=" and the given name, quoted.
+     * Each attribute read takes a fresh snapshot. The MXBean is
+     * unregistered by close.
+     * @param name a name telling this buffer manager from others.
+     * @return the name the MXBean was registered under.
+     * @throws JMException if the name is taken or the MXBean cannot be
+     * registered.
+     */
+    public synchronized ObjectName registerMBean(String name)
+        throws JMException
+    {
+        ObjectName objectName = new ObjectName("BufferManager:type=BufferPool,name="
+                                               + ObjectName.quote(name));
+        BufferPoolMXBean live = (BufferPoolMXBean)Proxy.newProxyInstance(
+            BufferPoolMXBean.class.getClassLoader(),
+            new Class<?>[] { BufferPoolMXBean.class },
+            (proxy, method, args) -> method.invoke(metrics(), args));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(
+            new StandardMBean(live, BufferPoolMXBean.class, true), objectName);
+        if (mbeanName != null)
+            unregisterMBean();
+        mbeanName = objectName;
+        return objectName;
+    }
+
+    /**
+     * Withdraws the MXBean published by registerMBean, if any.
+     */
+    private synchronized void unregisterMBean()
+    {
+        if (mbeanName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+        }
+        catch (JMException e) {
+            //already gone
+        }
+        mbeanName = null;
+    }
+
+    /**
+     * Stops the page cleaner and the prefetcher for good, and
+     * withdraws the MXBean if one was registered. Dirty pages stay in
+     * the pool; call checkpoint first to write them.
+     */
+    public void close()
+    {
+        closed = true;
+        stopCleaner();
+        stopPrefetcher();
+        stopHotPageSaver();
+        warmUp = null;
+        unregisterMBean();
+        String path = hotPageFile;
+        if (path != null) {
+            try {
+                saveHotPages(path);
+            }
+            catch (IOException e) {
+                System.err.println("hot page list: " + e);
             }
-            // else
-            //     break;
         }
     }
-        
+
     /**
      * Returns buffer pool location for a particular pageId. This
      * method is just used for testing purposes: it probably doesn't
@@ -366,10 +3195,6 @@ public class BufferManager
     */
     public int findFrame(int pageId, String fileName)
     {
-        if (allPages.get(pageId) == null) {
-            return -1;
-        }
-        int pageIndex = allPages.get(pageId);
-        return pageIndex;
+        return lookup(PageTable.key(fileId(fileName), pageId));
     }
-}
\ No newline at end of file
+}
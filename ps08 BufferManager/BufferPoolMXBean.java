@@ -0,0 +1,165 @@
+/**
+ * Management interface of a buffer pool, as registered with JMX by
+ * BufferManager.registerMBean. Counts run from the creation of the
+ * buffer manager; latencies are in nanoseconds, each rounded up to
+ * within a sixteenth of itself. Pin latencies are taken from a sample
+ * of pins, as set by BufferManager.setPinSampling.
+ */
+public interface BufferPoolMXBean
+{
+    /**
+     * Returns the number of frames in the pool.
+     * @return the pool size.
+     */
+    int getPoolSize();
+
+    /**
+     * Returns the number of frames holding no page.
+     * @return the number of free frames.
+     */
+    int getFreeFrames();
+
+    /**
+     * Returns the number of frames with a nonzero pin count.
+     * @return the number of pinned frames.
+     */
+    int getPinnedFrames();
+
+    /**
+     * Returns the number of frames changed since last written.
+     * @return the number of dirty frames.
+     */
+    int getDirtyFrames();
+
+    /**
+     * Returns the number of pins that found their page in the pool.
+     * @return the number of hits.
+     */
+    long getHits();
+
+    /**
+     * Returns the number of pins that read their page in.
+     * @return the number of misses.
+     */
+    long getMisses();
+
+    /**
+     * Returns hits as a fraction of hits and misses, or 0 before any
+     * pin.
+     * @return the hit ratio.
+     */
+    double getHitRatio();
+
+    /**
+     * Returns the number of times a pin waited for another thread to
+     * finish loading or evicting its page.
+     * @return the number of waits.
+     */
+    long getPinWaits();
+
+    /**
+     * Returns the number of pages replaced to make room for others.
+     * @return the number of evictions.
+     */
+    long getEvictions();
+
+    /**
+     * Returns the number of frames the replacement policy looked at
+     * while choosing victims; for clock, the distance the hand swept.
+     * @return the number of frames scanned.
+     */
+    long getFramesScanned();
+
+    /**
+     * Returns the number of dirty pages written back, by any means.
+     * @return the number of pages written.
+     */
+    long getWriteBacks();
+
+    /**
+     * Returns the number of dirty pages written back by the miss that
+     * replaced them, which had to wait for the write.
+     * @return the number of pages written on eviction.
+     */
+    long getEvictionWriteBacks();
+
+    /**
+     * Returns the number of pages loaded ahead of use.
+     * @return the number of pages prefetched.
+     */
+    long getPrefetchedPages();
+
+    /**
+     * Returns the number of pages loaded ahead of use that were then
+     * pinned.
+     * @return the number of prefetched pages used.
+     */
+    long getPrefetchHits();
+
+    /**
+     * Returns the number of pages loaded ahead of use that were
+     * replaced or freed without being pinned.
+     * @return the number of prefetched pages wasted.
+     */
+    long getPrefetchWasted();
+
+    /**
+     * Returns the median time pinPage took.
+     * @return the time in nanoseconds.
+     */
+    long getPinLatencyP50();
+
+    /**
+     * Returns the 99th percentile of the time pinPage took.
+     * @return the time in nanoseconds.
+     */
+    long getPinLatencyP99();
+
+    /**
+     * Returns the 99.9th percentile of the time pinPage took.
+     * @return the time in nanoseconds.
+     */
+    long getPinLatencyP999();
+
+    /**
+     * Returns the longest time pinPage took.
+     * @return the time in nanoseconds.
+     */
+    long getPinLatencyMax();
+
+    /**
+     * Returns the median time a database read took.
+     * @return the time in nanoseconds.
+     */
+    long getReadLatencyP50();
+
+    /**
+     * Returns the 99th percentile of the time a database read took.
+     * @return the time in nanoseconds.
+     */
+    long getReadLatencyP99();
+
+    /**
+     * Returns the longest time a database read took.
+     * @return the time in nanoseconds.
+     */
+    long getReadLatencyMax();
+
+    /**
+     * Returns the median time a database write took.
+     * @return the time in nanoseconds.
+     */
+    long getWriteLatencyP50();
+
+    /**
+     * Returns the 99th percentile of the time a database write took.
+     * @return the time in nanoseconds.
+     */
+    long getWriteLatencyP99();
+
+    /**
+     * Returns the longest time a database write took.
+     * @return the time in nanoseconds.
+     */
+    long getWriteLatencyMax();
+}
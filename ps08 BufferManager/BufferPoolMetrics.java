@@ -0,0 +1,257 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of one buffer manager. The buffer
+ * manager updates them as it works; they are read through snapshots,
+ * taken by BufferManager.metrics, or through JMX. Counters are
+ * LongAdders, so threads counting at once do not contend, and only
+ * ever grow.
+ */
+public class BufferPoolMetrics
+{
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder pinWaits = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+    final LongAdder framesScanned = new LongAdder();
+    final LongAdder writeBacks = new LongAdder();
+    final LongAdder evictionWriteBacks = new LongAdder();
+    final LongAdder prefetchedPages = new LongAdder();
+    final LongAdder prefetchHits = new LongAdder();
+    final LongAdder prefetchWasted = new LongAdder();
+    final LatencyHistogram pinLatency = new LatencyHistogram();
+    final LatencyHistogram readLatency = new LatencyHistogram();
+    final LatencyHistogram writeLatency = new LatencyHistogram();
+
+    /**
+     * Returns the histogram of the time pinPage takes, which goes on
+     * filling as pins are made.
+     * @return the live histogram.
+     */
+    public LatencyHistogram getPinLatency()
+    {
+        return pinLatency;
+    }
+
+    /**
+     * Returns the histogram of the time database reads take.
+     * @return the live histogram.
+     */
+    public LatencyHistogram getReadLatency()
+    {
+        return readLatency;
+    }
+
+    /**
+     * Returns the histogram of the time database writes take.
+     * @return the live histogram.
+     */
+    public LatencyHistogram getWriteLatency()
+    {
+        return writeLatency;
+    }
+
+    /**
+     * The metrics of a buffer manager at one moment, together with the
+     * state of its frames. Counters are read one after another while
+     * the buffer manager runs, so they may disagree by the operations
+     * made meanwhile.
+     */
+    public static class Snapshot implements BufferPoolMXBean
+    {
+        private final int poolSize;
+        private final int freeFrames;
+        private final int pinnedFrames;
+        private final int dirtyFrames;
+        private final long hits;
+        private final long misses;
+        private final long pinWaits;
+        private final long evictions;
+        private final long framesScanned;
+        private final long writeBacks;
+        private final long evictionWriteBacks;
+        private final long prefetchedPages;
+        private final long prefetchHits;
+        private final long prefetchWasted;
+        private final long pinP50;
+        private final long pinP99;
+        private final long pinP999;
+        private final long pinMax;
+        private final long readP50;
+        private final long readP99;
+        private final long readMax;
+        private final long writeP50;
+        private final long writeP99;
+        private final long writeMax;
+
+        Snapshot(BufferPoolMetrics metrics, int poolSize, int freeFrames,
+                 int pinnedFrames, int dirtyFrames)
+        {
+            this.poolSize = poolSize;
+            this.freeFrames = freeFrames;
+            this.pinnedFrames = pinnedFrames;
+            this.dirtyFrames = dirtyFrames;
+            hits = metrics.hits.sum();
+            misses = metrics.misses.sum();
+            pinWaits = metrics.pinWaits.sum();
+            evictions = metrics.evictions.sum();
+            framesScanned = metrics.framesScanned.sum();
+            writeBacks = metrics.writeBacks.sum();
+            evictionWriteBacks = metrics.evictionWriteBacks.sum();
+            prefetchedPages = metrics.prefetchedPages.sum();
+            prefetchHits = metrics.prefetchHits.sum();
+            prefetchWasted = metrics.prefetchWasted.sum();
+            pinP50 = metrics.pinLatency.percentile(50);
+            pinP99 = metrics.pinLatency.percentile(99);
+            pinP999 = metrics.pinLatency.percentile(99.9);
+            pinMax = metrics.pinLatency.getMax();
+            readP50 = metrics.readLatency.percentile(50);
+            readP99 = metrics.readLatency.percentile(99);
+            readMax = metrics.readLatency.getMax();
+            writeP50 = metrics.writeLatency.percentile(50);
+            writeP99 = metrics.writeLatency.percentile(99);
+            writeMax = metrics.writeLatency.getMax();
+        }
+
+        public int getPoolSize()
+        {
+            return poolSize;
+        }
+
+        public int getFreeFrames()
+        {
+            return freeFrames;
+        }
+
+        public int getPinnedFrames()
+        {
+            return pinnedFrames;
+        }
+
+        public int getDirtyFrames()
+        {
+            return dirtyFrames;
+        }
+
+        public long getHits()
+        {
+            return hits;
+        }
+
+        public long getMisses()
+        {
+            return misses;
+        }
+
+        public double getHitRatio()
+        {
+            return hits + misses == 0 ? 0 : (double)hits / (hits + misses);
+        }
+
+        public long getPinWaits()
+        {
+            return pinWaits;
+        }
+
+        public long getEvictions()
+        {
+            return evictions;
+        }
+
+        public long getFramesScanned()
+        {
+            return framesScanned;
+        }
+
+        public long getWriteBacks()
+        {
+            return writeBacks;
+        }
+
+        public long getEvictionWriteBacks()
+        {
+            return evictionWriteBacks;
+        }
+
+        public long getPrefetchedPages()
+        {
+            return prefetchedPages;
+        }
+
+        public long getPrefetchHits()
+        {
+            return prefetchHits;
+        }
+
+        public long getPrefetchWasted()
+        {
+            return prefetchWasted;
+        }
+
+        public long getPinLatencyP50()
+        {
+            return pinP50;
+        }
+
+        public long getPinLatencyP99()
+        {
+            return pinP99;
+        }
+
+        public long getPinLatencyP999()
+        {
+            return pinP999;
+        }
+
+        public long getPinLatencyMax()
+        {
+            return pinMax;
+        }
+
+        public long getReadLatencyP50()
+        {
+            return readP50;
+        }
+
+        public long getReadLatencyP99()
+        {
+            return readP99;
+        }
+
+        public long getReadLatencyMax()
+        {
+            return readMax;
+        }
+
+        public long getWriteLatencyP50()
+        {
+            return writeP50;
+        }
+
+        public long getWriteLatencyP99()
+        {
+            return writeP99;
+        }
+
+        public long getWriteLatencyMax()
+        {
+            return writeMax;
+        }
+
+        public String toString()
+        {
+            return String.format("%d/%d frames used, %d pinned, %d dirty; " +
+                                 "%d hits, %d misses (%.1f%%), %d waits; " +
+                                 "%d evictions, %d frames scanned; " +
+                                 "%d written, %d on eviction; " +
+                                 "%d prefetched, %d used, %d wasted; " +
+                                 "pin p50 %d p99 %d p99.9 %d max %d ns",
+                                 poolSize - freeFrames, poolSize, pinnedFrames,
+                                 dirtyFrames, hits, misses,
+                                 100 * getHitRatio(), pinWaits, evictions,
+                                 framesScanned, writeBacks, evictionWriteBacks,
+                                 prefetchedPages, prefetchHits, prefetchWasted,
+                                 pinP50, pinP99, pinP999, pinMax);
+        }
+    }
+}
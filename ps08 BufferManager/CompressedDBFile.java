@@ -0,0 +1,411 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+/**
+ * Database file that compresses its pages. Callers still see fixed
+ * size pages; only the data file changes. Each page is compressed
+ * with a PageCodec and stored in a variable-size slot of the data
+ * file, and an index file (name + ".idx") records, per page, where
+ * its slot is, how big the slot is and how many bytes of it are used.
+ * Pages that are all zeros take no slot at all, and pages that do not
+ * compress are stored as they are.
+ *
+ * Slots are sized in multiples of SLOT_ALIGN so that a page that
+ * grows a little when rewritten usually still fits in place. A page
+ * that outgrows its slot moves to a new one and the old slot is
+ * reused for later writes. Free slots are kept in memory only; on
+ * open they are recomputed as the gaps between the slots in the index.
+ *
+ * A page write updates the slot and then the index entry, so the
+ * index never points at a slot that has not been written. A
+ * compressed database must be opened as a CompressedDBFile, and by
+ * only one object at a time: the slots are kept per object, so,
+ * unlike other DBFiles, two objects on one file would hand out the
+ * same slot.
+ */
+public class CompressedDBFile extends DBFile
+{
+    /**
+     * Granularity of slots in the data file, in bytes.
+     */
+    public static final int SLOT_ALIGN = 64;
+
+    // Index header: magic number, codec id, reserved. Then one entry
+    // per page: slot offset, slot capacity and stored length. A
+    // stored length of zero is an all-zero page; a stored length of
+    // the page size is an uncompressed page.
+    private static final int IDX_MAGIC = 0x4d69437a;
+    private static final int IDX_HEADER_SIZE = 16;
+    private static final int ENTRY_SIZE = 16;
+
+    private PageCodec codec;
+    private FileChannel idxChannel;
+
+    private long[] offsets;
+    private int[] capacities;
+    private int[] lengths;
+    private long tail;
+    // capacity -> offsets of free slots of that capacity
+    private TreeMap<Integer, ArrayDeque<Long>> freeSlots;
+
+    private byte[] image;
+    private byte[] packed;
+    private ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+
+    /**
+     * Creates a compressed database using the LZ codec.
+     * @param name name to be given to database.
+     * @param numPages initial number of pages in database.
+     * @throws IOException passed through from underlying filesystem.
+     */
+    public CompressedDBFile(String name, int numPages) throws IOException
+    {
+        this(name, numPages, Page.PAGESIZE, new PageCodec.LZ());
+    }
+
+    /**
+     * Creates a compressed database with pages of the given size.
+     * @param name name to be given to database.
+     * @param numPages initial number of pages in database.
+     * @param pageSize size of each page in bytes.
+     * @param codec codec used for every page of the database.
+     * @throws IOException passed through from underlying filesystem.
+     */
+    public CompressedDBFile(String name, int numPages, int pageSize,
+                            PageCodec codec)
+        throws IOException
+    {
+        super(name, numPages, pageSize);
+        this.codec = codec;
+        // Slots are appended as pages are written, so the data file
+        // starts empty rather than numPages long.
+        dataChannel.truncate(0);
+        idxChannel = FileChannel.open(Paths.get(name + ".idx"),
+                                      StandardOpenOption.CREATE,
+                                      StandardOpenOption.READ,
+                                      StandardOpenOption.WRITE);
+        idxChannel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(IDX_HEADER_SIZE);
+        header.putInt(0, IDX_MAGIC);
+        header.putInt(4, codec.id());
+        writeFully(idxChannel, header, 0);
+        initIndex(getNumPages());
+    }
+
+    /**
+     * Opens the compressed database with the given name, using the
+     * codec it was created with.
+     * @param name name of the database.
+     * @throws PageCodec.CorruptPageException if the index is not that
+     * of a compressed database.
+     * @throws FileInUseException if another object has the database
+     * open.
+     * @throws IOException passed through from underlying file system;
+     * in particular if the database has no index file.
+     */
+    public CompressedDBFile(String name) throws IOException
+    {
+        super(name);
+        if (dataChannel == null)
+            return;
+        if (getOpenObjects() > 1)
+        {
+            super.close();
+            throw new FileInUseException();
+        }
+        idxChannel = FileChannel.open(Paths.get(name + ".idx"),
+                                      StandardOpenOption.READ,
+                                      StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(IDX_HEADER_SIZE);
+        readFully(idxChannel, header, 0);
+        if (header.getInt(0) != IDX_MAGIC)
+            throw new PageCodec.CorruptPageException();
+        codec = PageCodec.forId(header.getInt(4));
+        initIndex(getNumPages());
+        loadIndex();
+    }
+
+    private void initIndex(int numPages)
+    {
+        offsets = new long[numPages];
+        capacities = new int[numPages];
+        lengths = new int[numPages];
+        freeSlots = new TreeMap<Integer, ArrayDeque<Long>>();
+        tail = 0;
+        image = new byte[getPageSize()];
+        packed = new byte[getPageSize()];
+    }
+
+    /**
+     * Reads the index entries and recomputes the free slots as the
+     * gaps between the slots in use. Entries past the end of the
+     * index file belong to pages never written.
+     */
+    private void loadIndex() throws IOException
+    {
+        int count = (int)Math.min(offsets.length,
+                                  (idxChannel.size() - IDX_HEADER_SIZE) / ENTRY_SIZE);
+        ByteBuffer entries = ByteBuffer.allocate(count * ENTRY_SIZE);
+        readFully(idxChannel, entries, IDX_HEADER_SIZE);
+        entries.flip();
+        Integer[] used = new Integer[count];
+        int numUsed = 0;
+        for (int i=0; i < count; i++)
+        {
+            offsets[i] = entries.getLong();
+            capacities[i] = entries.getInt();
+            lengths[i] = entries.getInt();
+            if (capacities[i] > 0)
+                used[numUsed++] = i;
+        }
+        Arrays.sort(used, 0, numUsed, (a, b) -> Long.compare(offsets[a], offsets[b]));
+        for (int i=0; i < numUsed; i++)
+        {
+            int page = used[i];
+            if (offsets[page] > tail)
+                addFreeSlot(tail, (int)(offsets[page] - tail));
+            tail = offsets[page] + capacities[page];
+        }
+    }
+
+    /**
+     * Returns the codec pages are compressed with.
+     * @return the codec.
+     */
+    public PageCodec getCodec()
+    {
+        return codec;
+    }
+
+    /**
+     * Returns the number of bytes the stored pages take up, not
+     * counting unused space in their slots.
+     * @return the total stored length of all pages.
+     */
+    public synchronized long getStoredBytes()
+    {
+        long total = 0;
+        for (int i=0; i < lengths.length; i++)
+            total += lengths[i];
+        return total;
+    }
+
+    /**
+     * Returns the length of the data file, including free slots.
+     * @return the data file length in bytes.
+     */
+    public synchronized long getDataBytes()
+    {
+        return tail;
+    }
+
+    /**
+     * Deallocates a set of pages, giving their slots back for reuse.
+     * The pages read as zeros when they are allocated again.
+     */
+    public void deallocatePages(int startPageNum, int runSize)
+        throws IOException
+    {
+        super.deallocatePages(startPageNum, runSize);
+        synchronized (this)
+        {
+            for (int page=startPageNum; page < startPageNum + runSize; page++)
+                if (capacities[page] > 0 || lengths[page] > 0)
+                {
+                    releaseSlot(page);
+                    writeEntry(page);
+                }
+        }
+    }
+
+    /**
+     * Forces the index to the storage device as well.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void force() throws IOException
+    {
+        super.force();
+        if (idxChannel != null)
+            idxChannel.force(false);
+    }
+
+    /**
+     * Closes the index as well as the data and map files.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void close() throws IOException
+    {
+        super.close();
+        if (idxChannel != null)
+            idxChannel.close();
+    }
+
+    /**
+     * Only the map file is extended. The data file grows as slots are
+     * appended, and the index as entries are written.
+     */
+    protected void extend(long dataLength, long mapLength) throws IOException
+    {
+        writeFully(mapChannel, ByteBuffer.allocate(1), mapLength - 1);
+        synchronized (this)
+        {
+            int numPages = (int)(dataLength / getPageSize());
+            offsets = Arrays.copyOf(offsets, numPages);
+            capacities = Arrays.copyOf(capacities, numPages);
+            lengths = Arrays.copyOf(lengths, numPages);
+        }
+    }
+
+    protected synchronized void readData(ByteBuffer buf, long position)
+        throws IOException
+    {
+        int page = pageAt(buf, position);
+        int len = lengths[page];
+        if (len == 0)
+        {
+            Arrays.fill(image, (byte)0);
+            buf.put(image);
+        }
+        else if (len == getPageSize())
+            readFully(dataChannel, buf, offsets[page]);
+        else
+        {
+            readFully(dataChannel, ByteBuffer.wrap(packed, 0, len), offsets[page]);
+            codec.decompress(packed, len, image);
+            buf.put(image);
+        }
+    }
+
+    protected synchronized void writeData(ByteBuffer buf, long position)
+        throws IOException
+    {
+        int page = pageAt(buf, position);
+        buf.get(image);
+        byte[] stored = packed;
+        int len = 0;
+        if (!isZero(image))
+        {
+            len = codec.compress(image, packed);
+            if (len < 0)
+            {
+                stored = image;
+                len = getPageSize();
+            }
+        }
+
+        if (len > capacities[page] || len == 0)
+        {
+            releaseSlot(page);
+            if (len > 0)
+            {
+                int capacity = (len + SLOT_ALIGN - 1) / SLOT_ALIGN * SLOT_ALIGN;
+                offsets[page] = takeSlot(capacity);
+                capacities[page] = capacity;
+            }
+        }
+        lengths[page] = len;
+        if (len > 0)
+            writeFully(dataChannel, ByteBuffer.wrap(stored, 0, len), offsets[page]);
+        writeEntry(page);
+    }
+
+    protected void readDataRun(ByteBuffer[] bufs, long position)
+        throws IOException
+    {
+        for (int i=0; i < bufs.length; i++)
+        {
+            readData(bufs[i], position);
+            position += getPageSize();
+        }
+    }
+
+    protected void writeDataRun(ByteBuffer[] bufs, long position)
+        throws IOException
+    {
+        for (int i=0; i < bufs.length; i++)
+        {
+            writeData(bufs[i], position);
+            position += getPageSize();
+        }
+    }
+
+    /**
+     * Turns a data file position into a page number. Pages are always
+     * transferred whole.
+     */
+    private int pageAt(ByteBuffer buf, long position)
+    {
+        if (buf.remaining() != getPageSize() || position % getPageSize() != 0)
+            throw new BadPageSizeException();
+        return (int)(position / getPageSize());
+    }
+
+    private void writeEntry(int page) throws IOException
+    {
+        entry.clear();
+        entry.putLong(offsets[page]).putInt(capacities[page]).putInt(lengths[page]);
+        entry.flip();
+        writeFully(idxChannel, entry, IDX_HEADER_SIZE + (long)page * ENTRY_SIZE);
+    }
+
+    /**
+     * Finds room for a slot: the smallest free slot that is big
+     * enough, split if it is bigger, or else the end of the file.
+     */
+    private long takeSlot(int capacity)
+    {
+        Integer size = freeSlots.ceilingKey(capacity);
+        if (size == null)
+        {
+            long offset = tail;
+            tail += capacity;
+            return offset;
+        }
+        ArrayDeque<Long> slots = freeSlots.get(size);
+        long offset = slots.pop();
+        if (slots.isEmpty())
+            freeSlots.remove(size);
+        if (size > capacity)
+            addFreeSlot(offset + capacity, size - capacity);
+        return offset;
+    }
+
+    private void releaseSlot(int page)
+    {
+        if (capacities[page] > 0)
+        {
+            if (offsets[page] + capacities[page] == tail)
+                tail = offsets[page];
+            else
+                addFreeSlot(offsets[page], capacities[page]);
+        }
+        offsets[page] = 0;
+        capacities[page] = 0;
+        lengths[page] = 0;
+    }
+
+    private void addFreeSlot(long offset, int capacity)
+    {
+        ArrayDeque<Long> slots = freeSlots.get(capacity);
+        if (slots == null)
+        {
+            slots = new ArrayDeque<Long>();
+            freeSlots.put(capacity, slots);
+        }
+        slots.push(offset);
+    }
+
+    private static boolean isZero(byte[] data)
+    {
+        for (int i=0; i < data.length; i++)
+            if (data[i] != 0)
+                return false;
+        return true;
+    }
+}
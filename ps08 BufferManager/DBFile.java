@@ -1,8 +1,24 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Low level database file. This abstraction allows the user to treat
  * a database as a collection of pages.
+ *
+ * A DBFile may be shared between threads, and several DBFile objects
+ * may be open on one database at once, whatever their mode. They all
+ * share one in-memory space map and page count, found by the
+ * canonical path of the data file, so no two of them hand out the
+ * same page and each sees pages the others have allocated before the
+ * map file does. Page transfers are positional and run concurrently;
+ * allocation, deallocation and space map write-back are synchronized
+ * on the shared space map. Transfers check the page count and the
+ * space map without the lock: the count is volatile and written only
+ * once the grown map has been published.
  * @author Dave Musicant, with considerable material reused from the
  * UW-Madison Minibase project
  */
@@ -15,47 +31,140 @@ public class DBFile
         extends RuntimeException {};
     public static class EmptyFileException extends RuntimeException {};
     public static class PageNotAllocatedException extends RuntimeException {};
+    public static class BadPageSizeException extends RuntimeException {};
+    public static class FileInUseException extends RuntimeException {};
+
+    /**
+     * Number of allocations and deallocations the in-memory space map
+     * absorbs before its changes are written back to the map file.
+     */
+    public static final int MAP_SYNC_BATCH = 64;
+
+    /**
+     * Default number of pages a file grows by when it runs out of
+     * free pages.
+     */
+    public static final int DEFAULT_EXTENT_PAGES = 64;
+
+    // Size of the reads used to load the space map when opening.
+    private static final int MAP_LOAD_CHUNK = 64 * 1024;
+
+    // The map file starts with a header recording the page size:
+    // magic number, page size, and reserved space. Files written
+    // before the header existed have none and use the default size.
+    private static final int MAP_MAGIC = 0x4d696e69;
+    private static final int MAP_HEADER_SIZE = 16;
+
+    /**
+     * Allocation state of an open database, shared by every DBFile
+     * object open on it. Objects are counted so that the state is
+     * dropped, and read from the map file again, once the last of them
+     * is closed.
+     */
+    private static class OpenFile
+    {
+        final String path;
+        final SpaceMap spaceMap;
+        volatile int numPages;
+        int objects;
+
+        OpenFile(String path, SpaceMap spaceMap, int numPages)
+        {
+            this.path = path;
+            this.spaceMap = spaceMap;
+            this.numPages = numPages;
+        }
+    }
+
+    // Open databases by canonical path of the data file.
+    private static final Map<String, OpenFile> openFiles =
+        new HashMap<String, OpenFile>();
 
     private String dataFileName;
     private String mapFileName;
-    private int numPages;
+    private int pageSize;
+    private int mapOffset;
+    private OpenFile shared;
+    private SpaceMap spaceMap;
+    private int extentPages = DEFAULT_EXTENT_PAGES;
+
+    // Channels are opened once and kept open for the life of the
+    // object; all I/O is positional, so there is no seek state.
+    protected FileChannel dataChannel;
+    protected FileChannel mapChannel;
     
     /**
      * Creates a database with the specified number of pages. The
-     * number of pages in the database can never be increased.
+     * files are created sparse: no page data is written, so creating
+     * a large database is cheap in both time and memory. The database
+     * grows in extents when allocation runs out of free pages.
      * @param name name to be given to database.
-     * @param numPages maximum number of pages in database.
+     * @param numPages initial number of pages in database.
      * @throws IOException passed through from underlying filesystem.
      */
     public DBFile(String name, int numPages) throws IOException
     {
+        this(name, numPages, Page.PAGESIZE);
+    }
+
+    /**
+     * Creates a database with the specified number of pages of the
+     * given size. The page size is recorded in the space map and
+     * cannot be changed afterwards.
+     * @param name name to be given to database.
+     * @param numPages initial number of pages in database.
+     * @param pageSize size of each page in bytes.
+     * @throws BadPageSizeException if the page size is not supported.
+     * @throws IOException passed through from underlying filesystem.
+     */
+    public DBFile(String name, int numPages, int pageSize) throws IOException
+    {
+        if (!Page.isValidSize(pageSize))
+            throw new BadPageSizeException();
+
         // If numPages is too small, just create it with at least two pages
         if (numPages < 2)
             numPages = 2;
 
+        // Any cached handle refers to the file being replaced.
+        DBFileCache.invalidateAll(name);
+
         // Create the file
         dataFileName = name;
         RandomAccessFile dataFile = new RandomAccessFile(dataFileName,"rw");
 
-        // Make the file num_pages pages long.
-        dataFile.setLength(numPages * Page.PAGESIZE);
-        byte[] zzeros = new byte[numPages * Page.PAGESIZE];
-        dataFile.write(zzeros);
-        dataFile.close();
+        // Make the file num_pages pages long. Truncating first
+        // discards the contents of any file being replaced; extending
+        // leaves a hole that reads back as zeros.
+        dataFile.setLength(0);
+        dataFile.setLength((long)numPages * pageSize);
 
         // Create a separate space map for each file.
         mapFileName = name + ".map";
         RandomAccessFile mapFile = new RandomAccessFile(mapFileName,"rw");
 
-        // Allocate one byte for each page in the data file.
-        mapFile.setLength(numPages); 
-
-        // Fill in map pages with zeros.
-        byte[] zeros = new byte[numPages];
-        mapFile.write(zeros);
-        mapFile.close();
-
-        this.numPages = numPages;
+        // Write the header, then allocate one byte for each page in
+        // the data file, all zero (free).
+        mapFile.setLength(0);
+        mapFile.writeInt(MAP_MAGIC);
+        mapFile.writeInt(pageSize);
+        mapFile.setLength(MAP_HEADER_SIZE + numPages);
+
+        dataChannel = dataFile.getChannel();
+        mapChannel = mapFile.getChannel();
+        this.pageSize = pageSize;
+        mapOffset = MAP_HEADER_SIZE;
+
+        // Objects still open on a file being replaced keep its old
+        // state; they refer to a file that no longer exists.
+        String path = canonicalPath(name);
+        synchronized (openFiles)
+        {
+            shared = new OpenFile(path, new SpaceMap(numPages), numPages);
+            shared.objects = 1;
+            openFiles.put(path, shared);
+        }
+        spaceMap = shared.spaceMap;
     }
 
     /**
@@ -71,11 +180,204 @@ public class DBFile
         {
             mapFileName = name + ".map";
             RandomAccessFile mapFile = new RandomAccessFile(mapFileName,"rw");
-            numPages = (int)(mapFile.length());
-            mapFile.close();
+            pageSize = Page.PAGESIZE;
+            mapOffset = 0;
+            if (mapFile.length() >= MAP_HEADER_SIZE &&
+                mapFile.readInt() == MAP_MAGIC)
+            {
+                pageSize = mapFile.readInt();
+                mapOffset = MAP_HEADER_SIZE;
+            }
+            mapChannel = mapFile.getChannel();
+            dataChannel =
+                (new RandomAccessFile(dataFileName,"rw")).getChannel();
+
+            // The map file is only read if no other object has the
+            // database open; otherwise it may lag behind their map.
+            String path = canonicalPath(name);
+            synchronized (openFiles)
+            {
+                shared = openFiles.get(path);
+                if (shared == null)
+                {
+                    int numPages = (int)(mapFile.length() - mapOffset);
+                    shared = new OpenFile(path, loadSpaceMap(numPages),
+                                          numPages);
+                    openFiles.put(path, shared);
+                }
+                shared.objects++;
+            }
+            spaceMap = shared.spaceMap;
         }
         else
-            numPages = 0;
+        {
+            pageSize = Page.PAGESIZE;
+        }
+    }
+
+    private static String canonicalPath(String name) throws IOException
+    {
+        return (new File(name)).getCanonicalPath();
+    }
+
+    /**
+     * Returns the number of DBFile objects, this one included, that
+     * are open on this database.
+     * @return the count of open objects, or zero if the file does not
+     * exist.
+     */
+    protected int getOpenObjects()
+    {
+        if (shared == null)
+            return 0;
+        synchronized (openFiles)
+        {
+            return shared.objects;
+        }
+    }
+
+    /**
+     * Reads the map file into an in-memory space map, a chunk at a
+     * time.
+     * @param numPages number of pages the map file describes.
+     * @return the loaded space map.
+     * @throws IOException passed through from underlying file system.
+     */
+    private SpaceMap loadSpaceMap(int numPages) throws IOException
+    {
+        SpaceMap loaded = new SpaceMap(numPages);
+        byte[] chunk = new byte[Math.min(MAP_LOAD_CHUNK, numPages)];
+        for (int page=0; page < numPages; page += chunk.length)
+        {
+            int len = Math.min(chunk.length, numPages - page);
+            readFully(mapChannel, ByteBuffer.wrap(chunk, 0, len),
+                      mapOffset + page);
+            loaded.load(chunk, len, page);
+        }
+        loaded.rebuildExtents();
+        return loaded;
+    }
+
+    /**
+     * Writes any space map changes not yet on disk to the map file.
+     * @throws IOException passed through from underlying file system.
+     */
+    protected void syncMap() throws IOException
+    {
+        if (spaceMap == null)
+            return;
+        synchronized (spaceMap)
+        {
+            if (spaceMap.pendingChanges() == 0)
+                return;
+            int low = spaceMap.dirtyLow();
+            int high = spaceMap.dirtyHigh();
+            writeMap(ByteBuffer.wrap(spaceMap.toBytes(low, high)),
+                     mapOffset + low);
+            spaceMap.clearDirty();
+        }
+    }
+
+    /**
+     * Returns the name of the database.
+     * @return the name this file was created or opened with.
+     */
+    public String getName()
+    {
+        return dataFileName;
+    }
+
+    /**
+     * Returns the size of the pages in this database.
+     * @return the page size in bytes.
+     */
+    public int getPageSize()
+    {
+        return pageSize;
+    }
+
+    /**
+     * Returns the number of pages in the database.
+     * @return the number of pages, or zero if the file does not exist.
+     */
+    public int getNumPages()
+    {
+        return shared == null ? 0 : shared.numPages;
+    }
+
+    /**
+     * Sets how many pages the file grows by when allocation runs out
+     * of free pages. The file also grows by at least the size of the
+     * run being allocated.
+     * @param extentPages pages per extent, or zero to never grow and
+     * throw FileFullException instead.
+     */
+    public void setExtentPages(int extentPages)
+    {
+        this.extentPages = extentPages;
+    }
+
+    /**
+     * Returns the number of pages the file grows by at a time.
+     * @return pages per extent, zero if the file never grows.
+     */
+    public int getExtentPages()
+    {
+        return extentPages;
+    }
+
+    /**
+     * Grows the database so that it can hold a run of the given size.
+     * The files are extended sparsely; the new pages are free.
+     * @param runSize size of the run that did not fit.
+     * @throws IOException passed through from underlying file system.
+     */
+    private void grow(int runSize) throws IOException
+    {
+        int step = extentPages > 0 ? extentPages : 1;
+        int extents = (runSize + step - 1) / step;
+        int newNumPages = shared.numPages + extents * step;
+        extend((long)newNumPages * pageSize, mapOffset + newNumPages);
+        spaceMap.grow(newNumPages);
+        shared.numPages = newNumPages; // after the map, for unlocked readers
+    }
+
+    /**
+     * Extends the data file and the map file to the given lengths by
+     * writing a single zero byte at the new end of each, leaving holes
+     * that read back as zeros. The data file is extended first, so a
+     * map entry never refers past the end of the data.
+     * @param dataLength new length of the data file in bytes.
+     * @param mapLength new length of the map file in bytes.
+     * @throws IOException passed through from underlying file system.
+     */
+    protected void extend(long dataLength, long mapLength) throws IOException
+    {
+        writeFully(dataChannel, ByteBuffer.allocate(1), dataLength - 1);
+        writeFully(mapChannel, ByteBuffer.allocate(1), mapLength - 1);
+    }
+
+    /**
+     * Writes back the space map and closes the channels held by this
+     * object. Further reads and writes on it will fail.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void close() throws IOException
+    {
+        if (mapChannel != null && mapChannel.isOpen())
+        {
+            syncMap();
+            synchronized (openFiles)
+            {
+                if (--shared.objects == 0 &&
+                    openFiles.get(shared.path) == shared)
+                    openFiles.remove(shared.path);
+            }
+        }
+        if (dataChannel != null)
+            dataChannel.close();
+        if (mapChannel != null)
+            mapChannel.close();
     }
 
     /**
@@ -86,10 +388,25 @@ public class DBFile
      */
     public static boolean erase(String name)
     {
+        DBFileCache.invalidateAll(name);
+        try
+        {
+            String path = canonicalPath(name);
+            synchronized (openFiles)
+            {
+                openFiles.remove(path);
+            }
+        }
+        catch (IOException e)
+        {
+            // No such path can have been opened either.
+        }
         boolean success;
         success = (new File(name)).delete();
         if (success)
             success = (new File(name + ".map")).delete();
+        // Compressed databases also have an index.
+        (new File(name + ".idx")).delete();
         return success;
     }
 
@@ -99,7 +416,8 @@ public class DBFile
      * @return page number of the first page of the allocated run.
      * @throws NonPositiveRunSizeException if the run size is less
      * than or equal to zero.
-     * @throws FileFullException if there are not enough free pages.
+     * @throws FileFullException if there are not enough free pages
+     * and the file is not allowed to grow.
      * @throws IOException passed through from underlying file system.
      */
     public int allocatePages(int runSize) throws IOException
@@ -107,46 +425,55 @@ public class DBFile
         if (runSize <= 0)
             throw new NonPositiveRunSizeException();
 
-        // Load the space map into memory to look for runs of the
-        // necessary size. Technically, should do this a page at a
-        // time (since might not have enough memory). Going with a
-        // simpler approach here for expediency.
-        RandomAccessFile mapFile = new RandomAccessFile(mapFileName,"rw");
-        mapFile.seek(0);
-        byte[] map = new byte[numPages];
-        mapFile.readFully(map);
+        if (spaceMap == null)
+            throw new FileFullException();
 
-        // Loop over run starting positions
-        for (int i=0; i < mapFile.length() - (runSize-1); i++)
+        // The space map is kept in memory, with free runs indexed by
+        // length, so finding a run does not touch the map file.
+        synchronized (spaceMap)
         {
-            // Loop over entire possible run: give up if any spot in
-            // the possible run already has a 1 (page is taken).
-            int currentRunSize = 0;
-            for (int j=i; j < i + runSize; j++)
+            int first = spaceMap.allocate(runSize);
+            if (first < 0 && extentPages > 0)
             {
-                if (map[j] == 1)
-                    break;
-                else
-                    currentRunSize++;
-            }
-
-            // Found a run.
-            if (currentRunSize == runSize)
-            {
-                // Indicate pages are now used
-                byte[] mapUpdate = new byte[runSize];
-                for (int j=0; j < runSize; j++)
-                    mapUpdate[j] = 1;
-                mapFile.seek(i);
-                mapFile.write(mapUpdate);
-                mapFile.close();
-                return i;
+                grow(runSize);
+                first = spaceMap.allocate(runSize);
             }
+            if (first < 0)
+                throw new FileFullException();
+            if (spaceMap.pendingChanges() >= MAP_SYNC_BATCH)
+                syncMap();
+            return first;
         }
+    }
+
+    /**
+     * Allocates a given run of pages, growing the file if it does not
+     * reach that far. Used by LogManager.recover to redo allocations
+     * whose space map changes did not reach the disk before a crash.
+     * @param startPageNum page number at the beginning of the run.
+     * @param runSize number of pages in the run.
+     * @throws NonPositiveRunSizeException if the run size is less
+     * than or equal to zero.
+     * @throws BadPageNumberException if startPageNum is negative.
+     * @throws IOException passed through from underlying file system.
+     */
+    void markAllocated(int startPageNum, int runSize) throws IOException
+    {
+        if (runSize <= 0)
+            throw new NonPositiveRunSizeException();
+
+        if (spaceMap == null || startPageNum < 0)
+            throw new BadPageNumberException();
 
-        // If made it to here, then no run was found.
-        mapFile.close();
-        throw new FileFullException();
+        synchronized (spaceMap)
+        {
+            int numPages = getNumPages();
+            if (startPageNum + runSize > numPages)
+                grow(startPageNum + runSize - numPages);
+            spaceMap.markAllocated(startPageNum, runSize);
+            if (spaceMap.pendingChanges() >= MAP_SYNC_BATCH)
+                syncMap();
+        }
     }
 
     /**
@@ -167,17 +494,17 @@ public class DBFile
         if (runSize <= 0)
             throw new NonPositiveRunSizeException();
 
+        int numPages = getNumPages();
         if (startPageNum < 0 || startPageNum > numPages-1 ||
             startPageNum + runSize - 1 > numPages-1)
             throw new BadPageNumberException();
 
-        byte[] mapUpdate = new byte[runSize];
-        for (int i=0; i < runSize; i++)
-            mapUpdate[i] = 0;
-        RandomAccessFile mapFile = new RandomAccessFile(mapFileName,"rw");
-        mapFile.seek(startPageNum);
-        mapFile.write(mapUpdate);
-        mapFile.close();
+        synchronized (spaceMap)
+        {
+            spaceMap.free(startPageNum, runSize);
+            if (spaceMap.pendingChanges() >= MAP_SYNC_BATCH)
+                syncMap();
+        }
     }
 
     /**
@@ -191,23 +518,16 @@ public class DBFile
      */
     public void readPage(int pageNum, Page page) throws IOException
     {
-        if (pageNum < 0 || pageNum > numPages-1)
+        if (pageNum < 0 || pageNum > getNumPages()-1)
             throw new BadPageNumberException();
 
         // Make sure that page has actually been allocated
-        RandomAccessFile mapFile = new RandomAccessFile(mapFileName,"r");
-        mapFile.seek(pageNum);
-        byte[] map = new byte[1];
-        mapFile.readFully(map);
-        if (map[0] == 0)
+        if (!isAllocated(pageNum))
             throw new PageNotAllocatedException();
-        mapFile.close();
 
         // Read the actual page from the file
-        RandomAccessFile dataFile = new RandomAccessFile(dataFileName,"r");
-        dataFile.seek(pageNum * Page.PAGESIZE);
-        dataFile.readFully(page.data);
-        dataFile.close();
+        checkPageSize(page);
+        readData(page.buffer(), (long)pageNum * pageSize);
     }
 
     /**
@@ -221,6 +541,7 @@ public class DBFile
      */
     public void writePage(int pageNum, Page page) throws IOException
     {
+        int numPages = getNumPages();
         if (numPages == 0)
             throw new EmptyFileException();
 
@@ -228,18 +549,282 @@ public class DBFile
             throw new BadPageNumberException();
 
         // Make sure that page has actually been allocated
-        RandomAccessFile mapFile = new RandomAccessFile(mapFileName,"r");
-        mapFile.seek(pageNum);
-        byte[] map = new byte[1];
-        mapFile.readFully(map);
-        if (map[0] == 0)
+        if (!isAllocated(pageNum))
             throw new PageNotAllocatedException();
-        mapFile.close();
 
-        RandomAccessFile dataFile = new RandomAccessFile(dataFileName,"rw");
-        dataFile.seek(pageNum * Page.PAGESIZE);
-        dataFile.write(page.data);
-        dataFile.close();
+        checkPageSize(page);
+        writeData(page.buffer(), (long)pageNum * pageSize);
+    }
+
+    /**
+     * Starts reading a page on the shared asynchronous I/O engine,
+     * whose queue depth is AsyncPageIO.DEFAULT_QUEUE_DEPTH.
+     * @param pageNum the page number to be read.
+     * @param page a reference to an already allocated Page object.
+     * @return a future completed with the page once it has been read,
+     * or completed with the exception readPage would have thrown.
+     */
+    public CompletableFuture<Page> readPageAsync(int pageNum, Page page)
+    {
+        return readPageAsync(pageNum, page, AsyncPageIO.shared());
+    }
+
+    /**
+     * Starts reading a page on the given asynchronous I/O engine, for
+     * callers that want a queue depth of their own.
+     * @param pageNum the page number to be read.
+     * @param page a reference to an already allocated Page object.
+     * @param io the engine to run the read.
+     * @return a future completed with the page once it has been read,
+     * or completed with the exception readPage would have thrown.
+     */
+    public CompletableFuture<Page> readPageAsync(int pageNum, Page page,
+                                                 AsyncPageIO io)
+    {
+        return io.read(this, pageNum, page);
+    }
+
+    /**
+     * Starts writing a page on the shared asynchronous I/O engine,
+     * whose queue depth is AsyncPageIO.DEFAULT_QUEUE_DEPTH.
+     * @param pageNum the page number to be written.
+     * @param page a Page object with data to be written. It must not
+     * be modified until the future completes.
+     * @return a future completed with the page once it has been
+     * written, or completed with the exception writePage would have
+     * thrown.
+     */
+    public CompletableFuture<Page> writePageAsync(int pageNum, Page page)
+    {
+        return writePageAsync(pageNum, page, AsyncPageIO.shared());
+    }
+
+    /**
+     * Starts writing a page on the given asynchronous I/O engine.
+     * @param pageNum the page number to be written.
+     * @param page a Page object with data to be written. It must not
+     * be modified until the future completes.
+     * @param io the engine to run the write.
+     * @return a future completed with the page once it has been
+     * written, or completed with the exception writePage would have
+     * thrown.
+     */
+    public CompletableFuture<Page> writePageAsync(int pageNum, Page page,
+                                                  AsyncPageIO io)
+    {
+        return io.write(this, pageNum, page);
+    }
+
+    /**
+     * Reads a run of consecutive pages with a single scattering read.
+     * @param startPage the page number of the first page in the run.
+     * @param pages already allocated Page objects, one per page of the
+     * run, filled in order.
+     * @throws BadPageNumberException if the run is not in the file.
+     * @throws IOException passed through from underlying file system.
+     * @throws PageNotAllocatedException if any page of the run is not
+     * allocated.
+     */
+    public void readPages(int startPage, Page[] pages) throws IOException
+    {
+        checkRun(startPage, pages.length);
+        readDataRun(wrap(pages), (long)startPage * pageSize);
+    }
+
+    /**
+     * Writes a run of consecutive pages with a single gathering write.
+     * @param startPage the page number of the first page in the run.
+     * @param pages Page objects with the data to be written, in order.
+     * @throws EmptyFileException() if the file has no pages within it.
+     * @throws BadPageNumberException if the run is not in the file.
+     * @throws IOException passed through from underlying file system.
+     * @throws PageNotAllocatedException if any page of the run is not
+     * allocated.
+     */
+    public void writePages(int startPage, Page[] pages) throws IOException
+    {
+        if (getNumPages() == 0)
+            throw new EmptyFileException();
+        checkRun(startPage, pages.length);
+        writeDataRun(wrap(pages), (long)startPage * pageSize);
+    }
+
+    /**
+     * Validates a run of pages for readPages and writePages.
+     */
+    private void checkRun(int startPage, int runSize)
+    {
+        int numPages = getNumPages();
+        if (runSize <= 0)
+            throw new NonPositiveRunSizeException();
+
+        if (startPage < 0 || startPage > numPages-1 ||
+            startPage + runSize - 1 > numPages-1)
+            throw new BadPageNumberException();
+
+        if (!spaceMap.isRunAllocated(startPage, runSize))
+            throw new PageNotAllocatedException();
+    }
+
+    private ByteBuffer[] wrap(Page[] pages)
+    {
+        ByteBuffer[] bufs = new ByteBuffer[pages.length];
+        for (int i=0; i < pages.length; i++)
+        {
+            checkPageSize(pages[i]);
+            bufs[i] = pages[i].buffer();
+        }
+        return bufs;
+    }
+
+    /**
+     * Makes sure a page object has this database's page size.
+     * @throws BadPageSizeException if it does not.
+     */
+    private void checkPageSize(Page page)
+    {
+        if (page.size() != pageSize)
+            throw new BadPageSizeException();
+    }
+
+    /**
+     * Checks the space map entry for a single page.
+     * @param pageNum the page number to be checked.
+     * @return true if the page is allocated.
+     */
+    private boolean isAllocated(int pageNum)
+    {
+        return spaceMap.isAllocated(pageNum);
+    }
+
+    /**
+     * Forces all changes to the data file and the space map out to
+     * the storage device. Writes are otherwise only as durable as the
+     * operating system makes them, and space map changes are only
+     * written back in batches.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void force() throws IOException
+    {
+        syncMap();
+        if (dataChannel != null)
+            dataChannel.force(false);
+        if (mapChannel != null)
+            mapChannel.force(false);
+    }
+
+    /**
+     * Reads bytes of the data file into the buffer. Subclasses that
+     * store pages differently override this and the other three
+     * transfer methods below.
+     * @param buf the buffer to be filled.
+     * @param position byte offset in the data file.
+     * @throws IOException passed through from underlying file system.
+     */
+    protected void readData(ByteBuffer buf, long position) throws IOException
+    {
+        readFully(dataChannel, buf, position);
+    }
+
+    /**
+     * Writes the buffer to the data file.
+     * @param buf the bytes to be written.
+     * @param position byte offset in the data file.
+     * @throws IOException passed through from underlying file system.
+     */
+    protected void writeData(ByteBuffer buf, long position) throws IOException
+    {
+        writeFully(dataChannel, buf, position);
+    }
+
+    /**
+     * Reads consecutive bytes of the data file into several buffers,
+     * filling each in turn. FileChannel has no positional scattering
+     * read, so the channel's position is set under a lock; positional
+     * single-page reads do not use the position and are unaffected.
+     * @param bufs the buffers to be filled.
+     * @param position byte offset in the data file.
+     * @throws IOException passed through from underlying file system.
+     */
+    protected void readDataRun(ByteBuffer[] bufs, long position)
+        throws IOException
+    {
+        synchronized (dataChannel)
+        {
+            dataChannel.position(position);
+            while (bufs[bufs.length-1].hasRemaining())
+                if (dataChannel.read(bufs) < 0)
+                    throw new EOFException();
+        }
+    }
+
+    /**
+     * Writes several buffers to consecutive bytes of the data file.
+     * @param bufs the bytes to be written, in order.
+     * @param position byte offset in the data file.
+     * @throws IOException passed through from underlying file system.
+     */
+    protected void writeDataRun(ByteBuffer[] bufs, long position)
+        throws IOException
+    {
+        synchronized (dataChannel)
+        {
+            dataChannel.position(position);
+            while (bufs[bufs.length-1].hasRemaining())
+                dataChannel.write(bufs);
+        }
+    }
+
+    /**
+     * Reads bytes of the space map into the buffer.
+     * @param buf the buffer to be filled.
+     * @param position byte offset in the map file.
+     * @throws IOException passed through from underlying file system.
+     */
+    protected void readMap(ByteBuffer buf, long position) throws IOException
+    {
+        readFully(mapChannel, buf, position);
+    }
+
+    /**
+     * Writes the buffer to the space map.
+     * @param buf the bytes to be written.
+     * @param position byte offset in the map file.
+     * @throws IOException passed through from underlying file system.
+     */
+    protected void writeMap(ByteBuffer buf, long position) throws IOException
+    {
+        writeFully(mapChannel, buf, position);
+    }
+
+    /**
+     * Fills the buffer from the channel starting at the given file
+     * position, without moving the channel's own position.
+     * @throws EOFException if the file ends before the buffer is full.
+     * @throws IOException passed through from underlying file system.
+     */
+    static void readFully(FileChannel channel, ByteBuffer buf, long position)
+        throws IOException
+    {
+        while (buf.hasRemaining())
+        {
+            int n = channel.read(buf, position);
+            if (n < 0)
+                throw new EOFException();
+            position += n;
+        }
+    }
+
+    /**
+     * Writes the whole buffer to the channel starting at the given
+     * file position, without moving the channel's own position.
+     * @throws IOException passed through from underlying file system.
+     */
+    static void writeFully(FileChannel channel, ByteBuffer buf, long position)
+        throws IOException
+    {
+        while (buf.hasRemaining())
+            position += channel.write(buf, position);
     }
 
     // Stub for testing.
@@ -0,0 +1,240 @@
+import java.io.*;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of open database files, keyed by file name. Callers
+ * acquire a file, use it, and release it again; the underlying
+ * channels stay open between calls so that each page transfer costs
+ * a single positional read or write rather than an open, seek,
+ * transfer and close. Files that nobody holds are closed in
+ * least-recently-used order once the cache is over capacity.
+ */
+public class DBFileCache
+{
+    /**
+     * Number of unreferenced files kept open by the shared cache.
+     */
+    public static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * How the cache opens the files it hands out.
+     */
+    public static enum Mode
+    {
+        /** Positional reads and writes on a FileChannel. */
+        CHANNEL,
+        /** Memory-mapped data file (MappedDBFile). */
+        MAPPED,
+        /** Page data bypasses the page cache (DirectDBFile). */
+        DIRECT,
+        /** Pages are stored compressed (CompressedDBFile). */
+        COMPRESSED
+    }
+
+    private static final EnumMap<Mode, DBFileCache> SHARED =
+        new EnumMap<Mode, DBFileCache>(Mode.class);
+
+    private static class Entry
+    {
+        private DBFile file;
+        private int refCount;
+
+        public Entry(DBFile file)
+        {
+            this.file = file;
+            refCount = 0;
+        }
+    }
+
+    private LinkedHashMap<String, Entry> entries;
+    private int capacity;
+    private Mode mode;
+
+    /**
+     * Creates a cache that keeps at most the given number of files
+     * open. Files that are currently acquired are never closed, so
+     * the cache may temporarily exceed its capacity.
+     * @param capacity the number of files kept open.
+     */
+    public DBFileCache(int capacity)
+    {
+        this(capacity, Mode.CHANNEL);
+    }
+
+    /**
+     * Creates a cache that opens its files in the given mode. Only
+     * the shared caches are told about files being created or erased;
+     * a private cache must be invalidated by its owner.
+     * @param capacity the number of files kept open.
+     * @param mode how files are opened.
+     */
+    public DBFileCache(int capacity, Mode mode)
+    {
+        this.capacity = capacity;
+        this.mode = mode;
+        // Access order, so that iteration starts at the least
+        // recently used file.
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    }
+
+    /**
+     * Returns the cache shared by all buffer managers. DBFile uses
+     * it to drop stale handles when a file is created or erased.
+     * @return the process-wide cache.
+     */
+    public static DBFileCache shared()
+    {
+        return forMode(Mode.CHANNEL);
+    }
+
+    /**
+     * Returns the shared cache for the given mode.
+     * @param mode how files are opened.
+     * @return the process-wide cache for that mode.
+     */
+    public static DBFileCache forMode(Mode mode)
+    {
+        synchronized (SHARED)
+        {
+            DBFileCache cache = SHARED.get(mode);
+            if (cache == null)
+            {
+                cache = new DBFileCache(DEFAULT_CAPACITY, mode);
+                SHARED.put(mode, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Drops the named database from every shared cache.
+     * @param name the name of the database.
+     */
+    public static void invalidateAll(String name)
+    {
+        synchronized (SHARED)
+        {
+            for (DBFileCache cache : SHARED.values())
+                cache.invalidate(name);
+        }
+    }
+
+    /**
+     * Returns the mode this cache opens files in.
+     * @return the open mode.
+     */
+    public Mode getMode()
+    {
+        return mode;
+    }
+
+    /**
+     * Returns an open handle on the named database, opening it if it
+     * is not already cached. Every call must be matched by a call to
+     * release.
+     * @param name the name of the database.
+     * @return the open database file.
+     * @throws IOException passed through from underlying file system.
+     */
+    public synchronized DBFile acquire(String name) throws IOException
+    {
+        Entry entry = entries.get(name);
+        if (entry == null)
+        {
+            entry = new Entry(open(name));
+            entries.put(name, entry);
+        }
+        entry.refCount++;
+        evict();
+        return entry.file;
+    }
+
+    /**
+     * Gives back a handle obtained from acquire. The file stays open
+     * until it is evicted or invalidated.
+     * @param file the handle to be released.
+     * @throws IOException passed through from underlying file system.
+     */
+    public synchronized void release(DBFile file) throws IOException
+    {
+        Entry entry = entries.get(file.getName());
+        if (entry != null && entry.file == file)
+        {
+            entry.refCount--;
+            evict();
+        }
+        else
+        {
+            // The file was invalidated while it was held.
+            file.close();
+        }
+    }
+
+    /**
+     * Drops the cached handle for the named database, closing it if
+     * nobody holds it. Holders of an invalidated handle close it when
+     * they release it.
+     * @param name the name of the database.
+     */
+    public synchronized void invalidate(String name)
+    {
+        Entry entry = entries.remove(name);
+        if (entry != null && entry.refCount == 0)
+            closeQuietly(entry.file);
+    }
+
+    /**
+     * Returns the number of files currently open in the cache.
+     * @return the number of cached handles.
+     */
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Closes least recently used files that nobody holds until the
+     * cache is back within its capacity.
+     */
+    private void evict()
+    {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (entries.size() > capacity && it.hasNext())
+        {
+            Entry entry = it.next().getValue();
+            if (entry.refCount == 0)
+            {
+                it.remove();
+                closeQuietly(entry.file);
+            }
+        }
+    }
+
+    private DBFile open(String name) throws IOException
+    {
+        switch (mode)
+        {
+        case MAPPED:
+            return new MappedDBFile(name);
+        case DIRECT:
+            return new DirectDBFile(name);
+        case COMPRESSED:
+            return new CompressedDBFile(name);
+        default:
+            return new DBFile(name);
+        }
+    }
+
+    private static void closeQuietly(DBFile file)
+    {
+        try {
+            file.close();
+        }
+        catch (IOException e) {
+            // Nothing useful to do; the handle is gone either way.
+        }
+    }
+}
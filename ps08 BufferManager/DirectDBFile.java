@@ -0,0 +1,274 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import com.sun.nio.file.ExtendedOpenOption;
+
+/**
+ * Database file whose page data bypasses the operating system's page
+ * cache (O_DIRECT). The buffer manager is then the only cache of page
+ * contents, so memory is not spent holding each page twice and read
+ * latency does not depend on what the kernel happens to have cached.
+ *
+ * Direct transfers must start and end on file system block
+ * boundaries, from memory aligned to the block size. A buffer that
+ * satisfies this (such as one from allocateAligned) is transferred
+ * directly. Anything else goes through an aligned bounce buffer,
+ * reading the enclosing blocks and, for writes smaller than a block,
+ * writing them back. Page sizes that are a multiple of the block size
+ * therefore only cost a memory copy. The space map is small and
+ * batched, so it stays on ordinary buffered I/O.
+ *
+ * If the file system refuses O_DIRECT, the file silently falls back
+ * to buffered I/O; isDirect() tells which is in use.
+ */
+public class DirectDBFile extends DBFile
+{
+    private FileChannel directChannel;
+    private int blockSize;
+    private ByteBuffer bounce;
+
+    /**
+     * Creates a database with the specified number of pages and opens
+     * it for direct I/O.
+     * @param name name to be given to database.
+     * @param numPages initial number of pages in database.
+     * @throws IOException passed through from underlying filesystem.
+     */
+    public DirectDBFile(String name, int numPages) throws IOException
+    {
+        super(name, numPages);
+        openDirect(name);
+    }
+
+    /**
+     * Creates a database with pages of the given size and opens it
+     * for direct I/O.
+     * @param name name to be given to database.
+     * @param numPages initial number of pages in database.
+     * @param pageSize size of each page in bytes.
+     * @throws IOException passed through from underlying filesystem.
+     */
+    public DirectDBFile(String name, int numPages, int pageSize)
+        throws IOException
+    {
+        super(name, numPages, pageSize);
+        openDirect(name);
+    }
+
+    /**
+     * Opens the database with the given name for direct I/O.
+     * @param name name of the database.
+     * @throws IOException passed through from underlying file system.
+     */
+    public DirectDBFile(String name) throws IOException
+    {
+        super(name);
+        openDirect(name);
+    }
+
+    private void openDirect(String name) throws IOException
+    {
+        if (dataChannel == null)
+            return;
+        Path path = Paths.get(name);
+        blockSize = (int)Files.getFileStore(path).getBlockSize();
+        try {
+            directChannel = FileChannel.open(path, StandardOpenOption.READ,
+                                             StandardOpenOption.WRITE,
+                                             ExtendedOpenOption.DIRECT);
+        }
+        catch (IOException | UnsupportedOperationException e) {
+            directChannel = null;
+            return;
+        }
+        bounce = allocateAligned(roundUp(getPageSize() + blockSize),
+                                 blockSize);
+    }
+
+    /**
+     * Allocates a direct buffer whose address is aligned for direct
+     * I/O.
+     * @param size capacity of the buffer in bytes.
+     * @param alignment required alignment, a power of two.
+     * @return an aligned direct buffer of the given capacity.
+     */
+    public static ByteBuffer allocateAligned(int size, int alignment)
+    {
+        ByteBuffer raw = ByteBuffer.allocateDirect(size + alignment);
+        ByteBuffer aligned = raw.alignedSlice(alignment);
+        aligned.limit(size);
+        return aligned.slice();
+    }
+
+    /**
+     * Whether page data really bypasses the page cache.
+     * @return true if the file was opened with O_DIRECT.
+     */
+    public boolean isDirect()
+    {
+        return directChannel != null;
+    }
+
+    /**
+     * Returns the block size that direct transfers are aligned to.
+     * @return the file system block size in bytes.
+     */
+    public int getBlockSize()
+    {
+        return blockSize;
+    }
+
+    /**
+     * Closes the direct channel as well as the buffered ones.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void close() throws IOException
+    {
+        super.close();
+        if (directChannel != null)
+            directChannel.close();
+    }
+
+    protected void readData(ByteBuffer buf, long position) throws IOException
+    {
+        if (directChannel == null)
+        {
+            super.readData(buf, position);
+            return;
+        }
+        if (isAligned(buf, position))
+        {
+            readFully(directChannel, buf, position);
+            return;
+        }
+        synchronized (this)
+        {
+            long start = position - position % blockSize;
+            int offset = (int)(position - start);
+            int len = roundUp(offset + buf.remaining());
+            ByteBuffer block = bounceFor(len);
+            readBlocks(block, start);
+            block.position(offset).limit(offset + buf.remaining());
+            buf.put(block);
+        }
+    }
+
+    protected void writeData(ByteBuffer buf, long position) throws IOException
+    {
+        if (directChannel == null)
+        {
+            super.writeData(buf, position);
+            return;
+        }
+        if (isAligned(buf, position))
+        {
+            writeFully(directChannel, buf, position);
+            return;
+        }
+        synchronized (this)
+        {
+            long start = position - position % blockSize;
+            int offset = (int)(position - start);
+            int len = roundUp(offset + buf.remaining());
+            ByteBuffer block = bounceFor(len);
+            // Only part of the enclosing blocks is being replaced, so
+            // the rest has to be read first.
+            if (offset != 0 || buf.remaining() != len)
+            {
+                readBlocks(block, start);
+                block.clear().limit(len);
+            }
+            block.position(offset);
+            block.put(buf);
+            block.clear().limit(len);
+            writeFully(directChannel, block, start);
+        }
+    }
+
+    protected void readDataRun(ByteBuffer[] bufs, long position)
+        throws IOException
+    {
+        if (directChannel == null)
+        {
+            super.readDataRun(bufs, position);
+            return;
+        }
+        for (int i=0; i < bufs.length; i++)
+        {
+            int len = bufs[i].remaining();
+            readData(bufs[i], position);
+            position += len;
+        }
+    }
+
+    protected void writeDataRun(ByteBuffer[] bufs, long position)
+        throws IOException
+    {
+        if (directChannel == null)
+        {
+            super.writeDataRun(bufs, position);
+            return;
+        }
+        for (int i=0; i < bufs.length; i++)
+        {
+            int len = bufs[i].remaining();
+            writeData(bufs[i], position);
+            position += len;
+        }
+    }
+
+    /**
+     * Fills an aligned buffer with whole blocks. The data file is a
+     * multiple of the page size, not the block size, so the last
+     * block may be cut short by the end of the file; the missing part
+     * reads as zeros.
+     */
+    private void readBlocks(ByteBuffer block, long position)
+        throws IOException
+    {
+        while (block.hasRemaining())
+        {
+            int n = directChannel.read(block, position);
+            if (n <= 0)
+                break;
+            position += n;
+            if (position >= directChannel.size())
+                break;
+        }
+        while (block.hasRemaining())
+            block.put((byte)0);
+        block.flip();
+    }
+
+    /**
+     * Whether a transfer can go straight to the direct channel.
+     */
+    private boolean isAligned(ByteBuffer buf, long position)
+    {
+        return buf.isDirect() && position % blockSize == 0
+            && buf.remaining() % blockSize == 0
+            && buf.alignmentOffset(buf.position(), blockSize) == 0;
+    }
+
+    /**
+     * Returns the bounce buffer cleared to the given length, growing
+     * it if necessary.
+     */
+    private ByteBuffer bounceFor(int len)
+    {
+        if (bounce.capacity() < len)
+            bounce = allocateAligned(len, blockSize);
+        bounce.clear().limit(len);
+        return bounce;
+    }
+
+    private int roundUp(int len)
+    {
+        return (len + blockSize - 1) / blockSize * blockSize;
+    }
+}
@@ -0,0 +1,133 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds, laid out like HdrHistogram:
+ * values below SUB_BUCKETS have a bucket each, and above that every
+ * power of two is split into SUB_BUCKETS buckets of equal width, so a
+ * value is known to within 1/SUB_BUCKETS of itself. Recording is one
+ * atomic increment, with no locks and no allocation, and any number of
+ * threads may record at once. Values of MAX_VALUE or more are counted
+ * in the last bucket.
+ */
+public class LatencyHistogram
+{
+    /**
+     * Buckets per power of two.
+     */
+    public static final int SUB_BUCKETS = 16;
+
+    /**
+     * Smallest value beyond the range of the histogram, about 18
+     * minutes in nanoseconds.
+     */
+    public static final long MAX_VALUE = 1L << 40;
+
+    private static final int SUB_BITS = Integer.numberOfTrailingZeros(SUB_BUCKETS);
+
+    private AtomicLongArray counts;
+
+    /**
+     * Creates an empty histogram.
+     */
+    public LatencyHistogram()
+    {
+        counts = new AtomicLongArray(bucket(MAX_VALUE - 1) + 1);
+    }
+
+    /**
+     * Counts one value.
+     * @param nanos the latency; negative values count as 0.
+     */
+    public void record(long nanos)
+    {
+        counts.incrementAndGet(bucket(Math.min(Math.max(nanos, 0), MAX_VALUE - 1)));
+    }
+
+    /**
+     * Returns the number of values recorded.
+     * @return the count.
+     */
+    public long getCount()
+    {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++)
+            total += counts.get(i);
+        return total;
+    }
+
+    /**
+     * Returns the value below which a given share of the values
+     * recorded fall, rounded up to the top of its bucket. Values being
+     * recorded meanwhile may or may not be counted.
+     * @param percent the share of values, from 0 to 100.
+     * @return the percentile in nanoseconds, or 0 if nothing has been
+     * recorded.
+     */
+    public long percentile(double percent)
+    {
+        long[] copy = new long[counts.length()];
+        long total = 0;
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long)Math.ceil(percent / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < copy.length; i++) {
+            seen += copy[i];
+            if (seen >= rank)
+                return highest(i);
+        }
+        return highest(copy.length - 1);
+    }
+
+    /**
+     * Returns the largest value recorded, rounded up to the top of its
+     * bucket.
+     * @return the maximum in nanoseconds, or 0 if nothing has been
+     * recorded.
+     */
+    public long getMax()
+    {
+        for (int i = counts.length() - 1; i >= 0; i--)
+            if (counts.get(i) != 0)
+                return highest(i);
+        return 0;
+    }
+
+    /**
+     * Forgets every value recorded.
+     */
+    public void reset()
+    {
+        for (int i = 0; i < counts.length(); i++)
+            counts.set(i, 0);
+    }
+
+    /**
+     * Returns the bucket a value is counted in.
+     */
+    private static int bucket(long value)
+    {
+        if (value < SUB_BUCKETS)
+            return (int)value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int)(value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the largest value counted in a bucket.
+     */
+    private static long highest(int bucket)
+    {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BITS);
+        return (1L << exponent) + (sub + 1) * width - 1;
+    }
+}
@@ -0,0 +1,504 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log. Page changes are appended to a sequential log file
+ * as full page images, so making a change durable costs a sequential
+ * append and a sync instead of a random page write; the data pages
+ * themselves are written later, at eviction or checkpoint time.
+ *
+ * Every record gets a log sequence number (LSN), the log position
+ * just past the record. A page may only be written to its database
+ * once the log is durable up to the LSN of its last change (the
+ * write-ahead rule), which flush(lsn) provides.
+ *
+ * Syncs are shared between threads (group commit): while one thread
+ * syncs the log, others keep appending; the next thread to flush
+ * syncs everything appended in the meantime in one go, and threads
+ * whose records were covered by a sync in progress simply wait for it.
+ *
+ * Because records are complete page images, replaying them in log
+ * order is idempotent, and recovery is a single redo pass.
+ * Allocations and deallocations are logged as well, since the space
+ * map is only written back in batches: redoing them first makes the
+ * pages whose images follow allocated again.
+ */
+public class LogManager
+{
+    public static class CorruptLogException extends RuntimeException {};
+
+    /**
+     * Appended bytes held in memory before they are written to the
+     * log file even without a flush.
+     */
+    public static final int BUFFER_LIMIT = 1 << 20;
+
+    // Header: magic number, then the LSN of the first byte after the
+    // header. LSNs keep increasing across checkpoints, which empty the
+    // file and move the base forward.
+    private static final int LOG_MAGIC = 0x57414c31;
+    private static final int HEADER_SIZE = 16;
+
+    private static final byte PAGE_IMAGE = 1;
+    private static final byte ALLOCATE = 2;
+    private static final byte DEALLOCATE = 3;
+
+    private FileChannel channel;
+    private Object lock = new Object();
+    private ByteArrayOutputStream buffer;
+    private long baseLsn;
+    private long nextLsn;
+    private long writtenLsn;
+    private long flushedLsn;
+    private boolean flushing;
+    private long syncs;
+    private int skipped;
+
+    /**
+     * Opens the log with the given name, creating it if necessary.
+     * Records already in the log are kept for recover().
+     * @param name name of the log file.
+     * @throws CorruptLogException if the file is not a log.
+     * @throws IOException passed through from underlying file system.
+     */
+    public LogManager(String name) throws IOException
+    {
+        channel = FileChannel.open(Paths.get(name), StandardOpenOption.CREATE,
+                                   StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE);
+        buffer = new ByteArrayOutputStream();
+        if (channel.size() < HEADER_SIZE)
+        {
+            baseLsn = 0;
+            writeHeader();
+            channel.truncate(HEADER_SIZE);
+            channel.force(false);
+        }
+        else
+        {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            DBFile.readFully(channel, header, 0);
+            if (header.getInt(0) != LOG_MAGIC)
+                throw new CorruptLogException();
+            baseLsn = header.getLong(4);
+        }
+        nextLsn = baseLsn + channel.size() - HEADER_SIZE;
+        writtenLsn = nextLsn;
+        flushedLsn = nextLsn;
+    }
+
+    /**
+     * Appends the image of a page. The record is not durable until
+     * the log has been flushed up to the returned LSN.
+     * @param fileName the name of the database containing the page.
+     * @param pageNum the page number.
+     * @param page the page contents.
+     * @return the LSN of the record.
+     * @throws IOException passed through from underlying file system.
+     */
+    public long append(String fileName, int pageNum, Page page)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes =
+            new ByteArrayOutputStream(page.size() + 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0); // length, filled in below
+        out.writeByte(PAGE_IMAGE);
+        out.writeUTF(fileName);
+        out.writeInt(pageNum);
+        out.writeInt(page.size());
+        if (page.data != null)
+            out.write(page.data);
+        else
+        {
+            byte[] image = new byte[page.size()];
+            page.buffer().get(image);
+            out.write(image);
+        }
+        return appendRecord(bytes);
+    }
+
+    /**
+     * Appends the allocation of a run of pages. The record must be
+     * durable before the space map change is lost to a crash, which
+     * flushing the log at commit provides.
+     * @param fileName the name of the database.
+     * @param startPage the first page of the run.
+     * @param runSize the number of pages in the run.
+     * @return the LSN of the record.
+     * @throws IOException passed through from underlying file system.
+     */
+    public long appendAllocation(String fileName, int startPage, int runSize)
+        throws IOException
+    {
+        return appendRun(ALLOCATE, fileName, startPage, runSize);
+    }
+
+    /**
+     * Appends the deallocation of a run of pages.
+     * @param fileName the name of the database.
+     * @param startPage the first page of the run.
+     * @param runSize the number of pages in the run.
+     * @return the LSN of the record.
+     * @throws IOException passed through from underlying file system.
+     */
+    public long appendDeallocation(String fileName, int startPage,
+                                   int runSize)
+        throws IOException
+    {
+        return appendRun(DEALLOCATE, fileName, startPage, runSize);
+    }
+
+    private long appendRun(byte type, String fileName, int startPage,
+                           int runSize)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0); // length, filled in below
+        out.writeByte(type);
+        out.writeUTF(fileName);
+        out.writeInt(startPage);
+        out.writeInt(runSize);
+        return appendRecord(bytes);
+    }
+
+    /**
+     * Fills in the length and checksum of a record written to the
+     * stream, then appends it.
+     * @return the LSN of the record.
+     */
+    private long appendRecord(ByteArrayOutputStream bytes) throws IOException
+    {
+        new DataOutputStream(bytes).writeInt(0); // checksum
+        byte[] record = bytes.toByteArray();
+        ByteBuffer wrapped = ByteBuffer.wrap(record);
+        wrapped.putInt(0, record.length);
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length - 4);
+        wrapped.putInt(record.length - 4, (int)crc.getValue());
+
+        synchronized (lock)
+        {
+            buffer.write(record, 0, record.length);
+            nextLsn += record.length;
+            if (buffer.size() >= BUFFER_LIMIT)
+                writeBuffer();
+            return nextLsn;
+        }
+    }
+
+    /**
+     * Returns the LSN just past the last appended record.
+     * @return the current end of the log.
+     */
+    public long currentLsn()
+    {
+        synchronized (lock)
+        {
+            return nextLsn;
+        }
+    }
+
+    /**
+     * Returns the LSN up to which the log is known to be durable.
+     * @return the durable end of the log.
+     */
+    public long flushedLsn()
+    {
+        synchronized (lock)
+        {
+            return flushedLsn;
+        }
+    }
+
+    /**
+     * Returns the number of syncs flush has performed, which with
+     * group commit can be far fewer than the number of flush calls.
+     * @return the number of log syncs so far.
+     */
+    public long syncCount()
+    {
+        synchronized (lock)
+        {
+            return syncs;
+        }
+    }
+
+    /**
+     * Returns the number of bytes of records in the log.
+     * @return the size of the log since the last checkpoint.
+     */
+    public long size()
+    {
+        synchronized (lock)
+        {
+            return nextLsn - baseLsn;
+        }
+    }
+
+    /**
+     * Makes the log durable up to at least the given LSN. If another
+     * thread is already syncing, waits for it; its sync may well cover
+     * this LSN too.
+     * @param lsn the LSN that must be durable.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void flush(long lsn) throws IOException
+    {
+        long target;
+        synchronized (lock)
+        {
+            while (flushing && flushedLsn < lsn)
+                waitForFlush();
+            if (flushedLsn >= lsn)
+                return;
+            flushing = true;
+            target = nextLsn;
+            try {
+                writeBuffer();
+            }
+            catch (IOException e) {
+                flushing = false;
+                lock.notifyAll();
+                throw e;
+            }
+        }
+
+        // The sync itself runs without the lock, so appends carry on
+        // and are picked up by the next flush.
+        boolean synced = false;
+        try {
+            channel.force(false);
+            synced = true;
+        }
+        finally {
+            synchronized (lock)
+            {
+                flushing = false;
+                if (synced)
+                {
+                    flushedLsn = Math.max(flushedLsn, target);
+                    syncs++;
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Makes every record appended so far durable.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void flush() throws IOException
+    {
+        flush(currentLsn());
+    }
+
+    /**
+     * Empties the log after a checkpoint. The caller must have written
+     * and synced every page changed by a record in the log, and must
+     * not append concurrently.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void truncate() throws IOException
+    {
+        synchronized (lock)
+        {
+            while (flushing)
+                waitForFlush();
+            buffer.reset();
+            baseLsn = nextLsn;
+            writtenLsn = nextLsn;
+            flushedLsn = nextLsn;
+            writeHeader();
+            channel.truncate(HEADER_SIZE);
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Redoes the changes recorded in the log: in log order, every
+     * allocation and deallocation is made again and every page image
+     * is written to its database. A torn record at the end of the log,
+     * left by a crash during an append, ends the pass. Images of pages
+     * the log does not show allocated, or of databases that no longer
+     * exist, are skipped and counted by skippedImages. The affected
+     * databases are synced and the log is emptied.
+     * @param files cache through which databases are opened.
+     * @return the number of page images applied.
+     * @throws IOException passed through from underlying file system.
+     */
+    public int recover(DBFileCache files) throws IOException
+    {
+        int applied = 0;
+        skipped = 0;
+        HashSet<String> touched = new HashSet<String>();
+        long position = HEADER_SIZE;
+        long end = channel.size();
+        ByteBuffer lengthBuf = ByteBuffer.allocate(4);
+        while (position + 4 <= end)
+        {
+            lengthBuf.clear();
+            DBFile.readFully(channel, lengthBuf, position);
+            int length = lengthBuf.getInt(0);
+            if (length < 4 || position + length > end)
+                break;
+            byte[] record = new byte[length];
+            DBFile.readFully(channel, ByteBuffer.wrap(record), position);
+            CRC32 crc = new CRC32();
+            crc.update(record, 0, length - 4);
+            if (ByteBuffer.wrap(record).getInt(length - 4) != (int)crc.getValue())
+                break;
+
+            DataInputStream in =
+                new DataInputStream(new ByteArrayInputStream(record, 4, length - 8));
+            byte type = in.readByte();
+            String fileName = in.readUTF();
+            if (type == PAGE_IMAGE)
+            {
+                int pageNum = in.readInt();
+                Page page = new Page(in.readInt());
+                in.readFully(page.data);
+                if (apply(files, fileName, pageNum, page))
+                {
+                    touched.add(fileName);
+                    applied++;
+                }
+                else
+                    skipped++;
+            }
+            else if (type == ALLOCATE || type == DEALLOCATE)
+            {
+                int startPage = in.readInt();
+                int runSize = in.readInt();
+                if (applyRun(files, fileName, type, startPage, runSize))
+                    touched.add(fileName);
+            }
+            position += length;
+        }
+        if (skipped > 0)
+            System.err.println("log recovery: skipped " + skipped +
+                               " page image(s) of unallocated pages");
+
+        for (String fileName : touched)
+        {
+            DBFile db = files.acquire(fileName);
+            try {
+                db.force();
+            }
+            finally {
+                files.release(db);
+            }
+        }
+        synchronized (lock)
+        {
+            nextLsn = baseLsn + position - HEADER_SIZE;
+        }
+        truncate();
+        return applied;
+    }
+
+    /**
+     * Returns the number of page images the last recover skipped
+     * because their pages were not allocated or their databases were
+     * gone. Anything but 0 means a database and its log disagree.
+     * @return the number of images not applied.
+     */
+    public int skippedImages()
+    {
+        return skipped;
+    }
+
+    /**
+     * Closes the log file. Records not yet flushed are written first.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void close() throws IOException
+    {
+        flush();
+        channel.close();
+    }
+
+    private boolean apply(DBFileCache files, String fileName, int pageNum,
+                          Page page)
+        throws IOException
+    {
+        if (!(new File(fileName)).exists())
+            return false;
+        DBFile db = files.acquire(fileName);
+        try {
+            db.writePage(pageNum, page);
+            return true;
+        }
+        catch (DBFile.PageNotAllocatedException |
+               DBFile.BadPageNumberException |
+               DBFile.BadPageSizeException e) {
+            return false;
+        }
+        finally {
+            files.release(db);
+        }
+    }
+
+    private boolean applyRun(DBFileCache files, String fileName, byte type,
+                             int startPage, int runSize)
+        throws IOException
+    {
+        if (!(new File(fileName)).exists())
+            return false;
+        DBFile db = files.acquire(fileName);
+        try {
+            if (type == ALLOCATE)
+                db.markAllocated(startPage, runSize);
+            else
+                db.deallocatePages(startPage, runSize);
+            return true;
+        }
+        catch (DBFile.BadPageNumberException |
+               DBFile.NonPositiveRunSizeException e) {
+            return false;
+        }
+        finally {
+            files.release(db);
+        }
+    }
+
+    /**
+     * Writes the in-memory tail of the log to the file. Called with
+     * the lock held.
+     */
+    private void writeBuffer() throws IOException
+    {
+        if (buffer.size() == 0)
+            return;
+        ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+        DBFile.writeFully(channel, bytes, HEADER_SIZE + writtenLsn - baseLsn);
+        writtenLsn += buffer.size();
+        buffer.reset();
+    }
+
+    private void writeHeader() throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(0, LOG_MAGIC);
+        header.putLong(4, baseLsn);
+        DBFile.writeFully(channel, header, 0);
+    }
+
+    private void waitForFlush() throws InterruptedIOException
+    {
+        try {
+            lock.wait();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Database file whose data file is mapped into memory. Page reads and
+ * writes become memory copies against the operating system's page
+ * cache, so a database that fits in memory is served without system
+ * calls. Changes reach the disk whenever the operating system writes
+ * them back; call force() at points that must be durable.
+ *
+ * The mapping is reserved ahead of the data, so the data file may be
+ * longer than its pages, with a sparse tail. The space map is not
+ * mapped: its length gives the number of pages, so it must not be
+ * extended ahead, and it is only written back in batches anyway.
+ */
+public class MappedDBFile extends DBFile
+{
+    private MappedRegion data;
+
+    /**
+     * Creates a database with the specified number of pages and maps
+     * it.
+     * @param name name to be given to database.
+     * @param numPages maximum number of pages in database.
+     * @throws IOException passed through from underlying filesystem.
+     */
+    public MappedDBFile(String name, int numPages) throws IOException
+    {
+        super(name, numPages);
+        mapRegions();
+    }
+
+    /**
+     * Creates a database with pages of the given size and maps it.
+     * @param name name to be given to database.
+     * @param numPages initial number of pages in database.
+     * @param pageSize size of each page in bytes.
+     * @throws IOException passed through from underlying filesystem.
+     */
+    public MappedDBFile(String name, int numPages, int pageSize)
+        throws IOException
+    {
+        super(name, numPages, pageSize);
+        mapRegions();
+    }
+
+    /**
+     * Opens and maps the database with the given name.
+     * @param name name of the database.
+     * @throws IOException passed through from underlying file system.
+     */
+    public MappedDBFile(String name) throws IOException
+    {
+        super(name);
+        mapRegions();
+    }
+
+    private void mapRegions() throws IOException
+    {
+        if (dataChannel == null)
+            return;
+        data = new MappedRegion(dataChannel, MappedRegion.CHUNK_SIZE);
+    }
+
+    /**
+     * Returns a view of a page directly over the mapping. Changes made
+     * through the view are changes to the file, so this is only meant
+     * for read-only access by callers that want to avoid the copy.
+     * @param pageNum the page number to be viewed.
+     * @return a buffer of one page sharing memory with the file.
+     * @throws BadPageNumberException if pageNum is not in the file.
+     */
+    public ByteBuffer pageSlice(int pageNum)
+    {
+        if (pageNum < 0 || pageNum > getNumPages()-1)
+            throw new BadPageNumberException();
+        return data.slice((long)pageNum * getPageSize(), getPageSize());
+    }
+
+    /**
+     * Forces modified parts of the mapping out to the storage device.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void force() throws IOException
+    {
+        if (data == null)
+            return;
+        syncMap();
+        data.force();
+        mapChannel.force(false);
+    }
+
+    /**
+     * Extends the files. Mapping extends the data file to the end of
+     * the reservation, so the data file needs no write of its own, and
+     * is mapped again only if the new space is past the reservation.
+     */
+    protected void extend(long dataLength, long mapLength) throws IOException
+    {
+        data.extendTo(dataLength);
+        writeFully(mapChannel, ByteBuffer.allocate(1), mapLength - 1);
+    }
+
+    protected void readData(ByteBuffer buf, long position) throws IOException
+    {
+        data.read(buf, position);
+    }
+
+    protected void writeData(ByteBuffer buf, long position) throws IOException
+    {
+        data.write(buf, position);
+    }
+
+    protected void readDataRun(ByteBuffer[] bufs, long position)
+        throws IOException
+    {
+        for (int i=0; i < bufs.length; i++)
+        {
+            int len = bufs[i].remaining();
+            data.read(bufs[i], position);
+            position += len;
+        }
+    }
+
+    protected void writeDataRun(ByteBuffer[] bufs, long position)
+        throws IOException
+    {
+        for (int i=0; i < bufs.length; i++)
+        {
+            int len = bufs[i].remaining();
+            data.write(bufs[i], position);
+            position += len;
+        }
+    }
+}
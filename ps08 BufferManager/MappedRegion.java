@@ -0,0 +1,188 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A file mapped into memory as a sequence of fixed-size chunks. A
+ * single MappedByteBuffer cannot exceed 2 GB, so larger files are
+ * covered by several mappings; transfers that straddle a chunk
+ * boundary are split.
+ *
+ * The mapping reaches past the end of the file, which mapping extends
+ * sparsely: each time the file outgrows it, the reservation grows by
+ * as much again as it has, up to a chunk at a time, so a file growing
+ * in small extents is mapped again only a logarithmic number of times.
+ * Java offers no explicit unmap; the tail mapping given up when the
+ * reservation grows is released when it is garbage collected.
+ *
+ * Transfers run without a lock while the file grows: the chunk array
+ * is replaced, never changed, and published through a volatile field
+ * before the new length. A transfer past the mapped length maps more
+ * if the file has since been extended through another channel.
+ */
+class MappedRegion
+{
+    /**
+     * Default chunk size. A multiple of every supported page size, so
+     * a page never straddles two chunks of the data file.
+     */
+    public static final long CHUNK_SIZE = 1L << 30;
+
+    /**
+     * Smallest step by which the reservation grows, in bytes.
+     */
+    public static final long MIN_RESERVE = 8L << 20;
+
+    private FileChannel channel;
+    private long chunkSize;
+    private volatile MappedByteBuffer[] chunks;
+    private volatile long length;
+    private long reserved;
+
+    /**
+     * Maps the whole of the channel's file.
+     * @param channel an open read-write channel.
+     * @param chunkSize size of each mapping in bytes.
+     * @throws IOException passed through from underlying file system.
+     */
+    public MappedRegion(FileChannel channel, long chunkSize) throws IOException
+    {
+        this.channel = channel;
+        this.chunkSize = chunkSize;
+        chunks = new MappedByteBuffer[0];
+        reserved = 0;
+        long size = channel.size();
+        map(size);
+        length = size;
+    }
+
+    /**
+     * Returns the number of bytes that may be transferred.
+     * @return the mapped length.
+     */
+    public long length()
+    {
+        return length;
+    }
+
+    /**
+     * Makes the first bytes of the file, up to the given length,
+     * available for transfers, mapping more of the file if the
+     * reservation does not reach that far.
+     * @param newLength the new length.
+     * @throws IOException passed through from underlying file system.
+     */
+    public synchronized void extendTo(long newLength) throws IOException
+    {
+        if (newLength > reserved)
+        {
+            long step = Math.min(Math.max(reserved, MIN_RESERVE), chunkSize);
+            map(Math.max(newLength, reserved + step));
+        }
+        length = Math.max(length, newLength);
+    }
+
+    /**
+     * Maps the file up to the given size, extending it if it is
+     * shorter. Chunks that are already full are kept; only the tail is
+     * mapped again.
+     */
+    private void map(long size) throws IOException
+    {
+        MappedByteBuffer[] old = chunks;
+        int count = (int)((size + chunkSize - 1) / chunkSize);
+        MappedByteBuffer[] grown = new MappedByteBuffer[count];
+        for (int i=0; i < count; i++)
+        {
+            long start = i * chunkSize;
+            long len = Math.min(chunkSize, size - start);
+            if (i < old.length && old[i].capacity() == len)
+                grown[i] = old[i];
+            else
+                grown[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                                       start, len);
+        }
+        chunks = grown;
+        reserved = size;
+    }
+
+    /**
+     * Extends the mapped length to cover a transfer that runs past it.
+     * @param end one past the last byte of the transfer.
+     * @throws EOFException if the file does not reach that far.
+     */
+    private void catchUp(long end) throws IOException
+    {
+        if (end > channel.size())
+            throw new EOFException();
+        extendTo(end);
+    }
+
+    /**
+     * Copies mapped bytes into the buffer.
+     * @param buf the buffer to be filled.
+     * @param position byte offset in the file.
+     * @throws EOFException if the read runs past the end of the file.
+     */
+    public void read(ByteBuffer buf, long position) throws IOException
+    {
+        if (position + buf.remaining() > length)
+            catchUp(position + buf.remaining());
+        MappedByteBuffer[] chunks = this.chunks;
+        while (buf.hasRemaining())
+        {
+            MappedByteBuffer chunk = chunks[(int)(position / chunkSize)];
+            int offset = (int)(position % chunkSize);
+            int n = Math.min(buf.remaining(), chunk.capacity() - offset);
+            buf.put(chunk.slice(offset, n));
+            position += n;
+        }
+    }
+
+    /**
+     * Copies the buffer into the mapping.
+     * @param buf the bytes to be written.
+     * @param position byte offset in the file.
+     * @throws EOFException if the write runs past the end of the file.
+     */
+    public void write(ByteBuffer buf, long position) throws IOException
+    {
+        if (position + buf.remaining() > length)
+            catchUp(position + buf.remaining());
+        MappedByteBuffer[] chunks = this.chunks;
+        while (buf.hasRemaining())
+        {
+            MappedByteBuffer chunk = chunks[(int)(position / chunkSize)];
+            int offset = (int)(position % chunkSize);
+            int n = Math.min(buf.remaining(), chunk.capacity() - offset);
+            ByteBuffer part = buf.slice(buf.position(), n);
+            chunk.put(offset, part, 0, n);
+            buf.position(buf.position() + n);
+            position += n;
+        }
+    }
+
+    /**
+     * Returns a view of mapped bytes without copying them. The range
+     * must lie within a single chunk.
+     * @param position byte offset in the file.
+     * @param len number of bytes in the view.
+     * @return a buffer sharing memory with the mapping.
+     */
+    public ByteBuffer slice(long position, int len)
+    {
+        MappedByteBuffer chunk = chunks[(int)(position / chunkSize)];
+        return chunk.slice((int)(position % chunkSize), len);
+    }
+
+    /**
+     * Writes all modified chunks back to the storage device.
+     */
+    public void force()
+    {
+        MappedByteBuffer[] chunks = this.chunks;
+        for (int i=0; i < chunks.length; i++)
+            chunks[i].force();
+    }
+}
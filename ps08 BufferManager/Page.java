@@ -1,22 +1,86 @@
+import java.nio.ByteBuffer;
+
 /**
- * Class to hold a page's worth of data in memory.
+ * Class to hold a page's worth of data in memory. The data is either
+ * a byte array on the heap or, for pages that are views of a buffer
+ * pool frame in a PageArena, memory outside the heap.
  * @author Dave Musicant, with considerable material reused from the
  * UW-Madison Minibase project
  */
 public class Page
 {
     /**
-     * Size of a page in bytes.
+     * Default size of a page in bytes.
      */
     public static final int PAGESIZE = 1024;
 
     /**
-     * Array to actually contain page data.
+     * Largest page size a database can be created with.
+     */
+    public static final int MAX_PAGESIZE = 32 * 1024;
+
+    /**
+     * Array to actually contain page data, or null if the page is a
+     * view of memory outside the heap; buffer() works for both.
      */
     public byte[] data;
 
+    private ByteBuffer memory;
+
     public Page()
     {
-        data = new byte[PAGESIZE];
+        this(PAGESIZE);
+    }
+
+    /**
+     * Creates a page of the given size, which should match the page
+     * size of the database it is read from or written to.
+     * @param size size of the page in bytes.
+     */
+    public Page(int size)
+    {
+        data = new byte[size];
+    }
+
+    /**
+     * Creates a page that is a view of the given memory, which holds
+     * its data from position 0 to the capacity.
+     * @param memory the page's memory, usually a direct buffer.
+     */
+    public Page(ByteBuffer memory)
+    {
+        this.memory = memory;
+    }
+
+    /**
+     * Returns the size of the page in bytes.
+     * @return the page size.
+     */
+    public int size()
+    {
+        return data != null ? data.length : memory.capacity();
+    }
+
+    /**
+     * Returns a new buffer over the page's data, from position 0 to
+     * the page size. The buffer's position and limit are the
+     * caller's own, so threads may each take one.
+     * @return a buffer sharing the page's data.
+     */
+    public ByteBuffer buffer()
+    {
+        return data != null ? ByteBuffer.wrap(data) : memory.duplicate();
+    }
+
+    /**
+     * Whether a database may use pages of the given size: a power of
+     * two from the default size up to MAX_PAGESIZE.
+     * @param size a page size in bytes.
+     * @return true if the size is supported.
+     */
+    public static boolean isValidSize(int size)
+    {
+        return size >= PAGESIZE && size <= MAX_PAGESIZE
+            && (size & (size - 1)) == 0;
     }
 }
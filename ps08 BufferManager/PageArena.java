@@ -0,0 +1,141 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Memory for the frames of a buffer pool, allocated outside the Java
+ * heap when the pool is created or grown. Each frame is a fixed slice
+ * of the arena, and the page held in a frame is a Page that views the
+ * start of its slice, so loading a page allocates nothing and reads go
+ * straight from the file into the frame. The garbage collector never
+ * sees page data, however large the pool.
+ *
+ * A direct buffer holds at most 2GB, so larger arenas are made of
+ * several chunks. An arena grows by adding chunks and shrinks by
+ * dropping the chunks past its new end, so the frames that remain
+ * never move and the pages viewing them stay valid. Chunks are
+ * aligned to ALIGNMENT bytes and frames are powers of two, so frames
+ * of at least that size suit O_DIRECT transfers. Direct memory
+ * counts against -XX:MaxDirectMemorySize, which must be raised for
+ * pools bigger than the heap.
+ */
+public class PageArena
+{
+    /**
+     * Alignment of each chunk of the arena, in bytes.
+     */
+    public static final int ALIGNMENT = 4096;
+
+    // Largest chunk of the arena, in bytes.
+    private static final int CHUNK_SIZE = 1 << 30;
+
+    private ByteBuffer[] chunks;
+    private int[] chunkStart; // first frame of each chunk, ascending
+    private int frameSize;
+    private int framesPerChunk;
+    private Page[] views;
+
+    /**
+     * Allocates an arena.
+     * @param numFrames the number of frames.
+     * @param frameSize the size of each frame in bytes, a valid page
+     * size; pages up to this size fit in a frame.
+     * @throws IllegalArgumentException if the frame size is not a
+     * valid page size.
+     */
+    public PageArena(int numFrames, int frameSize)
+    {
+        if (!Page.isValidSize(frameSize))
+            throw new IllegalArgumentException("bad frame size " + frameSize);
+        this.frameSize = frameSize;
+        framesPerChunk = CHUNK_SIZE / frameSize;
+        chunks = new ByteBuffer[0];
+        chunkStart = new int[0];
+        views = new Page[0];
+        resize(numFrames);
+    }
+
+    /**
+     * Changes the number of frames. New frames are allocated in chunks
+     * of their own; frames past the new end are given up, and with
+     * them every chunk that holds no remaining frame. Only the frames
+     * given up may be in use meanwhile.
+     * @param numFrames the new number of frames.
+     */
+    public void resize(int numFrames)
+    {
+        int old = views.length;
+        int numChunks = chunks.length;
+        if (numFrames > old)
+        {
+            int added = (numFrames - old + framesPerChunk - 1) / framesPerChunk;
+            chunks = Arrays.copyOf(chunks, numChunks + added);
+            chunkStart = Arrays.copyOf(chunkStart, numChunks + added);
+            for (int i=0; i < added; i++)
+            {
+                int start = old + i * framesPerChunk;
+                int frames = Math.min(framesPerChunk, numFrames - start);
+                chunks[numChunks + i] =
+                    DirectDBFile.allocateAligned(frames * frameSize, ALIGNMENT);
+                chunkStart[numChunks + i] = start;
+            }
+        }
+        else
+        {
+            while (numChunks > 0 && chunkStart[numChunks - 1] >= numFrames)
+                numChunks--;
+            chunks = Arrays.copyOf(chunks, numChunks);
+            chunkStart = Arrays.copyOf(chunkStart, numChunks);
+        }
+        views = Arrays.copyOf(views, numFrames);
+    }
+
+    /**
+     * Returns the size of each frame.
+     * @return the frame size in bytes.
+     */
+    public int getFrameSize()
+    {
+        return frameSize;
+    }
+
+    /**
+     * Returns the number of bytes the arena holds, including any part
+     * of its last chunk past its last frame.
+     * @return the capacity of the arena.
+     */
+    public long capacity()
+    {
+        long bytes = 0;
+        for (ByteBuffer chunk : chunks)
+            bytes += chunk.capacity();
+        return bytes;
+    }
+
+    /**
+     * Returns a page viewing the first bytes of a frame. The view is
+     * kept and handed out again while pages of the same size come and
+     * go in the frame. Only the thread that has claimed the frame may
+     * call this.
+     * @param frame the frame index.
+     * @param size the page size.
+     * @return the page.
+     * @throws DBFile.BadPageSizeException if pages of this size do not
+     * fit in a frame.
+     */
+    public Page page(int frame, int size)
+    {
+        if (size > frameSize)
+            throw new DBFile.BadPageSizeException();
+        Page view = views[frame];
+        if (view == null || view.size() != size)
+        {
+            int chunk = Arrays.binarySearch(chunkStart, frame);
+            if (chunk < 0)
+                chunk = -chunk - 2; //the last chunk starting before it
+            int offset = (frame - chunkStart[chunk]) * frameSize;
+            view = new Page(chunks[chunk].slice(offset, size));
+            views[frame] = view;
+        }
+        return view;
+    }
+}
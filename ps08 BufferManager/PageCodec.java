@@ -0,0 +1,254 @@
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression codec for page images stored by CompressedDBFile.
+ */
+public interface PageCodec
+{
+    public static class CorruptPageException extends RuntimeException {};
+
+    /**
+     * Codec id of the LZ codec, as recorded in a compressed database.
+     */
+    public static final int LZ_ID = 1;
+
+    /**
+     * Codec id of the Deflate codec.
+     */
+    public static final int DEFLATE_ID = 2;
+
+    /**
+     * Returns the id recorded in a compressed database for this codec.
+     * @return the codec id.
+     */
+    int id();
+
+    /**
+     * Returns a short name for reports.
+     * @return the codec name.
+     */
+    String name();
+
+    /**
+     * Compresses a page image.
+     * @param src the page image.
+     * @param dst buffer for the compressed bytes.
+     * @return the number of bytes written to dst, or -1 if they would
+     * not fit, in which case the page is not worth compressing.
+     */
+    int compress(byte[] src, byte[] dst);
+
+    /**
+     * Restores a page image.
+     * @param src the compressed bytes.
+     * @param len number of valid bytes in src.
+     * @param dst the page image to fill completely.
+     * @throws CorruptPageException if src is not valid output of
+     * compress for a page of dst's size.
+     */
+    void decompress(byte[] src, int len, byte[] dst);
+
+    /**
+     * Returns a new codec for an id recorded in a compressed database.
+     * @param id the codec id.
+     * @return the codec.
+     * @throws CorruptPageException if the id is unknown.
+     */
+    public static PageCodec forId(int id)
+    {
+        switch (id)
+        {
+        case LZ_ID:
+            return new LZ();
+        case DEFLATE_ID:
+            return new Deflate();
+        default:
+            throw new CorruptPageException();
+        }
+    }
+
+    /**
+     * Byte-oriented LZ77 codec in the style of LZF: fast, pure Java,
+     * and good at the long runs of zeros in sparsely filled pages.
+     * The output is a sequence of tokens. A control byte below 0x80
+     * is followed by that many plus one literal bytes. A control byte
+     * of 0x80 or more is a match of (ctrl &amp; 0x7f) + 4 bytes, copied
+     * from the distance given by the next two bytes.
+     */
+    public static class LZ implements PageCodec
+    {
+        private static final int MIN_MATCH = 4;
+        private static final int MAX_MATCH = 0x7f + MIN_MATCH;
+        private static final int MAX_LITERALS = 0x80;
+        private static final int MAX_DISTANCE = 0xffff;
+        private static final int HASH_BITS = 13;
+
+        private int[] head = new int[1 << HASH_BITS];
+
+        public int id()
+        {
+            return LZ_ID;
+        }
+
+        public String name()
+        {
+            return "lz";
+        }
+
+        public synchronized int compress(byte[] src, byte[] dst)
+        {
+            int n = src.length;
+            // A table about the size of the page is plenty, and much
+            // cheaper to clear for small pages.
+            int bits = Math.max(8, Math.min(HASH_BITS,
+                                            32 - Integer.numberOfLeadingZeros(n)));
+            Arrays.fill(head, 0, 1 << bits, -1);
+            int ip = 0;
+            int op = 0;
+            int literals = 0;
+            while (ip + MIN_MATCH <= n)
+            {
+                int h = hash(src, ip, bits);
+                int candidate = head[h];
+                head[h] = ip;
+                if (candidate >= 0 && ip - candidate <= MAX_DISTANCE
+                    && src[candidate] == src[ip]
+                    && src[candidate+1] == src[ip+1]
+                    && src[candidate+2] == src[ip+2]
+                    && src[candidate+3] == src[ip+3])
+                {
+                    int len = MIN_MATCH;
+                    while (ip + len < n && len < MAX_MATCH
+                           && src[candidate+len] == src[ip+len])
+                        len++;
+                    op = literals(src, ip - literals, literals, dst, op);
+                    if (op < 0 || op + 3 > dst.length)
+                        return -1;
+                    int distance = ip - candidate;
+                    dst[op++] = (byte)(0x80 | (len - MIN_MATCH));
+                    dst[op++] = (byte)(distance >>> 8);
+                    dst[op++] = (byte)distance;
+                    ip += len;
+                    literals = 0;
+                }
+                else
+                {
+                    ip++;
+                    literals++;
+                }
+            }
+            literals += n - ip;
+            return literals(src, n - literals, literals, dst, op);
+        }
+
+        public void decompress(byte[] src, int len, byte[] dst)
+        {
+            int ip = 0;
+            int op = 0;
+            try {
+                while (ip < len)
+                {
+                    int ctrl = src[ip++] & 0xff;
+                    if (ctrl < 0x80)
+                    {
+                        int run = ctrl + 1;
+                        System.arraycopy(src, ip, dst, op, run);
+                        ip += run;
+                        op += run;
+                    }
+                    else
+                    {
+                        int match = (ctrl & 0x7f) + MIN_MATCH;
+                        int distance = ((src[ip] & 0xff) << 8) | (src[ip+1] & 0xff);
+                        ip += 2;
+                        int ref = op - distance;
+                        if (ref < 0)
+                            throw new CorruptPageException();
+                        // Byte by byte: the match may overlap itself.
+                        for (int i=0; i < match; i++)
+                            dst[op++] = dst[ref++];
+                    }
+                }
+            }
+            catch (IndexOutOfBoundsException e) {
+                throw new CorruptPageException();
+            }
+            if (op != dst.length)
+                throw new CorruptPageException();
+        }
+
+        /**
+         * Emits a run of literals as as many tokens as it takes.
+         * @return the new output position, or -1 if dst is full.
+         */
+        private static int literals(byte[] src, int start, int count,
+                                    byte[] dst, int op)
+        {
+            while (count > 0)
+            {
+                int run = Math.min(count, MAX_LITERALS);
+                if (op + 1 + run > dst.length)
+                    return -1;
+                dst[op++] = (byte)(run - 1);
+                System.arraycopy(src, start, dst, op, run);
+                op += run;
+                start += run;
+                count -= run;
+            }
+            return op;
+        }
+
+        private static int hash(byte[] b, int i, int bits)
+        {
+            int v = (b[i] & 0xff) | (b[i+1] & 0xff) << 8
+                | (b[i+2] & 0xff) << 16 | (b[i+3] & 0xff) << 24;
+            return (v * 0x9e3779b1) >>> (32 - bits);
+        }
+    }
+
+
+    /**
+     * java.util.zip Deflate at its fastest level. Compresses better
+     * than LZ but costs noticeably more CPU per page.
+     */
+    public static class Deflate implements PageCodec
+    {
+        private Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        private Inflater inflater = new Inflater(true);
+
+        public int id()
+        {
+            return DEFLATE_ID;
+        }
+
+        public String name()
+        {
+            return "deflate";
+        }
+
+        public synchronized int compress(byte[] src, byte[] dst)
+        {
+            deflater.reset();
+            deflater.setInput(src);
+            deflater.finish();
+            int len = deflater.deflate(dst);
+            return deflater.finished() ? len : -1;
+        }
+
+        public synchronized void decompress(byte[] src, int len, byte[] dst)
+        {
+            inflater.reset();
+            inflater.setInput(src, 0, len);
+            try {
+                if (inflater.inflate(dst) != dst.length)
+                    throw new CorruptPageException();
+            }
+            catch (DataFormatException e) {
+                throw new CorruptPageException();
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+import java.io.IOException;
+
+/**
+ * A pin on a page in a buffer pool, as handed out by
+ * BufferManager.pinPage(int, String). The handle knows the frame
+ * holding the page, so marking the page dirty, latching it and
+ * unpinning it take no lookup. Closing the handle, typically at the
+ * end of a try-with-resources block, records the change if the page
+ * was marked dirty, lets go of any latch taken through the handle and
+ * unpins the page.
+ *
+ * Handles are recycled: a handle closed by the thread that pinned it
+ * goes back to a small pool kept by that thread, and is handed out
+ * again by its next pin, so that pinning through handles allocates
+ * nothing once the pool has filled. A handle belongs to one thread at
+ * a time and must not be used once closed. Using a closed handle
+ * before it is handed out again throws StaleHandleException. So does
+ * using a handle whose page has left its frame, which happens if the
+ * page is unpinned some other way, except through page and pageId:
+ * those only check the handle itself, to stay cheap, and the frame is
+ * checked again when the handle is closed.
+ */
+public final class PageHandle implements AutoCloseable
+{
+    public static class StaleHandleException extends RuntimeException {};
+
+    // Latch taken through the handle.
+    static final int UNLATCHED = 0;
+    static final int SHARED = 1;
+    static final int EXCLUSIVE = 2;
+
+    final BufferManager owner;
+    final BufferManager.HandlePool pool; // of the thread that made it
+    int frame;
+    int generation; // of the frame when the page was pinned
+    int pageNum;
+    Page page;
+    boolean dirty;
+    int latch;
+    boolean open;
+    PageHandle next; // in the pool of closed handles
+
+    PageHandle(BufferManager owner, BufferManager.HandlePool pool)
+    {
+        this.owner = owner;
+        this.pool = pool;
+    }
+
+    /**
+     * Returns the pinned page.
+     * @return the page in the buffer pool.
+     * @throws StaleHandleException if the handle has been closed.
+     */
+    public Page page()
+    {
+        if (!open)
+            throw new StaleHandleException();
+        return page;
+    }
+
+    /**
+     * Returns the page id of the pinned page.
+     * @return the page id.
+     * @throws StaleHandleException if the handle has been closed.
+     */
+    public int pageId()
+    {
+        if (!open)
+            throw new StaleHandleException();
+        return pageNum;
+    }
+
+    /**
+     * Notes that the page has been changed, so that closing the
+     * handle records the change.
+     * @throws StaleHandleException if the handle has been closed.
+     */
+    public void markDirty()
+    {
+        owner.checkHandle(this);
+        dirty = true;
+    }
+
+    /**
+     * Latches the page shared, as BufferManager.pinShared does, until
+     * unlatch or close.
+     * @throws StaleHandleException if the handle has been closed.
+     * @throws IllegalStateException if the page is already latched
+     * through this handle.
+     */
+    public void latchShared()
+    {
+        owner.latch(this, SHARED);
+    }
+
+    /**
+     * Latches the page exclusive, as BufferManager.pinExclusive does,
+     * until unlatch or close.
+     * @throws StaleHandleException if the handle has been closed.
+     * @throws IllegalStateException if the page is already latched
+     * through this handle.
+     */
+    public void latchExclusive()
+    {
+        owner.latch(this, EXCLUSIVE);
+    }
+
+    /**
+     * Lets go of the latch taken through this handle.
+     * @throws StaleHandleException if the handle has been closed.
+     * @throws BufferManager.PageNotLatchedException if no latch was
+     * taken through this handle.
+     */
+    public void unlatch()
+    {
+        owner.unlatch(this);
+    }
+
+    /**
+     * Starts an optimistic read of the page, as
+     * BufferManager.tryOptimisticRead does.
+     * @return a stamp for validate, or 0 if the page is latched
+     * exclusive.
+     * @throws StaleHandleException if the handle has been closed.
+     */
+    public long tryOptimisticRead()
+    {
+        return owner.tryOptimisticRead(this);
+    }
+
+    /**
+     * Tells whether the page has not been latched exclusive since an
+     * optimistic read was started.
+     * @param stamp the stamp returned by tryOptimisticRead.
+     * @return true if what was read since is consistent.
+     */
+    public boolean validate(long stamp)
+    {
+        return owner.validate(stamp);
+    }
+
+    /**
+     * Unpins the page, recording the change if it was marked dirty
+     * and letting go of any latch taken through the handle, and gives
+     * the handle back for reuse.
+     * @throws StaleHandleException if the handle has been closed.
+     * @throws IOException passed through from underlying file system.
+     */
+    public void close() throws IOException
+    {
+        owner.unpin(this);
+    }
+}
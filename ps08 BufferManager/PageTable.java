@@ -0,0 +1,164 @@
+import java.util.Arrays;
+
+/**
+ * Map from a (file id, page number) pair, packed into a long, to the
+ * index of the buffer pool frame holding that page. Keys and frames
+ * live in parallel primitive arrays with open addressing and linear
+ * probing, so lookups neither box nor allocate. The table is kept at
+ * most half full, doubling when an insertion would fill it further.
+ *
+ * The table is not thread-safe; BufferManager splits its page table
+ * into several of these, each guarded by its own lock.
+ */
+class PageTable
+{
+    private static final int EMPTY = -1;
+
+    private long[] keys;
+    private int[] frames;
+    private int mask;
+    private int size;
+
+    /**
+     * Creates a table sized for the given number of entries.
+     * @param expectedEntries the number of entries the table should
+     * hold without growing.
+     */
+    public PageTable(int expectedEntries)
+    {
+        allocate(Integer.highestOneBit(Math.max(2, expectedEntries) * 2 - 1) * 2);
+    }
+
+    private void allocate(int capacity)
+    {
+        keys = new long[capacity];
+        frames = new int[capacity];
+        Arrays.fill(frames, EMPTY);
+        mask = capacity - 1;
+    }
+
+    /**
+     * Packs a file id and a page number into a key.
+     * @param fileId the interned id of the database.
+     * @param pageNum the page number.
+     * @return the key.
+     */
+    public static long key(int fileId, int pageNum)
+    {
+        return ((long)fileId << 32) | (pageNum & 0xffffffffL);
+    }
+
+    /**
+     * Returns the frame holding a page.
+     * @param key the packed key of the page.
+     * @return the frame index, or -1 if the page is not in the table.
+     */
+    public int get(long key)
+    {
+        int slot = slot(key);
+        while (frames[slot] != EMPTY)
+        {
+            if (keys[slot] == key)
+                return frames[slot];
+            slot = (slot + 1) & mask;
+        }
+        return EMPTY;
+    }
+
+    /**
+     * Records the frame holding a page, replacing any earlier entry
+     * for the same page.
+     * @param key the packed key of the page.
+     * @param frame the frame index.
+     */
+    public void put(long key, int frame)
+    {
+        int slot = slot(key);
+        while (frames[slot] != EMPTY)
+        {
+            if (keys[slot] == key)
+            {
+                frames[slot] = frame;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if ((size + 1) * 2 > frames.length)
+        {
+            grow();
+            put(key, frame);
+            return;
+        }
+        keys[slot] = key;
+        frames[slot] = frame;
+        size++;
+    }
+
+    private void grow()
+    {
+        long[] oldKeys = keys;
+        int[] oldFrames = frames;
+        allocate(oldFrames.length * 2);
+        size = 0;
+        for (int i=0; i < oldFrames.length; i++)
+            if (oldFrames[i] != EMPTY)
+                put(oldKeys[i], oldFrames[i]);
+    }
+
+    /**
+     * Removes the entry for a page, if there is one. Later entries of
+     * the same probe run are shifted back into the gap, so lookups
+     * never need tombstones.
+     * @param key the packed key of the page.
+     */
+    public void remove(long key)
+    {
+        int slot = slot(key);
+        while (frames[slot] != EMPTY)
+        {
+            if (keys[slot] == key)
+            {
+                shiftBack(slot);
+                size--;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Returns the number of pages in the table.
+     * @return the number of entries.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    private void shiftBack(int gap)
+    {
+        int slot = gap;
+        while (true)
+        {
+            slot = (slot + 1) & mask;
+            if (frames[slot] == EMPTY)
+                break;
+            // An entry may fill the gap only if its home slot is not
+            // between the gap and where it sits now.
+            int home = slot(keys[slot]);
+            if (((slot - home) & mask) >= ((slot - gap) & mask))
+            {
+                keys[gap] = keys[slot];
+                frames[gap] = frames[slot];
+                gap = slot;
+            }
+        }
+        frames[gap] = EMPTY;
+    }
+
+    private int slot(long key)
+    {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int)(h >>> 32) & mask;
+    }
+}
@@ -0,0 +1,780 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses which frame of the buffer pool to replace on a miss.
+ * BufferManager tells the policy about every page it loads, pins,
+ * unpins and frees, and asks it for a victim when no frame is empty.
+ * A policy instance serves a single buffer manager, which sizes it
+ * with init before any other call.
+ *
+ * Every method may be called by many threads at once. Pages are
+ * identified by their page table key; frames by their index.
+ */
+public interface ReplacementPolicy
+{
+    /**
+     * Access to the state of the frames a policy chooses from.
+     */
+    public static interface Frames
+    {
+        /**
+         * Tells whether a frame is pinned, or busy being loaded or
+         * evicted, so cannot be replaced now.
+         * @param frame the frame index.
+         * @return true if the frame is not a candidate.
+         */
+        boolean isPinned(int frame);
+
+        /**
+         * Takes an unpinned frame for replacement. Another thread may
+         * have pinned or claimed it since it was looked at.
+         * @param frame the frame index.
+         * @return true if the frame now belongs to the caller.
+         */
+        boolean claim(int frame);
+    }
+
+    /**
+     * Page table key of a frame that holds no page.
+     */
+    public static final long NO_PAGE = -1L;
+
+    /**
+     * Sizes the policy for a buffer pool and forgets any history.
+     * @param numFrames the number of frames in the pool.
+     */
+    void init(int numFrames);
+
+    /**
+     * Changes the number of frames in the pool, keeping what the
+     * policy knows of the frames that remain. Before the pool shrinks,
+     * every frame past its new end is reported removed. No victim is
+     * chosen meanwhile, but hits and unpins go on.
+     * @param numFrames the new number of frames.
+     */
+    void resize(int numFrames);
+
+    /**
+     * Returns a short name for reports.
+     * @return the policy name.
+     */
+    String name();
+
+    /**
+     * Records that the page in a frame was pinned by a hit.
+     * @param frame the frame index.
+     */
+    void accessed(int frame);
+
+    /**
+     * Records that a frame was given a new page after a miss, or ahead
+     * of use by the prefetcher. Any page the frame held before has been
+     * evicted, unless it was loaded ahead and never pinned, in which
+     * case the frame was reported removed first. The first pin of a
+     * page loaded ahead is not reported to accessed, since loading it
+     * stood for that access.
+     * @param frame the frame index.
+     * @param key the page table key of the new page.
+     */
+    void loaded(int frame, long key);
+
+    /**
+     * Records that the caller's last pin on a frame was released.
+     * @param frame the frame index.
+     */
+    void unpinned(int frame);
+
+    /**
+     * Records that a frame's page was freed and the frame is empty.
+     * @param frame the frame index.
+     */
+    void removed(int frame);
+
+    /**
+     * Chooses a frame to replace and claims it.
+     * @param key the page table key of the page that missed.
+     * @param frames the state of the frames.
+     * @return the claimed frame, or -1 if no frame could be claimed.
+     */
+    int victim(long key, Frames frames);
+
+    /**
+     * Lists the frames that would be replaced next, soonest first, so
+     * that their pages can be written back before they are needed.
+     * Pinned frames may be listed.
+     * @param frames array to fill, as far as the policy can.
+     * @return the number of frames listed.
+     */
+    int upcoming(int[] frames);
+
+
+    /**
+     * Clock, or second chance. Each frame has a reference bit, set
+     * when the page is loaded and when its last pin is released; the
+     * hand clears set bits as it passes and takes the first unpinned
+     * frame whose bit is already clear. Hits take no lock, which makes
+     * this the cheapest policy, but a large scan pushes everything else
+     * out just as it would under LRU.
+     */
+    public static class Clock implements ReplacementPolicy
+    {
+        // The bits are hints, so races between threads setting and
+        // clearing them only affect which frame is chosen, and a bit
+        // set in the array a resize has just replaced may be lost.
+        private volatile boolean[] referenced;
+        private AtomicInteger hand;
+
+        public void init(int numFrames)
+        {
+            referenced = new boolean[numFrames];
+            hand = new AtomicInteger(-1);
+        }
+
+        public void resize(int numFrames)
+        {
+            referenced = Arrays.copyOf(referenced, numFrames);
+        }
+
+        public String name()
+        {
+            return "clock";
+        }
+
+        public void accessed(int frame)
+        {
+        }
+
+        public void loaded(int frame, long key)
+        {
+            referenced[frame] = true;
+        }
+
+        public void unpinned(int frame)
+        {
+            referenced[frame] = true;
+        }
+
+        public void removed(int frame)
+        {
+            referenced[frame] = false;
+        }
+
+        public int victim(long key, Frames frames)
+        {
+            for (int i = 0; i <= 2 * referenced.length; i++) {
+                int frame = advance();
+                if (frames.isPinned(frame))
+                    continue;
+                if (referenced[frame]) {
+                    referenced[frame] = false;
+                    continue;
+                }
+                if (frames.claim(frame))
+                    return frame;
+            }
+            return -1;
+        }
+
+        public int upcoming(int[] frames)
+        {
+            boolean[] bits = referenced;
+            int count = 0;
+            int frame = hand.get();
+            for (int i = 0; i < bits.length && count < frames.length; i++) {
+                frame = frame + 1 >= bits.length ? 0 : frame + 1;
+                if (!bits[frame])
+                    frames[count++] = frame;
+            }
+            return count;
+        }
+
+        /**
+         * Moves the hand on by one frame with compare-and-set.
+         * @return the frame the hand now points at.
+         */
+        private int advance()
+        {
+            while (true) {
+                int current = hand.get();
+                int next = current + 1 >= referenced.length ? 0 : current + 1;
+                if (hand.compareAndSet(current, next))
+                    return next;
+            }
+        }
+    }
+
+
+    /**
+     * Least recently used: replaces the unpinned frame whose page was
+     * pinned longest ago. Every hit moves its frame to the front of a
+     * list under the policy's lock.
+     */
+    public static class LRU implements ReplacementPolicy
+    {
+        private FrameLists lists;
+
+        public synchronized void init(int numFrames)
+        {
+            lists = new FrameLists(numFrames, 1);
+        }
+
+        public synchronized void resize(int numFrames)
+        {
+            lists.resize(numFrames);
+        }
+
+        public String name()
+        {
+            return "lru";
+        }
+
+        public synchronized void accessed(int frame)
+        {
+            lists.pushFront(0, frame);
+        }
+
+        public synchronized void loaded(int frame, long key)
+        {
+            lists.pushFront(0, frame);
+        }
+
+        public void unpinned(int frame)
+        {
+        }
+
+        public synchronized void removed(int frame)
+        {
+            lists.remove(frame);
+        }
+
+        public synchronized int victim(long key, Frames frames)
+        {
+            return lists.claimLast(0, frames);
+        }
+
+        public synchronized int upcoming(int[] frames)
+        {
+            return lists.fromBack(0, frames, 0);
+        }
+    }
+
+
+    /**
+     * LRU-K (O'Neil, O'Neil and Weikum): replaces the page whose K-th
+     * most recent access is oldest. Pages seen fewer than K times count
+     * as infinitely old and go first, least recently used first, so a
+     * page touched once by a scan cannot push out one that is used
+     * repeatedly. The access history of evicted pages is kept for as
+     * many pages as there are frames, so a page that comes back soon
+     * is judged on its whole history. Frames are kept in a tree ordered
+     * by their K-th access, which makes each hit O(log n).
+     */
+    public static class LRUK implements ReplacementPolicy
+    {
+        private final int k;
+        private long clock;
+        private long[] history; // per frame, the last k access times, newest first
+        private long[] keys;
+        private TreeSet<Integer> order;
+        private LinkedHashMap<Long, long[]> retained;
+        private int capacity;
+
+        /**
+         * Creates an LRU-2 policy.
+         */
+        public LRUK()
+        {
+            this(2);
+        }
+
+        /**
+         * Creates an LRU-K policy.
+         * @param k the number of accesses that make up a page's history.
+         */
+        public LRUK(int k)
+        {
+            if (k < 1)
+                throw new IllegalArgumentException("k must be positive");
+            this.k = k;
+        }
+
+        public synchronized void init(int numFrames)
+        {
+            clock = 0;
+            capacity = numFrames;
+            history = new long[numFrames * k];
+            keys = new long[numFrames];
+            Arrays.fill(keys, NO_PAGE);
+            order = new TreeSet<Integer>((a, b) -> {
+                    int c = Long.compare(priority(a), priority(b));
+                    return c != 0 ? c : Integer.compare(a, b);
+                });
+            retained = new LinkedHashMap<Long, long[]>() {
+                    protected boolean removeEldestEntry(Map.Entry<Long, long[]> e)
+                    {
+                        return size() > capacity;
+                    }
+                };
+        }
+
+        public synchronized void resize(int numFrames)
+        {
+            history = Arrays.copyOf(history, numFrames * k);
+            keys = resizeKeys(keys, numFrames);
+            capacity = numFrames;
+            while (retained.size() > capacity) {
+                Iterator<Long> it = retained.keySet().iterator();
+                it.next();
+                it.remove();
+            }
+        }
+
+        public String name()
+        {
+            return "lru-" + k;
+        }
+
+        public synchronized void accessed(int frame)
+        {
+            order.remove(frame);
+            record(frame);
+            order.add(frame);
+        }
+
+        public synchronized void loaded(int frame, long key)
+        {
+            order.remove(frame);
+            int base = frame * k;
+            if (keys[frame] != NO_PAGE)
+                retained.put(keys[frame],
+                             Arrays.copyOfRange(history, base, base + k));
+            long[] past = retained.remove(key);
+            if (past != null)
+                System.arraycopy(past, 0, history, base, k);
+            else
+                Arrays.fill(history, base, base + k, 0);
+            keys[frame] = key;
+            record(frame);
+            order.add(frame);
+        }
+
+        public void unpinned(int frame)
+        {
+        }
+
+        public synchronized void removed(int frame)
+        {
+            order.remove(frame);
+            keys[frame] = NO_PAGE;
+        }
+
+        public synchronized int victim(long key, Frames frames)
+        {
+            for (int frame : order)
+                if (!frames.isPinned(frame) && frames.claim(frame))
+                    return frame;
+            return -1;
+        }
+
+        public synchronized int upcoming(int[] frames)
+        {
+            int count = 0;
+            for (int frame : order) {
+                if (count == frames.length)
+                    break;
+                frames[count++] = frame;
+            }
+            return count;
+        }
+
+        private void record(int frame)
+        {
+            int base = frame * k;
+            System.arraycopy(history, base, history, base + 1, k - 1);
+            history[base] = ++clock;
+        }
+
+        /**
+         * Orders frames for replacement, lowest first: the K-th most
+         * recent access time, or for pages with a shorter history their
+         * last access time, shifted below every full history.
+         */
+        private long priority(int frame)
+        {
+            int base = frame * k;
+            long kth = history[base + k - 1];
+            return kth != 0 ? kth : history[base] - (1L << 62);
+        }
+    }
+
+
+    /**
+     * 2Q (Johnson and Shasha), full version. A page missing for the
+     * first time enters a FIFO queue, A1in, which hits do not reorder.
+     * When it leaves A1in its key is remembered in a ghost queue,
+     * A1out, and if it misses again while remembered it goes to the
+     * main LRU list, Am. Frames are taken from A1in while it holds more
+     * than a quarter of the pool, so a scan cycles through A1in and
+     * leaves Am alone.
+     */
+    public static class TwoQ implements ReplacementPolicy
+    {
+        private static final int A1IN = 0;
+        private static final int AM = 1;
+
+        private FrameLists lists;
+        private long[] keys;
+        private LinkedHashSet<Long> a1out;
+        private int kin;
+        private int kout;
+
+        public synchronized void init(int numFrames)
+        {
+            lists = new FrameLists(numFrames, 2);
+            keys = new long[numFrames];
+            Arrays.fill(keys, NO_PAGE);
+            a1out = new LinkedHashSet<Long>();
+            kin = Math.max(1, numFrames / 4);
+            kout = Math.max(1, numFrames / 2);
+        }
+
+        public synchronized void resize(int numFrames)
+        {
+            lists.resize(numFrames);
+            keys = resizeKeys(keys, numFrames);
+            kin = Math.max(1, numFrames / 4);
+            kout = Math.max(1, numFrames / 2);
+            while (a1out.size() > kout)
+                removeOldest(a1out);
+        }
+
+        public String name()
+        {
+            return "2q";
+        }
+
+        public synchronized void accessed(int frame)
+        {
+            if (lists.listOf(frame) == AM)
+                lists.pushFront(AM, frame);
+        }
+
+        public synchronized void loaded(int frame, long key)
+        {
+            if (keys[frame] != NO_PAGE && lists.listOf(frame) == A1IN) {
+                a1out.add(keys[frame]);
+                if (a1out.size() > kout)
+                    removeOldest(a1out);
+            }
+            keys[frame] = key;
+            lists.pushFront(a1out.remove(key) ? AM : A1IN, frame);
+        }
+
+        public void unpinned(int frame)
+        {
+        }
+
+        public synchronized void removed(int frame)
+        {
+            lists.remove(frame);
+            keys[frame] = NO_PAGE;
+        }
+
+        public synchronized int victim(long key, Frames frames)
+        {
+            int first = lists.size(A1IN) > kin ? A1IN : AM;
+            int frame = lists.claimLast(first, frames);
+            if (frame < 0)
+                frame = lists.claimLast(AM + A1IN - first, frames);
+            return frame;
+        }
+
+        public synchronized int upcoming(int[] frames)
+        {
+            int first = lists.size(A1IN) > kin ? A1IN : AM;
+            return lists.fromBack(AM + A1IN - first, frames,
+                                  lists.fromBack(first, frames, 0));
+        }
+    }
+
+
+    /**
+     * Adaptive Replacement Cache (Megiddo and Modha). Pages seen once
+     * recently are in T1 and pages seen at least twice in T2, each
+     * backed by a ghost list, B1 and B2, of keys recently evicted from
+     * it. A miss on a key in B1 means T1 was too small and grows its
+     * target size p; a miss in B2 shrinks it. Victims come from T1
+     * while it is larger than p, and from T2 otherwise, so the balance
+     * between recency and frequency follows the workload.
+     */
+    public static class ARC implements ReplacementPolicy
+    {
+        private static final int T1 = 0;
+        private static final int T2 = 1;
+
+        private FrameLists lists;
+        private long[] keys;
+        private LinkedHashSet<Long> b1;
+        private LinkedHashSet<Long> b2;
+        private int capacity;
+        private int p;
+
+        public synchronized void init(int numFrames)
+        {
+            lists = new FrameLists(numFrames, 2);
+            keys = new long[numFrames];
+            Arrays.fill(keys, NO_PAGE);
+            b1 = new LinkedHashSet<Long>();
+            b2 = new LinkedHashSet<Long>();
+            capacity = numFrames;
+            p = 0;
+        }
+
+        public synchronized void resize(int numFrames)
+        {
+            lists.resize(numFrames);
+            keys = resizeKeys(keys, numFrames);
+            capacity = numFrames;
+            p = Math.min(p, capacity);
+            while (!b1.isEmpty() && lists.size(T1) + b1.size() > capacity)
+                removeOldest(b1);
+            while (!b2.isEmpty() && lists.size(T2) + b2.size() > capacity)
+                removeOldest(b2);
+        }
+
+        public String name()
+        {
+            return "arc";
+        }
+
+        public synchronized void accessed(int frame)
+        {
+            lists.pushFront(T2, frame);
+        }
+
+        public synchronized void loaded(int frame, long key)
+        {
+            int target = T1;
+            if (b1.remove(key)) {
+                p = Math.min(capacity, p + Math.max(b2.size() / (b1.size() + 1), 1));
+                target = T2;
+            }
+            else if (b2.remove(key)) {
+                p = Math.max(0, p - Math.max(b1.size() / (b2.size() + 1), 1));
+                target = T2;
+            }
+            if (keys[frame] != NO_PAGE)
+                (lists.listOf(frame) == T1 ? b1 : b2).add(keys[frame]);
+            keys[frame] = key;
+            lists.pushFront(target, frame);
+
+            // Remember at most as many pages as the pool holds in each
+            // of L1 = T1 + B1 and L2 = T2 + B2.
+            while (!b1.isEmpty() && lists.size(T1) + b1.size() > capacity)
+                removeOldest(b1);
+            while (!b2.isEmpty() && lists.size(T2) + b2.size() > capacity)
+                removeOldest(b2);
+        }
+
+        public void unpinned(int frame)
+        {
+        }
+
+        public synchronized void removed(int frame)
+        {
+            lists.remove(frame);
+            keys[frame] = NO_PAGE;
+        }
+
+        public synchronized int victim(long key, Frames frames)
+        {
+            int t1 = lists.size(T1);
+            boolean fromT1 = t1 > 0 && (t1 > p || (t1 == p && b2.contains(key)));
+            int first = fromT1 ? T1 : T2;
+            int frame = lists.claimLast(first, frames);
+            if (frame < 0)
+                frame = lists.claimLast(T1 + T2 - first, frames);
+            return frame;
+        }
+
+        public synchronized int upcoming(int[] frames)
+        {
+            int first = lists.size(T1) > p ? T1 : T2;
+            return lists.fromBack(T1 + T2 - first, frames,
+                                  lists.fromBack(first, frames, 0));
+        }
+    }
+
+
+    /**
+     * Copies an array of page table keys by frame to a new number of
+     * frames, new frames holding no page.
+     */
+    private static long[] resizeKeys(long[] keys, int numFrames)
+    {
+        long[] resized = Arrays.copyOf(keys, numFrames);
+        if (numFrames > keys.length)
+            Arrays.fill(resized, keys.length, numFrames, NO_PAGE);
+        return resized;
+    }
+
+
+    /**
+     * Removes the key that has been in a ghost list longest.
+     */
+    private static void removeOldest(LinkedHashSet<Long> ghosts)
+    {
+        Iterator<Long> it = ghosts.iterator();
+        it.next();
+        it.remove();
+    }
+
+
+    /**
+     * Doubly linked lists of frames, most recently added first,
+     * threaded through arrays shared by all the lists so that moving a
+     * frame allocates nothing. A frame is on at most one list.
+     */
+    public static class FrameLists
+    {
+        private static final int NONE = -1;
+
+        private int[] prev;
+        private int[] next;
+        private int[] owner;
+        private int[] head;
+        private int[] tail;
+        private int[] sizes;
+
+        /**
+         * Creates empty lists.
+         * @param numFrames the number of frames in the pool.
+         * @param numLists the number of lists.
+         */
+        public FrameLists(int numFrames, int numLists)
+        {
+            prev = new int[numFrames];
+            next = new int[numFrames];
+            owner = new int[numFrames];
+            Arrays.fill(owner, NONE);
+            head = new int[numLists];
+            tail = new int[numLists];
+            sizes = new int[numLists];
+            Arrays.fill(head, NONE);
+            Arrays.fill(tail, NONE);
+        }
+
+        /**
+         * Changes the number of frames. Frames past a new, smaller end
+         * must be on no list.
+         * @param numFrames the new number of frames.
+         */
+        public void resize(int numFrames)
+        {
+            int old = owner.length;
+            prev = Arrays.copyOf(prev, numFrames);
+            next = Arrays.copyOf(next, numFrames);
+            owner = Arrays.copyOf(owner, numFrames);
+            if (numFrames > old)
+                Arrays.fill(owner, old, numFrames, NONE);
+        }
+
+        /**
+         * Returns the list a frame is on.
+         * @param frame the frame index.
+         * @return the list, or -1 if the frame is on none.
+         */
+        public int listOf(int frame)
+        {
+            return owner[frame];
+        }
+
+        /**
+         * Returns the number of frames on a list.
+         * @param list the list.
+         * @return its length.
+         */
+        public int size(int list)
+        {
+            return sizes[list];
+        }
+
+        /**
+         * Moves a frame to the front of a list, taking it off any list
+         * it is on.
+         * @param list the list.
+         * @param frame the frame index.
+         */
+        public void pushFront(int list, int frame)
+        {
+            remove(frame);
+            prev[frame] = NONE;
+            next[frame] = head[list];
+            if (head[list] != NONE)
+                prev[head[list]] = frame;
+            else
+                tail[list] = frame;
+            head[list] = frame;
+            owner[frame] = list;
+            sizes[list]++;
+        }
+
+        /**
+         * Takes a frame off its list, if it is on one.
+         * @param frame the frame index.
+         */
+        public void remove(int frame)
+        {
+            int list = owner[frame];
+            if (list == NONE)
+                return;
+            if (prev[frame] != NONE)
+                next[prev[frame]] = next[frame];
+            else
+                head[list] = next[frame];
+            if (next[frame] != NONE)
+                prev[next[frame]] = prev[frame];
+            else
+                tail[list] = prev[frame];
+            owner[frame] = NONE;
+            sizes[list]--;
+        }
+
+        /**
+         * Claims the frame nearest the back of a list that is not
+         * pinned. The frame stays on the list until it is loaded.
+         * @param list the list.
+         * @param frames the state of the frames.
+         * @return the claimed frame, or -1 if every frame on the list
+         * is pinned.
+         */
+        public int claimLast(int list, Frames frames)
+        {
+            for (int frame = tail[list]; frame != NONE; frame = prev[frame])
+                if (!frames.isPinned(frame) && frames.claim(frame))
+                    return frame;
+            return NONE;
+        }
+
+        /**
+         * Copies the frames of a list, back first, into an array.
+         * @param list the list.
+         * @param out array to fill.
+         * @param count number of entries of out already filled.
+         * @return the number of entries filled now.
+         */
+        public int fromBack(int list, int[] out, int count)
+        {
+            for (int frame = tail[list]; frame != NONE && count < out.length;
+                 frame = prev[frame])
+                out[count++] = frame;
+            return count;
+        }
+    }
+}
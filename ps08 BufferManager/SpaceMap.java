@@ -0,0 +1,342 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * In-memory copy of a database's space map. Allocation bits are kept
+ * in a bitmap, and the free pages are also indexed as extents (runs of
+ * consecutive free pages), both by starting page and by length. A run
+ * is allocated best-fit, taking the smallest extent that is long
+ * enough and the lowest such extent on ties, in O(log n) time.
+ *
+ * Changes are remembered as a dirty range of pages so that the owner
+ * can write them back to the on-disk map in batches.
+ *
+ * Changes must be made holding the map's monitor, which DBFile takes
+ * whichever of the objects open on the file makes them, but
+ * isAllocated and isRunAllocated may be called without it. Words of the bitmap are
+ * written with release and read with acquire semantics, and growing
+ * the map publishes a new, larger bitmap through a volatile field, so
+ * a reader sees either array whole and every allocation that happened
+ * before its check.
+ */
+class SpaceMap
+{
+    private static final VarHandle WORD =
+        MethodHandles.arrayElementVarHandle(long[].class);
+
+    private volatile long[] bits;
+    private int numPages;
+
+    // start page -> length of each free extent
+    private TreeMap<Integer, Integer> freeByStart;
+    // (length << 32 | start) of each free extent
+    private TreeSet<Long> freeBySize;
+
+    private int dirtyLow;
+    private int dirtyHigh;
+    private int pendingChanges;
+
+    /**
+     * Creates a map of the given size with every page free.
+     * @param numPages number of pages covered by the map.
+     */
+    public SpaceMap(int numPages)
+    {
+        this.numPages = numPages;
+        bits = new long[(numPages + 63) / 64];
+        freeByStart = new TreeMap<Integer, Integer>();
+        freeBySize = new TreeSet<Long>();
+        if (numPages > 0)
+            addExtent(0, numPages);
+        clearDirty();
+    }
+
+    /**
+     * Marks pages allocated from their on-disk representation, one
+     * byte per page. Used while loading; does not dirty the map.
+     * Extents are rebuilt by the caller with rebuildExtents once all
+     * of the map has been loaded.
+     * @param map bytes of the on-disk map.
+     * @param length number of valid bytes in map.
+     * @param firstPage page number described by map[0].
+     */
+    public void load(byte[] map, int length, int firstPage)
+    {
+        for (int i=0; i < length; i++)
+            if (map[i] != 0)
+                setBit(firstPage + i);
+    }
+
+    /**
+     * Recomputes the free extents from the bitmap.
+     */
+    public void rebuildExtents()
+    {
+        freeByStart.clear();
+        freeBySize.clear();
+        int page = 0;
+        while (page < numPages)
+        {
+            int start = nextClear(page);
+            if (start >= numPages)
+                break;
+            int end = nextSet(start);
+            addExtent(start, end - start);
+            page = end;
+        }
+    }
+
+    /**
+     * Returns the number of pages covered by the map.
+     * @return the number of pages.
+     */
+    public int size()
+    {
+        return numPages;
+    }
+
+    /**
+     * Extends the map with free pages, merging them with a free
+     * extent that runs to the old end of the map.
+     * @param newNumPages new number of pages, at least size().
+     */
+    public void grow(int newNumPages)
+    {
+        if (newNumPages <= numPages)
+            return;
+        long[] grown = new long[(newNumPages + 63) / 64];
+        System.arraycopy(bits, 0, grown, 0, bits.length);
+        bits = grown; // published whole to unlocked readers
+        int oldNumPages = numPages;
+        numPages = newNumPages;
+        free(oldNumPages, newNumPages - oldNumPages);
+    }
+
+    /**
+     * Whether a page is allocated.
+     * @param page the page number, which must be within the map.
+     * @return true if the page is allocated.
+     */
+    public boolean isAllocated(int page)
+    {
+        return ((long)WORD.getAcquire(bits, page >>> 6) & (1L << page)) != 0;
+    }
+
+    /**
+     * Whether every page of a run is allocated. Checks the bitmap a
+     * word at a time.
+     * @param start first page of the run.
+     * @param runSize number of pages in the run; the run must be
+     * within the map.
+     * @return true if all pages of the run are allocated.
+     */
+    public boolean isRunAllocated(int start, int runSize)
+    {
+        long[] words = bits;
+        int end = start + runSize;
+        int page = start;
+        while (page < end)
+        {
+            int word = page >>> 6;
+            int bit = page & 63;
+            int count = Math.min(64 - bit, end - page);
+            long mask = (count == 64 ? -1L : ((1L << count) - 1)) << bit;
+            if (((long)WORD.getAcquire(words, word) & mask) != mask)
+                return false;
+            page += count;
+        }
+        return true;
+    }
+
+    /**
+     * Allocates a run of consecutive pages.
+     * @param runSize number of pages in the run.
+     * @return the first page of the run, or -1 if no free extent is
+     * long enough.
+     */
+    public int allocate(int runSize)
+    {
+        Long best = freeBySize.ceiling(((long)runSize) << 32);
+        if (best == null)
+            return -1;
+
+        int start = (int)(best & 0xffffffffL);
+        int length = (int)(best >>> 32);
+        removeExtent(start, length);
+        if (length > runSize)
+            addExtent(start + runSize, length - runSize);
+
+        for (int i=start; i < start + runSize; i++)
+            setBit(i);
+        markDirty(start, start + runSize);
+        return start;
+    }
+
+    /**
+     * Allocates a given run of pages, as recorded elsewhere; used when
+     * redoing allocations from the log. Pages in the run that are
+     * already allocated stay so.
+     * @param start first page of the run.
+     * @param runSize number of pages in the run; the run must be
+     * within the map.
+     */
+    public void markAllocated(int start, int runSize)
+    {
+        int end = start + runSize;
+        for (int i=start; i < end; i++)
+            setBit(i);
+        markDirty(start, end);
+
+        // Cut the run out of every free extent that overlaps it.
+        Map.Entry<Integer, Integer> extent = freeByStart.floorEntry(start);
+        if (extent == null || extent.getKey() + extent.getValue() <= start)
+            extent = freeByStart.ceilingEntry(start);
+        while (extent != null && extent.getKey() < end)
+        {
+            int low = extent.getKey();
+            int high = low + extent.getValue();
+            removeExtent(low, high - low);
+            if (low < start)
+                addExtent(low, start - low);
+            if (high > end)
+                addExtent(end, high - end);
+            extent = freeByStart.higherEntry(low);
+        }
+    }
+
+    /**
+     * Frees a run of pages. Pages in the run that are already free
+     * stay free.
+     * @param start first page of the run.
+     * @param runSize number of pages in the run.
+     */
+    public void free(int start, int runSize)
+    {
+        int end = start + runSize;
+        for (int i=start; i < end; i++)
+            clearBit(i);
+        markDirty(start, end);
+
+        // Merge with the extent that ends at or runs into the start
+        // of the freed run, and with every extent that begins inside
+        // it or right after it.
+        int low = start;
+        int high = end;
+        Map.Entry<Integer, Integer> before = freeByStart.floorEntry(start);
+        if (before != null && before.getKey() + before.getValue() >= start)
+        {
+            low = before.getKey();
+            high = Math.max(high, low + before.getValue());
+            removeExtent(before.getKey(), before.getValue());
+        }
+        Map.Entry<Integer, Integer> after = freeByStart.ceilingEntry(low);
+        while (after != null && after.getKey() <= high)
+        {
+            high = Math.max(high, after.getKey() + after.getValue());
+            removeExtent(after.getKey(), after.getValue());
+            after = freeByStart.ceilingEntry(low);
+        }
+        addExtent(low, high - low);
+    }
+
+    /**
+     * Number of changes since the map was last marked clean.
+     * @return the count of allocate and free calls.
+     */
+    public int pendingChanges()
+    {
+        return pendingChanges;
+    }
+
+    /**
+     * First page of the range changed since the map was last marked
+     * clean.
+     * @return the first dirty page, or size() if nothing is dirty.
+     */
+    public int dirtyLow()
+    {
+        return Math.min(dirtyLow, numPages);
+    }
+
+    /**
+     * One past the last page changed since the map was last marked
+     * clean.
+     * @return the end of the dirty range.
+     */
+    public int dirtyHigh()
+    {
+        return Math.max(dirtyHigh, dirtyLow());
+    }
+
+    /**
+     * Encodes part of the map in its on-disk form, one byte per page.
+     * @param start first page to encode.
+     * @param end one past the last page to encode.
+     * @return the encoded bytes.
+     */
+    public byte[] toBytes(int start, int end)
+    {
+        byte[] out = new byte[end - start];
+        for (int i=start; i < end; i++)
+            out[i - start] = (byte)(isAllocated(i) ? 1 : 0);
+        return out;
+    }
+
+    /**
+     * Forgets the dirty range, once it has been written out.
+     */
+    public void clearDirty()
+    {
+        dirtyLow = Integer.MAX_VALUE;
+        dirtyHigh = -1;
+        pendingChanges = 0;
+    }
+
+    private void markDirty(int start, int end)
+    {
+        dirtyLow = Math.min(dirtyLow, start);
+        dirtyHigh = Math.max(dirtyHigh, end);
+        pendingChanges++;
+    }
+
+    private void addExtent(int start, int length)
+    {
+        freeByStart.put(start, length);
+        freeBySize.add((((long)length) << 32) | start);
+    }
+
+    private void removeExtent(int start, int length)
+    {
+        freeByStart.remove(start);
+        freeBySize.remove((((long)length) << 32) | start);
+    }
+
+    private void setBit(int page)
+    {
+        long[] words = bits;
+        WORD.setRelease(words, page >>> 6, words[page >>> 6] | (1L << page));
+    }
+
+    private void clearBit(int page)
+    {
+        long[] words = bits;
+        WORD.setRelease(words, page >>> 6, words[page >>> 6] & ~(1L << page));
+    }
+
+    private int nextClear(int page)
+    {
+        while (page < numPages && isAllocated(page))
+            page++;
+        return page;
+    }
+
+    private int nextSet(int page)
+    {
+        while (page < numPages && !isAllocated(page))
+            page++;
+        return page;
+    }
+}